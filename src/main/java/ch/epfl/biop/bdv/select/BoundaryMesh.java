@@ -0,0 +1,416 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.img.WarpedSource;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Boundary of a source whose voxels are not mapped to the world by an affine
+ * transform only, typically a {@link WarpedSource}. The faces of the box of
+ * the innermost wrapped source are sampled on a regular grid, and the samples
+ * are mapped to world coordinates through its source transform and the warps
+ * : this gives a closed triangle mesh, whose intersection with the slicing
+ * plane is a set of polygons, which may be concave. Mapping the samples
+ * through a warp can be costly, so meshes are cached per source and
+ * timepoint, see {@link BoundaryMesh#of(SourceBox)}. A cached mesh is
+ * checked against the warps, by identity, and the source transform of the
+ * innermost source when it is looked up, but slices and indexes are only
+ * built again after {@link SourceBox#sourcesMoved()}, which also drops the
+ * mesh : it has to be called after a warp is replaced or modified in place,
+ * for instance an edited landmark transform. Slicing a mesh only goes through
+ * its triangles with plain arithmetic.
+ * Warps are mapped with their inverse : a warp which is not an
+ * {@link InvertibleRealTransform} can't be handled, and its source is
+ * represented by its box, as an affine source.
+ */
+
+final class BoundaryMesh {
+
+	// Number of cells along each edge of the box
+	static final int SUBDIVISIONS = 8;
+
+	// Meshes per source and per timepoint
+	private static final Map<Source<?>, Map<Integer, BoundaryMesh>> cache =
+		new WeakHashMap<>();
+
+	// World coordinates of the vertices, 3 values per vertex
+	final double[] vertices;
+
+	final int nVertices;
+
+	// 3 vertex indexes per triangle, counter-clockwise seen from outside
+	final int[] triangles;
+
+	// 3 edge indexes per triangle, edge 3t + e goes from vertex e to vertex
+	// (e + 1) % 3 of triangle t
+	final int[] triangleEdges;
+
+	final int nEdges;
+
+	// Edge i joins vertices edgeVertices[2i] and edgeVertices[2i+1]
+	final int[] edgeVertices;
+
+	// World axis aligned bounding box
+	final RealInterval bounds;
+
+	// What the mesh has been built from
+	private final double[] sourceTransform;
+
+	private final RealTransform[] warps;
+
+	private BoundaryMesh(double[] vertices, int nVertices, int[] triangles,
+		double[] sourceTransform, RealTransform[] warps)
+	{
+		this.vertices = vertices;
+		this.nVertices = nVertices;
+		this.triangles = triangles;
+		this.sourceTransform = sourceTransform;
+		this.warps = warps;
+
+		// Shared edges, numbered once
+		int nTriangles = triangles.length / 3;
+		triangleEdges = new int[triangles.length];
+		Map<Long, Integer> edgeIndexes = new HashMap<>(triangles.length);
+		int[] ends = new int[triangles.length * 2];
+		int count = 0;
+		for (int t = 0; t < nTriangles; t++) {
+			for (int e = 0; e < 3; e++) {
+				int a = triangles[3 * t + e];
+				int b = triangles[3 * t + (e + 1) % 3];
+				long key = (long) Math.min(a, b) * nVertices + Math.max(a, b);
+				Integer index = edgeIndexes.get(key);
+				if (index == null) {
+					index = count++;
+					edgeIndexes.put(key, index);
+					ends[2 * index] = a;
+					ends[2 * index + 1] = b;
+				}
+				triangleEdges[3 * t + e] = index;
+			}
+		}
+		nEdges = count;
+		edgeVertices = Arrays.copyOf(ends, 2 * count);
+
+		double[] min = new double[3], max = new double[3];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		for (int v = 0; v < nVertices; v++) {
+			for (int d = 0; d < 3; d++) {
+				min[d] = Math.min(min[d], vertices[3 * v + d]);
+				max[d] = Math.max(max[d], vertices[3 * v + d]);
+			}
+		}
+		bounds = new FinalRealInterval(min, max);
+	}
+
+	/**
+	 * @param box source box
+	 * @return the boundary mesh of the source at the timepoint of the box, from
+	 *         the cache if its sources have not been moved since it was built,
+	 *         or null if the source is only affinely transformed or if one of
+	 *         its warps is not invertible
+	 */
+	static BoundaryMesh of(SourceBox box) {
+		if (box.interval == null) return null;
+		Source<?> source = box.sac.getSpimSource();
+		if (!(source instanceof WarpedSource)) return null;
+		RealTransform[] warps = getWarps(source);
+		if (!isWarped(warps)) return null;
+		// A transformed WarpedSource has an identity source transform, and its
+		// box is an estimate of its warped bounds : the boundary is the one of
+		// the innermost wrapped source, mapped by its own source transform
+		Source<?> wrapped = getInnermostSource(source);
+		AffineTransform3D transform = new AffineTransform3D();
+		wrapped.getSourceTransform(box.timepoint, 0, transform);
+		double[] sourceTransform = transform.getRowPackedCopy();
+		long version;
+		synchronized (cache) {
+			version = SourceBox.getTransformsVersion();
+			BoundaryMesh mesh = cache.computeIfAbsent(source, k -> new HashMap<>(2))
+				.get(box.timepoint);
+			if ((mesh != null) && mesh.isBuiltFrom(sourceTransform, warps))
+				return mesh;
+		}
+		RealInterval interval = SourceBox.computeInterval(wrapped, box.timepoint);
+		if (interval == null) return null;
+		// Built without holding the lock : concurrent builds give equal meshes
+		BoundaryMesh mesh = build(toArray(interval), transform, sourceTransform,
+			warps);
+		synchronized (cache) {
+			// Not cached if sources have been moved in the meantime
+			if (version == SourceBox.getTransformsVersion()) cache.computeIfAbsent(
+				source, k -> new HashMap<>(2)).put(box.timepoint, mesh);
+		}
+		return mesh;
+	}
+
+	/**
+	 * Drops cached meshes, and increments the version of the source
+	 * transforms, see {@link SourceBox#sourcesMoved()}. Both are done under the
+	 * lock of the lookups : a mesh found in the cache is valid for the version
+	 * read with it.
+	 *
+	 * @param sources sources whose meshes are dropped, null for all
+	 */
+	static void invalidate(Collection<? extends SourceAndConverter<?>> sources) {
+		synchronized (cache) {
+			SourceBox.transformsVersion.incrementAndGet();
+			if (sources == null) cache.clear();
+			else for (SourceAndConverter<?> sac : sources) {
+				cache.remove(sac.getSpimSource());
+			}
+		}
+	}
+
+	/**
+	 * @return true if one of the warps is active and all can be inverted
+	 */
+	private static boolean isWarped(RealTransform[] warps) {
+		if (warps == null) return false;
+		for (RealTransform warp : warps) {
+			if (warp != null) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the warps from the innermost wrapped source to the outermost one,
+	 *         null elements for warps which are not active, or null if one of
+	 *         them can't be inverted
+	 */
+	private static RealTransform[] getWarps(Source<?> source) {
+		List<RealTransform> warps = new ArrayList<>();
+		while (source instanceof WarpedSource) {
+			WarpedSource<?> warped = (WarpedSource<?>) source;
+			RealTransform warp = warped.isTransformed() ? warped.getTransform()
+				: null;
+			if ((warp != null) && !(warp instanceof InvertibleRealTransform))
+				return null;
+			warps.add(0, warp);
+			source = warped.getWrappedSource();
+		}
+		return warps.toArray(new RealTransform[0]);
+	}
+
+	/**
+	 * @return the innermost source wrapped by nested warped sources
+	 */
+	private static Source<?> getInnermostSource(Source<?> source) {
+		while (source instanceof WarpedSource) {
+			source = ((WarpedSource<?>) source).getWrappedSource();
+		}
+		return source;
+	}
+
+	/**
+	 * Warps are compared by identity : a warp modified in place is only
+	 * detected through {@link SourceBox#sourcesMoved()}, which drops the mesh
+	 */
+	private boolean isBuiltFrom(double[] sourceTransform,
+		RealTransform[] warps)
+	{
+		if (warps.length != this.warps.length) return false;
+		for (int i = 0; i < warps.length; i++) {
+			if (warps[i] != this.warps[i]) return false;
+		}
+		return Arrays.equals(sourceTransform, this.sourceTransform);
+	}
+
+	private static double[] toArray(RealInterval interval) {
+		double[] values = new double[6];
+		for (int d = 0; d < 3; d++) {
+			values[d] = interval.realMin(d);
+			values[d + 3] = interval.realMax(d);
+		}
+		return values;
+	}
+
+	/**
+	 * Samples the surface of the box of the innermost source, in voxel
+	 * coordinates, on a grid of SUBDIVISIONS cells per edge, and maps the
+	 * samples to the world through its source transform, then through the
+	 * inverse of the warps, from the innermost one to the outermost one.
+	 * The grid points of the surface are shared by the faces, so that the mesh
+	 * is closed.
+	 */
+	private static BoundaryMesh build(double[] interval,
+		AffineTransform3D transform, double[] sourceTransform,
+		RealTransform[] warps)
+	{
+		final int k = SUBDIVISIONS;
+		final int side = k + 1;
+		// Vertex index of each grid point of the surface, -1 inside
+		int[] indexes = new int[side * side * side];
+		Arrays.fill(indexes, -1);
+		int nVertices = side * side * side - (k - 1) * (k - 1) * (k - 1);
+		double[] vertices = new double[3 * nVertices];
+
+		// Warps are not thread safe : the mesh is built with copies
+		InvertibleRealTransform[] inverses = new InvertibleRealTransform[warps
+			.length];
+		for (int i = 0; i < warps.length; i++) {
+			if (warps[i] != null) inverses[i] = ((InvertibleRealTransform) warps[i])
+				.copy();
+		}
+		double[] voxel = new double[3];
+		double[] world = new double[3];
+		double[] warped = new double[3];
+		int count = 0;
+		for (int z = 0; z < side; z++) {
+			for (int y = 0; y < side; y++) {
+				for (int x = 0; x < side; x++) {
+					if ((x > 0) && (x < k) && (y > 0) && (y < k) && (z > 0) && (z < k))
+						continue;
+					voxel[0] = interval[0] + (interval[3] - interval[0]) * x / k;
+					voxel[1] = interval[1] + (interval[4] - interval[1]) * y / k;
+					voxel[2] = interval[2] + (interval[5] - interval[2]) * z / k;
+					transform.apply(voxel, world);
+					// The warp maps warped coordinates to the coordinates of the
+					// wrapped source : the boundary goes through its inverse
+					for (InvertibleRealTransform inverse : inverses) {
+						if (inverse == null) continue;
+						inverse.applyInverse(warped, world);
+						System.arraycopy(warped, 0, world, 0, 3);
+					}
+					System.arraycopy(world, 0, vertices, 3 * count, 3);
+					indexes[(z * side + y) * side + x] = count++;
+				}
+			}
+		}
+
+		// Two triangles per cell of each face. For axis a, the grid axes u and v
+		// follow a in circular order so that u x v points along a : the winding
+		// is reversed on the lower face to keep the triangles facing outside.
+		int[] triangles = new int[6 * k * k * 2 * 3];
+		int t = 0;
+		int[] p = new int[3];
+		for (int a = 0; a < 3; a++) {
+			int u = (a + 1) % 3, v = (a + 2) % 3;
+			for (int s = 0; s <= k; s += k) {
+				for (int i = 0; i < k; i++) {
+					for (int j = 0; j < k; j++) {
+						p[a] = s;
+						p[u] = i;
+						p[v] = j;
+						int c00 = indexes[(p[2] * side + p[1]) * side + p[0]];
+						p[u] = i + 1;
+						int c10 = indexes[(p[2] * side + p[1]) * side + p[0]];
+						p[v] = j + 1;
+						int c11 = indexes[(p[2] * side + p[1]) * side + p[0]];
+						p[u] = i;
+						int c01 = indexes[(p[2] * side + p[1]) * side + p[0]];
+						if (s == k) {
+							t = addTriangle(triangles, t, c00, c10, c11);
+							t = addTriangle(triangles, t, c00, c11, c01);
+						}
+						else {
+							t = addTriangle(triangles, t, c00, c11, c10);
+							t = addTriangle(triangles, t, c00, c01, c11);
+						}
+					}
+				}
+			}
+		}
+		return new BoundaryMesh(vertices, nVertices, triangles, sourceTransform,
+			warps);
+	}
+
+	private static int addTriangle(int[] triangles, int t, int a, int b, int c) {
+		triangles[t] = a;
+		triangles[t + 1] = b;
+		triangles[t + 2] = c;
+		return t + 3;
+	}
+
+	/**
+	 * @return the world axis aligned bounding box of the mesh
+	 */
+	RealInterval getBounds() {
+		return bounds;
+	}
+
+	/**
+	 * Intersects the mesh with the slicing plane (z = 0 in viewer coordinates).
+	 * Each triangle crossing the plane gives a segment between two of its
+	 * edges ; since the triangles are consistently oriented, the segment goes
+	 * from the edge where the triangle boundary goes down through the plane to
+	 * the one where it goes up, and each crossed edge starts exactly one
+	 * segment : following the segments from edge to edge gives closed loops.
+	 *
+	 * @param viewerTransform world to viewer transform
+	 * @return the intersection, null if the mesh does not cross the plane or if
+	 *         the intersection is degenerated
+	 */
+	SlicePolygon slice(AffineTransform3D viewerTransform) {
+		double[] projected = new double[3 * nVertices];
+		double[] in = new double[3], out = new double[3];
+		for (int v = 0; v < nVertices; v++) {
+			System.arraycopy(vertices, 3 * v, in, 0, 3);
+			viewerTransform.apply(in, out);
+			System.arraycopy(out, 0, projected, 3 * v, 3);
+		}
+		// next[e] : edge where the segment starting on edge e ends, -1 if e does
+		// not cross the plane
+		int[] next = new int[nEdges];
+		Arrays.fill(next, -1);
+		int nCrossed = 0;
+		for (int t = 0; t < triangles.length; t += 3) {
+			int down = -1, up = -1;
+			for (int e = 0; e < 3; e++) {
+				boolean fromAbove = projected[3 * triangles[t + e] + 2] >= 0;
+				boolean toAbove = projected[3 * triangles[t + (e + 1) % 3] + 2] >= 0;
+				if (fromAbove && !toAbove) down = triangleEdges[t + e];
+				else if (!fromAbove && toAbove) up = triangleEdges[t + e];
+			}
+			if (down >= 0) {
+				next[down] = up;
+				nCrossed++;
+			}
+		}
+		if (nCrossed < 3) return null;
+
+		double[] xs = new double[nCrossed];
+		double[] ys = new double[nCrossed];
+		int[] loopStarts = new int[nCrossed / 3 + 2];
+		int nLoops = 0;
+		int n = 0;
+		for (int start = 0; start < nEdges; start++) {
+			if (next[start] < 0) continue;
+			int loopStart = n;
+			int e = start;
+			while (next[e] >= 0) {
+				int a = 3 * edgeVertices[2 * e], b = 3 * edgeVertices[2 * e + 1];
+				double f = projected[a + 2] / (projected[a + 2] - projected[b + 2]);
+				xs[n] = projected[a] + f * (projected[b] - projected[a]);
+				ys[n] = projected[a + 1] + f * (projected[b + 1] - projected[a + 1]);
+				n++;
+				int following = next[e];
+				next[e] = -1; // visited
+				e = following;
+			}
+			if (n - loopStart < 3) {
+				n = loopStart; // degenerated loop
+			}
+			else {
+				loopStarts[nLoops++] = loopStart;
+			}
+		}
+		if (nLoops == 0) return null;
+		loopStarts[nLoops] = n;
+		return new SlicePolygon(xs, ys, n, Arrays.copyOf(loopStarts, nLoops + 1));
+	}
+
+}
@@ -0,0 +1,212 @@
+package ch.epfl.biop.bdv.select;
+
+import java.util.Arrays;
+
+/**
+ * 2D k-d tree over the screen centroids of sources, used for keyboard
+ * navigation : finding the nearest source in a direction is a branch and
+ * bound search which prunes the subtrees behind the current location or
+ * farther than the best candidate. The reading order (rows from top to
+ * bottom, then left to right) is computed once, when the index is built.
+ */
+
+final class CentroidIndex {
+
+	final double[] xs, ys;
+
+	final int n;
+
+	// Tree stored implicitly : the median of tree[lo, hi) is at (lo + hi) / 2,
+	// split along x for even depths, y for odd depths
+	final int[] tree;
+
+	// Reading order of the points, and rank of each point in it
+	final int[] readingOrder, readingRank;
+
+	/**
+	 * @param xs x coordinates of the centroids
+	 * @param ys y coordinates of the centroids
+	 * @param heights height of each source on screen, used to group the
+	 *          centroids in rows
+	 */
+	CentroidIndex(double[] xs, double[] ys, double[] heights) {
+		this.xs = xs;
+		this.ys = ys;
+		this.n = xs.length;
+		tree = new int[n];
+		for (int i = 0; i < n; i++) {
+			tree[i] = i;
+		}
+		build(0, n, 0);
+
+		// Reading order : sorted by y, a new row starts when y moves by more
+		// than half of the median source height, then each row sorted by x
+		Integer[] byY = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			byY[i] = i;
+		}
+		Arrays.sort(byY, (a, b) -> Double.compare(ys[a], ys[b]));
+		double[] sortedHeights = heights.clone();
+		Arrays.sort(sortedHeights);
+		double rowTolerance = n == 0 ? 0 : sortedHeights[n / 2] / 2.0;
+		readingOrder = new int[n];
+		readingRank = new int[n];
+		int rowStart = 0;
+		for (int k = 0; k <= n; k++) {
+			if ((k == n) || ((k > rowStart) && (ys[byY[k]] - ys[byY[rowStart]] >
+				rowTolerance)))
+			{
+				Arrays.sort(byY, rowStart, k, (a, b) -> Double.compare(xs[a], xs[b]));
+				rowStart = k;
+			}
+		}
+		for (int k = 0; k < n; k++) {
+			readingOrder[k] = byY[k];
+			readingRank[byY[k]] = k;
+		}
+	}
+
+	private void build(int lo, int hi, int depth) {
+		if (hi - lo <= 1) return;
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, (depth & 1) == 0 ? xs : ys);
+		build(lo, mid, depth + 1);
+		build(mid + 1, hi, depth + 1);
+	}
+
+	private void select(int lo, int hi, int k, double[] key) {
+		while (lo < hi) {
+			double pivot = key[tree[(lo + hi) >>> 1]];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (key[tree[i]] < pivot) i++;
+				while (key[tree[j]] > pivot) j--;
+				if (i <= j) {
+					int tmp = tree[i];
+					tree[i] = tree[j];
+					tree[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else return;
+		}
+	}
+
+	int size() {
+		return n;
+	}
+
+	/**
+	 * @return the point nearest to (x, y) in the 90 degrees cone centered on
+	 *         the direction (dx, dy), -1 if there is none
+	 */
+	int nearestInDirection(double x, double y, double dx, double dy) {
+		double norm = Math.sqrt(dx * dx + dy * dy);
+		Search search = new Search(x, y, dx / norm, dy / norm);
+		search.visit(0, n, 0, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+			Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		return search.best;
+	}
+
+	/**
+	 * @return the point nearest to (x, y), -1 if the index is empty
+	 */
+	int nearest(double x, double y) {
+		Search search = new Search(x, y, 0, 0);
+		search.visit(0, n, 0, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+			Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		return search.best;
+	}
+
+	/**
+	 * @param point current point
+	 * @param step 1 for the next point in reading order, -1 for the previous
+	 *          one
+	 * @return the next point in reading order, wrapping around
+	 */
+	int nextInReadingOrder(int point, int step) {
+		if (n == 0) return -1;
+		if (point < 0) return readingOrder[step > 0 ? 0 : n - 1];
+		return readingOrder[Math.floorMod(readingRank[point] + step, n)];
+	}
+
+	private class Search {
+
+		final double x, y, dx, dy;
+
+		// No direction : plain nearest neighbour
+		final boolean directed;
+
+		int best = -1;
+
+		double bestDistance = Double.POSITIVE_INFINITY;
+
+		Search(double x, double y, double dx, double dy) {
+			this.x = x;
+			this.y = y;
+			this.dx = dx;
+			this.dy = dy;
+			this.directed = (dx != 0) || (dy != 0);
+		}
+
+		boolean accept(int i) {
+			if (!directed) return true;
+			double px = xs[i] - x, py = ys[i] - y;
+			double along = px * dx + py * dy;
+			double across = Math.abs(-px * dy + py * dx);
+			return (along > 1e-9) && (across <= along);
+		}
+
+		/**
+		 * @return the maximum of d * v for v in [vMin, vMax], bounds can be
+		 *         infinite
+		 */
+		double farthest(double d, double vMin, double vMax) {
+			if (d == 0) return 0;
+			return d > 0 ? d * vMax : d * vMin;
+		}
+
+		void visit(int lo, int hi, int depth, double minX, double minY,
+			double maxX, double maxY)
+		{
+			if (lo >= hi) return;
+			// Distance from the query point to the cell of this subtree
+			double cx = Math.max(minX - x, Math.max(0, x - maxX));
+			double cy = Math.max(minY - y, Math.max(0, y - maxY));
+			if (cx * cx + cy * cy >= bestDistance) return;
+			if (directed) {
+				// Cell entirely behind the query point
+				double farthest = farthest(dx, minX - x, maxX - x) + farthest(dy,
+					minY - y, maxY - y);
+				if (farthest <= 0) return;
+			}
+			int mid = (lo + hi) >>> 1;
+			int i = tree[mid];
+			if (accept(i)) {
+				double px = xs[i] - x, py = ys[i] - y;
+				double d = px * px + py * py;
+				if (d < bestDistance) {
+					bestDistance = d;
+					best = i;
+				}
+			}
+			boolean splitX = (depth & 1) == 0;
+			double split = splitX ? xs[i] : ys[i];
+			boolean lowFirst = (splitX ? x : y) < split;
+			for (int side = 0; side < 2; side++) {
+				if ((side == 0) == lowFirst) {
+					if (splitX) visit(lo, mid, depth + 1, minX, minY, split, maxY);
+					else visit(lo, mid, depth + 1, minX, minY, maxX, split);
+				}
+				else {
+					if (splitX) visit(mid + 1, hi, depth + 1, split, minY, maxX, maxY);
+					else visit(mid + 1, hi, depth + 1, minX, split, maxX, maxY);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+package ch.epfl.biop.bdv.select;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of laid out source names Text shaping in
+ * {@link Graphics2D#drawString(String, int, int)} is done again for every
+ * label on every frame, while source names rarely change. This cache keeps the
+ * {@link GlyphVector} of each name, keyed by name, font and
+ * {@link FontRenderContext}, so that drawing a label which has already been
+ * laid out is only a glyph blit. The least recently drawn labels are evicted
+ * once the cache is full.
+ */
+
+public class GlyphVectorCache {
+
+	final public static int DEFAULT_CAPACITY = 4096;
+
+	final int capacity;
+
+	private final LinkedHashMap<Key, GlyphVector> glyphs;
+
+	private long hits;
+
+	private long misses;
+
+	public GlyphVectorCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity maximal number of laid out labels kept in the cache
+	 */
+	public GlyphVectorCache(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException(
+			"Glyph cache capacity should be strictly positive");
+		this.capacity = capacity;
+		// access ordered -> iteration order is least recently used first
+		this.glyphs = new LinkedHashMap<Key, GlyphVector>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(
+				Map.Entry<Key, GlyphVector> eldest)
+			{
+				return size() > GlyphVectorCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Draws a label with the current font and paint of the graphics, the text
+	 * layout being reused if it has been computed before
+	 *
+	 * @param graphics where to draw
+	 * @param name text of the label
+	 * @param x location of the baseline start of the label
+	 * @param y location of the baseline start of the label
+	 */
+	public void drawString(Graphics2D graphics, String name, float x, float y) {
+		if (name == null) return;
+		graphics.drawGlyphVector(get(name, graphics.getFont(), graphics
+			.getFontRenderContext()), x, y);
+	}
+
+	/**
+	 * @param name text of the label
+	 * @param font font used to lay out the label
+	 * @param frc render context used to lay out the label
+	 * @return the laid out label, computed and cached if necessary
+	 */
+	public synchronized GlyphVector get(String name, Font font,
+		FontRenderContext frc)
+	{
+		Key key = new Key(name, font, frc);
+		GlyphVector gv = glyphs.get(key);
+		if (gv == null) {
+			misses++;
+			gv = font.createGlyphVector(frc, name);
+			glyphs.put(key, gv);
+		}
+		else {
+			hits++;
+		}
+		return gv;
+	}
+
+	public synchronized int size() {
+		return glyphs.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized void clear() {
+		glyphs.clear();
+	}
+
+	static final class Key {
+
+		final String name;
+
+		final Font font;
+
+		final FontRenderContext frc;
+
+		final int hash;
+
+		Key(String name, Font font, FontRenderContext frc) {
+			this.name = name;
+			this.font = font;
+			this.frc = frc;
+			this.hash = 31 * (31 * name.hashCode() + font.hashCode()) + frc
+				.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return hash == other.hash && name.equals(other.name) && font.equals(
+				other.font) && frc.equals(other.frc);
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+package ch.epfl.biop.bdv.select;
+
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * A box transformed by an affine transform, expressed in world coordinates :
+ * a parallelepiped given by its center and three half edge vectors. It is used
+ * to represent both the extent of a source and a 3D selection volume. Two
+ * oriented boxes are tested for intersection with the separating axis theorem,
+ * which is exact for convex polyhedra : the 3 face normals of each box and the
+ * 9 cross products of their edges are tried as separating axes.
+ */
+
+public final class OrientedBox {
+
+	final double[] center = new double[3];
+
+	// halfEdges[i] : half of the i-th edge vector
+	final double[][] halfEdges = new double[3][3];
+
+	// World axis aligned bounding box
+	final double[] min = new double[3];
+
+	final double[] max = new double[3];
+
+	/**
+	 * @param interval box in its own coordinates
+	 * @param transform transform from the box coordinates to world coordinates
+	 */
+	public OrientedBox(RealInterval interval, AffineTransform3D transform) {
+		double[] c = new double[3];
+		for (int d = 0; d < 3; d++) {
+			c[d] = (interval.realMin(d) + interval.realMax(d)) / 2.0;
+		}
+		transform.apply(c, center);
+		for (int i = 0; i < 3; i++) {
+			double h = (interval.realMax(i) - interval.realMin(i)) / 2.0;
+			for (int d = 0; d < 3; d++) {
+				halfEdges[i][d] = transform.get(d, i) * h;
+			}
+		}
+		for (int d = 0; d < 3; d++) {
+			double r = Math.abs(halfEdges[0][d]) + Math.abs(halfEdges[1][d]) + Math
+				.abs(halfEdges[2][d]);
+			min[d] = center[d] - r;
+			max[d] = center[d] + r;
+		}
+	}
+
+	/**
+	 * @param worldInterval axis aligned box in world coordinates
+	 */
+	public OrientedBox(RealInterval worldInterval) {
+		this(worldInterval, new AffineTransform3D());
+	}
+
+	/**
+	 * @param box source box
+	 * @return the extent of the source in world coordinates, or null if the
+	 *         source is not present at the timepoint of the box - the bounding
+	 *         box of its boundary mesh for a warped source
+	 */
+	public static OrientedBox of(SourceBox box) {
+		if (box.interval == null) return null;
+		BoundaryMesh mesh = BoundaryMesh.of(box);
+		if (mesh != null) return new OrientedBox(mesh.getBounds());
+		AffineTransform3D transform = new AffineTransform3D();
+		box.getTransform(transform);
+		return new OrientedBox(box.interval, transform);
+	}
+
+	/**
+	 * @param viewerInterval box in viewer coordinates : screen pixels in x and
+	 *          y, distance to the slicing plane in z
+	 * @param viewerTransform world to viewer transform
+	 * @return the box in world coordinates
+	 */
+	public static OrientedBox ofViewerInterval(RealInterval viewerInterval,
+		AffineTransform3D viewerTransform)
+	{
+		return new OrientedBox(viewerInterval, viewerTransform.inverse());
+	}
+
+	public double realMin(int d) {
+		return min[d];
+	}
+
+	public double realMax(int d) {
+		return max[d];
+	}
+
+	/**
+	 * @return true if the world bounding boxes of both boxes overlap
+	 */
+	boolean boundsIntersect(double[] otherMin, double[] otherMax) {
+		return (min[0] <= otherMax[0]) && (max[0] >= otherMin[0]) &&
+			(min[1] <= otherMax[1]) && (max[1] >= otherMin[1]) &&
+			(min[2] <= otherMax[2]) && (max[2] >= otherMin[2]);
+	}
+
+	/**
+	 * Separating axis test
+	 *
+	 * @param other another oriented box
+	 * @return true if both boxes overlap, including when one contains the other
+	 */
+	public boolean intersects(OrientedBox other) {
+		if (!boundsIntersect(other.min, other.max)) return false;
+		final double[] axis = new double[3];
+		for (int i = 0; i < 3; i++) {
+			faceNormal(halfEdges, i, axis);
+			if (separates(other, axis)) return false;
+			faceNormal(other.halfEdges, i, axis);
+			if (separates(other, axis)) return false;
+		}
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				cross(halfEdges[i], other.halfEdges[j], axis);
+				if (separates(other, axis)) return false;
+			}
+		}
+		return true;
+	}
+
+	private static void faceNormal(double[][] edges, int i, double[] axis) {
+		cross(edges[(i + 1) % 3], edges[(i + 2) % 3], axis);
+	}
+
+	private static void cross(double[] a, double[] b, double[] out) {
+		out[0] = a[1] * b[2] - a[2] * b[1];
+		out[1] = a[2] * b[0] - a[0] * b[2];
+		out[2] = a[0] * b[1] - a[1] * b[0];
+	}
+
+	private static double dot(double[] a, double[] b) {
+		return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+	}
+
+	private double radius(double[] axis) {
+		return Math.abs(dot(halfEdges[0], axis)) + Math.abs(dot(halfEdges[1],
+			axis)) + Math.abs(dot(halfEdges[2], axis));
+	}
+
+	private boolean separates(OrientedBox other, double[] axis) {
+		// Parallel edges or flat boxes give a null axis, which separates nothing
+		if (dot(axis, axis) < 1e-24) return false;
+		double distance = Math.abs(dot(center, axis) - dot(other.center, axis));
+		return distance > radius(axis) + other.radius(axis);
+	}
+
+}
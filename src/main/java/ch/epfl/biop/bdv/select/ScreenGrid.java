@@ -0,0 +1,137 @@
+package ch.epfl.biop.bdv.select;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Uniform grid over the screen bounds of a set of items, used to find the
+ * items which may intersect a query region without going through all of them.
+ * The grid covers the union of the item bounds with about two items per cell.
+ * Items spanning too many cells are not inserted in the grid but always
+ * reported. An item inserted in several cells is only reported by the first
+ * cell shared with the query region, so no deduplication is needed.
+ */
+
+final class ScreenGrid {
+
+	static final int MAX_CELLS_PER_ITEM = 64;
+
+	final int nItems;
+
+	final double x0, y0, cellWidth, cellHeight;
+
+	final int nx, ny;
+
+	// Items of cell c : cellItems[cellStart[c], cellStart[c+1])
+	final int[] cellStart, cellItems;
+
+	// First cell of each item, -1 for items which are always reported
+	final int[] itemCx, itemCy;
+
+	final int[] oversized;
+
+	/**
+	 * @param xMin lower x bound of each item
+	 * @param yMin lower y bound of each item
+	 * @param xMax upper x bound of each item
+	 * @param yMax upper y bound of each item
+	 * @param n number of items
+	 */
+	ScreenGrid(double[] xMin, double[] yMin, double[] xMax, double[] yMax,
+		int n)
+	{
+		this.nItems = n;
+		double bx0 = Double.POSITIVE_INFINITY, bx1 = Double.NEGATIVE_INFINITY;
+		double by0 = Double.POSITIVE_INFINITY, by1 = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			bx0 = Math.min(bx0, xMin[i]);
+			bx1 = Math.max(bx1, xMax[i]);
+			by0 = Math.min(by0, yMin[i]);
+			by1 = Math.max(by1, yMax[i]);
+		}
+		int side = Math.max(1, Math.min(1024, (int) Math.ceil(Math.sqrt(n /
+			2.0))));
+		this.nx = side;
+		this.ny = side;
+		this.x0 = n == 0 ? 0 : bx0;
+		this.y0 = n == 0 ? 0 : by0;
+		this.cellWidth = n == 0 ? 1 : Math.max((bx1 - bx0) / nx, 1e-9);
+		this.cellHeight = n == 0 ? 1 : Math.max((by1 - by0) / ny, 1e-9);
+
+		itemCx = new int[n];
+		itemCy = new int[n];
+		int[] count = new int[nx * ny + 1];
+		int nOversized = 0;
+		for (int i = 0; i < n; i++) {
+			int cx0 = cellX(xMin[i]), cx1 = cellX(xMax[i]);
+			int cy0 = cellY(yMin[i]), cy1 = cellY(yMax[i]);
+			if ((cx1 - cx0 + 1) * (cy1 - cy0 + 1) > MAX_CELLS_PER_ITEM) {
+				itemCx[i] = -1;
+				nOversized++;
+				continue;
+			}
+			itemCx[i] = cx0;
+			itemCy[i] = cy0;
+			for (int cy = cy0; cy <= cy1; cy++) {
+				for (int cx = cx0; cx <= cx1; cx++) {
+					count[cy * nx + cx + 1]++;
+				}
+			}
+		}
+		for (int c = 0; c < nx * ny; c++) {
+			count[c + 1] += count[c];
+		}
+		cellStart = count.clone();
+		cellItems = new int[count[nx * ny]];
+		oversized = new int[nOversized];
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			if (itemCx[i] < 0) {
+				oversized[k++] = i;
+				continue;
+			}
+			int cx1 = cellX(xMax[i]), cy1 = cellY(yMax[i]);
+			for (int cy = itemCy[i]; cy <= cy1; cy++) {
+				for (int cx = itemCx[i]; cx <= cx1; cx++) {
+					cellItems[count[cy * nx + cx]++] = i;
+				}
+			}
+		}
+	}
+
+	private int cellX(double x) {
+		return Math.max(0, Math.min(nx - 1, (int) Math.floor((x - x0) /
+			cellWidth)));
+	}
+
+	private int cellY(double y) {
+		return Math.max(0, Math.min(ny - 1, (int) Math.floor((y - y0) /
+			cellHeight)));
+	}
+
+	/**
+	 * Reports once each item whose cells overlap the query region. The items
+	 * bounds still need to be checked by the caller.
+	 */
+	void query(double qxMin, double qyMin, double qxMax, double qyMax,
+		IntConsumer consumer)
+	{
+		for (int i : oversized) {
+			consumer.accept(i);
+		}
+		if (cellItems.length == 0) return;
+		int qx0 = cellX(qxMin), qx1 = cellX(qxMax);
+		int qy0 = cellY(qyMin), qy1 = cellY(qyMax);
+		for (int cy = qy0; cy <= qy1; cy++) {
+			for (int cx = qx0; cx <= qx1; cx++) {
+				int c = cy * nx + cx;
+				for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+					int i = cellItems[k];
+					// Only the first cell shared by the item and the query reports it
+					if ((Math.max(itemCx[i], qx0) == cx) && (Math.max(itemCy[i],
+						qy0) == cy)) consumer.accept(i);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,246 @@
+package ch.epfl.biop.bdv.select;
+
+import java.util.Arrays;
+
+/**
+ * A selection polygon drawn on screen : a freehand lasso or a polygon defined
+ * by clicks. It can be concave or even self-intersecting, in which case the
+ * even-odd rule defines its inside. If both it and the {@link SlicePolygon} of
+ * a source are convex, they are tested with separating axis tests ;
+ * otherwise its edges are bucketed in horizontal slabs so that the point in
+ * polygon and edge crossing tests only go through the edges near the tested
+ * source.
+ */
+
+public final class ScreenPolygon {
+
+	final double[] xs, ys;
+
+	final int n;
+
+	final double minX, minY, maxX, maxY;
+
+	final boolean convex;
+
+	// Edge i goes from vertex i to vertex (i+1) % n ; slabEdges[slabStart[s],
+	// slabStart[s+1]) are the edges whose y range overlaps slab s
+	final int nSlabs;
+
+	final double slabHeight;
+
+	final int[] slabStart, slabEdges;
+
+	/**
+	 * @param xs x coordinates of the vertices
+	 * @param ys y coordinates of the vertices
+	 * @param n number of vertices, at least 3
+	 */
+	public ScreenPolygon(double[] xs, double[] ys, int n) {
+		if (n < 3) throw new IllegalArgumentException(
+			"A polygon needs at least 3 vertices");
+		this.xs = Arrays.copyOf(xs, n);
+		this.ys = Arrays.copyOf(ys, n);
+		this.n = n;
+		double x0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY;
+		double y0 = Double.POSITIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			x0 = Math.min(x0, xs[i]);
+			x1 = Math.max(x1, xs[i]);
+			y0 = Math.min(y0, ys[i]);
+			y1 = Math.max(y1, ys[i]);
+		}
+		minX = x0;
+		maxX = x1;
+		minY = y0;
+		maxY = y1;
+		convex = computeConvex();
+
+		nSlabs = Math.max(1, Math.min(256, n / 4));
+		slabHeight = Math.max((maxY - minY) / nSlabs, 1e-9);
+		int[] count = new int[nSlabs + 1];
+		for (int i = 0; i < n; i++) {
+			int j = (i + 1) % n;
+			for (int s = slab(Math.min(ys[i], ys[j])); s <= slab(Math.max(ys[i],
+				ys[j])); s++)
+			{
+				count[s + 1]++;
+			}
+		}
+		for (int s = 0; s < nSlabs; s++) {
+			count[s + 1] += count[s];
+		}
+		slabStart = count.clone();
+		slabEdges = new int[count[nSlabs]];
+		for (int i = 0; i < n; i++) {
+			int j = (i + 1) % n;
+			for (int s = slab(Math.min(ys[i], ys[j])); s <= slab(Math.max(ys[i],
+				ys[j])); s++)
+			{
+				slabEdges[count[s]++] = i;
+			}
+		}
+	}
+
+	private int slab(double y) {
+		return Math.max(0, Math.min(nSlabs - 1, (int) ((y - minY) / slabHeight)));
+	}
+
+	private boolean computeConvex() {
+		int sign = 0;
+		for (int i = 0; i < n; i++) {
+			double c = SlicePolygon.cross(xs[i], ys[i], xs[(i + 1) % n], ys[(i + 1) %
+				n], xs[(i + 2) % n], ys[(i + 2) % n]);
+			if (c == 0) continue;
+			int s = c > 0 ? 1 : -1;
+			if (sign == 0) sign = s;
+			else if (s != sign) return false;
+		}
+		// A star turns always on the same side but winds several times
+		double angle = 0;
+		for (int i = 0; i < n; i++) {
+			double ax = xs[(i + 1) % n] - xs[i], ay = ys[(i + 1) % n] - ys[i];
+			double bx = xs[(i + 2) % n] - xs[(i + 1) % n], by = ys[(i + 2) % n] -
+				ys[(i + 1) % n];
+			angle += Math.atan2(ax * by - ay * bx, ax * bx + ay * by);
+		}
+		return Math.abs(angle) < 2 * Math.PI + 1e-6;
+	}
+
+	public int size() {
+		return n;
+	}
+
+	public double getX(int i) {
+		return xs[i];
+	}
+
+	public double getY(int i) {
+		return ys[i];
+	}
+
+	public double getMinX() {
+		return minX;
+	}
+
+	public double getMinY() {
+		return minY;
+	}
+
+	public double getMaxX() {
+		return maxX;
+	}
+
+	public double getMaxY() {
+		return maxY;
+	}
+
+	public boolean isConvex() {
+		return convex;
+	}
+
+	/**
+	 * Even-odd rule
+	 *
+	 * @return true if the point is inside the polygon
+	 */
+	public boolean contains(double x, double y) {
+		if ((x < minX) || (x > maxX) || (y < minY) || (y > maxY)) return false;
+		int s = slab(y);
+		boolean inside = false;
+		for (int k = slabStart[s]; k < slabStart[s + 1]; k++) {
+			int i = slabEdges[k];
+			int j = (i + 1) % n;
+			if (((ys[i] > y) != (ys[j] > y)) && (x < xs[i] + (y - ys[i]) *
+				(xs[j] - xs[i]) / (ys[j] - ys[i])))
+			{
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * @param p intersection of a source with the slicing plane
+	 * @return true if this polygon and p overlap, including when one contains
+	 *         the other
+	 */
+	public boolean intersects(SlicePolygon p) {
+		if ((p.maxX < minX) || (p.minX > maxX) || (p.maxY < minY) ||
+			(p.minY > maxY)) return false;
+		if (convex && p.convex) {
+			return !separatedByEdgesOf(xs, ys, n, p) && !separatedByEdgesOf(p.xs,
+				p.ys, p.n, p);
+		}
+		// One polygon inside the other - each loop of p can be
+		for (int k = 0; k < p.getNumberOfLoops(); k++) {
+			int i = p.getLoopStart(k);
+			if (contains(p.xs[i], p.ys[i])) return true;
+		}
+		if (p.contains(xs[0], ys[0])) return true;
+		// Otherwise their boundaries cross
+		for (int s = slab(p.minY); s <= slab(p.maxY); s++) {
+			for (int k = slabStart[s]; k < slabStart[s + 1]; k++) {
+				int i = slabEdges[k];
+				int j = (i + 1) % n;
+				if ((Math.max(xs[i], xs[j]) < p.minX) || (Math.min(xs[i], xs[j]) >
+					p.maxX)) continue;
+				for (int a = 0; a < p.n; a++) {
+					int b = p.next(a);
+					if (segmentsIntersect(xs[i], ys[i], xs[j], ys[j], p.xs[a], p.ys[a],
+						p.xs[b], p.ys[b])) return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Tries the normals of the edges of a convex polygon (ex, ey) as separating
+	 * axes between this polygon and p
+	 */
+	private boolean separatedByEdgesOf(double[] ex, double[] ey, int en,
+		SlicePolygon p)
+	{
+		for (int i = 0; i < en; i++) {
+			int j = (i + 1) % en;
+			double nx = ey[i] - ey[j];
+			double ny = ex[j] - ex[i];
+			double min0 = Double.POSITIVE_INFINITY, max0 = Double.NEGATIVE_INFINITY;
+			for (int k = 0; k < n; k++) {
+				double v = nx * xs[k] + ny * ys[k];
+				min0 = Math.min(min0, v);
+				max0 = Math.max(max0, v);
+			}
+			double min1 = Double.POSITIVE_INFINITY, max1 = Double.NEGATIVE_INFINITY;
+			for (int k = 0; k < p.n; k++) {
+				double v = nx * p.xs[k] + ny * p.ys[k];
+				min1 = Math.min(min1, v);
+				max1 = Math.max(max1, v);
+			}
+			if ((max0 < min1) || (max1 < min0)) return true;
+		}
+		return false;
+	}
+
+	static boolean segmentsIntersect(double ax, double ay, double bx, double by,
+		double cx, double cy, double dx, double dy)
+	{
+		double d1 = SlicePolygon.cross(cx, cy, dx, dy, ax, ay);
+		double d2 = SlicePolygon.cross(cx, cy, dx, dy, bx, by);
+		double d3 = SlicePolygon.cross(ax, ay, bx, by, cx, cy);
+		double d4 = SlicePolygon.cross(ax, ay, bx, by, dx, dy);
+		if ((((d1 > 0) && (d2 < 0)) || ((d1 < 0) && (d2 > 0))) && (((d3 > 0) &&
+			(d4 < 0)) || ((d3 < 0) && (d4 > 0)))) return true;
+		return ((d1 == 0) && onSegment(cx, cy, dx, dy, ax, ay)) || ((d2 == 0) &&
+			onSegment(cx, cy, dx, dy, bx, by)) || ((d3 == 0) && onSegment(ax, ay,
+				bx, by, cx, cy)) || ((d4 == 0) && onSegment(ax, ay, bx, by, dx, dy));
+	}
+
+	private static boolean onSegment(double ax, double ay, double bx, double by,
+		double px, double py)
+	{
+		return (px >= Math.min(ax, bx)) && (px <= Math.max(ax, bx)) && (py >= Math
+			.min(ay, by)) && (py <= Math.max(ay, by));
+	}
+
+}
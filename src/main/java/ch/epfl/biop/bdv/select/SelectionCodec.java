@@ -0,0 +1,279 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+/**
+ * Compact binary encoding of selections, used to save the current selection
+ * and the stored selections of a {@link SourceSelectorBehaviour}, see
+ * {@link SourceSelectorBehaviour#exportSelections(java.io.OutputStream)}.
+ * Sources are identified by a stable key, the setup id of their converter
+ * setup (which is the view setup id for a spimdata dataset), so that a
+ * selection can be restored in another session. The setup ids of sources
+ * shown with {@code BdvFunctions.show(Source)} are only stable if the sources
+ * are added in the same order : otherwise a selection is restored on other
+ * sources, which can't be detected. The setup ids of a selection
+ * are sorted and written as runs of consecutive ids : a selection of
+ * neighbouring tiles takes a few bytes. Sources without setup id, or sharing
+ * their setup id with another source (several datasets in the same viewer),
+ * are written by name. Format (big endian, varint = 7 bits per byte, see
+ * {@link VarInts}):
+ *
+ * <pre>
+ * header    : int MAGIC, byte VERSION, varint number of selections
+ * selection : byte kind (0 : current selection, 1 : stored selection),
+ *             UTF name (stored selections only), sources
+ * sources   : varint number of runs, runs x (varint gap from the end of the
+ *             previous run, varint run length),
+ *             varint number of names, names x UTF name
+ * </pre>
+ */
+
+final class SelectionCodec {
+
+	final static int MAGIC = 0x4253534C; // "BSSL"
+
+	final static byte VERSION = 1;
+
+	final static byte CURRENT = 0;
+
+	final static byte STORED = 1;
+
+	private final Collection<SourceAndConverter<?>> sources;
+
+	private final ToIntFunction<SourceAndConverter<?>> setupIds;
+
+	// Setup ids of several sources, which are identified by name instead
+	private final Set<Integer> sharedIds = new HashSet<>();
+
+	// Sources of the viewer by setup id : an array when ids are dense enough,
+	// a map otherwise
+	private SourceAndConverter<?>[] byIdArray = null;
+
+	private Map<Integer, SourceAndConverter<?>> byIdMap = null;
+
+	// Largest setup id of the sources of the viewer, -1 if none
+	private final int maxId;
+
+	// Built on the first source read by name
+	private Map<String, List<SourceAndConverter<?>>> byName = null;
+
+	private int unresolved = 0;
+
+	/**
+	 * @param sources sources of the viewer, against which selections are
+	 *          written and read
+	 * @param setupIds setup id of a source, -1 if it has none
+	 */
+	SelectionCodec(Collection<SourceAndConverter<?>> sources,
+		ToIntFunction<SourceAndConverter<?>> setupIds)
+	{
+		this.sources = sources;
+		this.setupIds = setupIds;
+		SourceAndConverter<?>[] array = sources.toArray(
+			new SourceAndConverter<?>[0]);
+		int[] ids = new int[array.length];
+		int maxId = -1;
+		for (int i = 0; i < array.length; i++) {
+			ids[i] = setupIds.applyAsInt(array[i]);
+			maxId = Math.max(maxId, ids[i]);
+		}
+		this.maxId = maxId;
+		int[] sorted = ids.clone();
+		Arrays.sort(sorted);
+		for (int i = 1; i < sorted.length; i++) {
+			if ((sorted[i] >= 0) && (sorted[i] == sorted[i - 1])) sharedIds.add(
+				sorted[i]);
+		}
+		if (maxId < 4 * array.length + 1024) {
+			byIdArray = new SourceAndConverter<?>[maxId + 1];
+		}
+		else {
+			byIdMap = new HashMap<>();
+		}
+		for (int i = 0; i < array.length; i++) {
+			if ((ids[i] < 0) || sharedIds.contains(ids[i])) continue;
+			if (byIdArray != null) byIdArray[ids[i]] = array[i];
+			else byIdMap.put(ids[i], array[i]);
+		}
+	}
+
+	private int keyOf(SourceAndConverter<?> sac) {
+		int id = setupIds.applyAsInt(sac);
+		return ((id < 0) || sharedIds.contains(id)) ? -1 : id;
+	}
+
+	private SourceAndConverter<?> sourceOf(int id) {
+		if (byIdArray != null) return id < byIdArray.length ? byIdArray[id]
+			: null;
+		return byIdMap.get(id);
+	}
+
+	void writeHeader(DataOutput out, int nSelections) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		VarInts.writeVarInt(out, nSelections);
+	}
+
+	/**
+	 * @param name name of a stored selection, null for the current selection
+	 * @param selection sources of the selection
+	 */
+	void writeSelection(DataOutput out, String name,
+		Collection<SourceAndConverter<?>> selection) throws IOException
+	{
+		if (name == null) {
+			out.writeByte(CURRENT);
+		}
+		else {
+			out.writeByte(STORED);
+			out.writeUTF(name);
+		}
+		writeSources(out, selection);
+	}
+
+	/**
+	 * Writes a set of sources : runs of setup ids, then names
+	 */
+	void writeSources(DataOutput out, Collection<SourceAndConverter<?>> selection)
+		throws IOException
+	{
+		int[] ids = new int[selection.size()];
+		int nIds = 0;
+		List<SourceAndConverter<?>> byNameSources = new ArrayList<>();
+		for (SourceAndConverter<?> sac : selection) {
+			int id = keyOf(sac);
+			if (id < 0) byNameSources.add(sac);
+			else ids[nIds++] = id;
+		}
+		Arrays.sort(ids, 0, nIds);
+
+		int nRuns = 0;
+		for (int i = 0; i < nIds; i++) {
+			if ((i == 0) || (ids[i] != ids[i - 1] + 1)) nRuns++;
+		}
+		VarInts.writeVarInt(out, nRuns);
+		int previousEnd = 0;
+		for (int i = 0; i < nIds;) {
+			int start = ids[i];
+			int j = i + 1;
+			while ((j < nIds) && (ids[j] == ids[j - 1] + 1)) {
+				j++;
+			}
+			VarInts.writeVarInt(out, start - previousEnd);
+			VarInts.writeVarInt(out, j - i);
+			previousEnd = start + (j - i);
+			i = j;
+		}
+		VarInts.writeVarInt(out, byNameSources.size());
+		for (SourceAndConverter<?> sac : byNameSources) {
+			out.writeUTF(sac.getSpimSource().getName());
+		}
+	}
+
+	/**
+	 * @return the number of selections which follow
+	 * @throws IOException if the stream is not a selection file
+	 */
+	int readHeader(DataInput in) throws IOException {
+		if (in.readInt() != MAGIC) throw new IOException(
+			"Not a selection file");
+		byte version = in.readByte();
+		if (version != VERSION) throw new IOException(
+			"Unsupported selection file version " + version);
+		return VarInts.readVarInt(in);
+	}
+
+	/**
+	 * Reads the next selection. Keys which do not match any source of the
+	 * viewer are skipped, see {@link SelectionCodec#getUnresolved()}.
+	 *
+	 * @param consumer receives the name of the selection, null for the current
+	 *          selection, and its sources
+	 */
+	void readSelection(DataInput in, SelectionConsumer consumer)
+		throws IOException
+	{
+		byte kind = in.readByte();
+		String name = kind == STORED ? in.readUTF() : null;
+		consumer.accept(name, readSources(in));
+	}
+
+	/**
+	 * Reads a set of sources written with
+	 * {@link SelectionCodec#writeSources(DataOutput, Collection)}
+	 *
+	 * @throws IOException if a run of setup ids is negative, overlaps the
+	 *           previous one or goes past the largest int
+	 */
+	Set<SourceAndConverter<?>> readSources(DataInput in) throws IOException {
+		Set<SourceAndConverter<?>> selection = new HashSet<>();
+		int nRuns = VarInts.readVarInt(in);
+		int previousEnd = 0;
+		for (int r = 0; r < nRuns; r++) {
+			int gap = VarInts.readVarInt(in);
+			int length = VarInts.readVarInt(in);
+			if ((gap < 0) || (length < 0)) throw new IOException(
+				"Malformed run of setup ids : gap " + gap + ", length " + length);
+			long start = (long) previousEnd + gap;
+			long end = start + length;
+			if (end > Integer.MAX_VALUE) throw new IOException(
+				"Run of setup ids out of range : " + start + " + " + length);
+			// Ids above the largest one of the viewer can't be resolved : they are
+			// counted without going through them
+			long lastKnown = Math.min(end, (long) maxId + 1);
+			for (int id = (int) start; id < lastKnown; id++) {
+				SourceAndConverter<?> sac = sourceOf(id);
+				if (sac != null) selection.add(sac);
+				else unresolved++;
+			}
+			unresolved = (int) Math.min(Integer.MAX_VALUE, unresolved + end - Math
+				.max(start, lastKnown));
+			previousEnd = (int) end;
+		}
+		int nNames = VarInts.readVarInt(in);
+		for (int k = 0; k < nNames; k++) {
+			List<SourceAndConverter<?>> named = getByName().get(in.readUTF());
+			if (named != null) selection.addAll(named);
+			else unresolved++;
+		}
+		return selection;
+	}
+
+	private Map<String, List<SourceAndConverter<?>>> getByName() {
+		if (byName == null) {
+			byName = new HashMap<>();
+			for (SourceAndConverter<?> sac : sources) {
+				byName.computeIfAbsent(sac.getSpimSource().getName(),
+					k -> new ArrayList<>(1)).add(sac);
+			}
+		}
+		return byName;
+	}
+
+	/**
+	 * @return the number of keys read which did not match any source
+	 */
+	int getUnresolved() {
+		return unresolved;
+	}
+
+	interface SelectionConsumer {
+
+		void accept(String name, Set<SourceAndConverter<?>> sources)
+			throws IOException;
+	}
+
+}
@@ -0,0 +1,97 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Accumulates modifications of the selection within a transaction, see
+ * {@link SourceSelectorBehaviour#modify(java.util.function.Consumer)}. Only the
+ * difference with the selection at the start of the transaction is kept, and
+ * it is applied as a single change when the transaction ends : sources are
+ * validated once, listeners are notified once of the removed and of the added
+ * sources, and the overlay is repainted once, whatever the number of
+ * operations.
+ */
+
+public final class SelectionEditor {
+
+	private final SourceSelectorBehaviour ssb;
+
+	private final Set<SourceAndConverter<?>> added = new HashSet<>();
+
+	private final Set<SourceAndConverter<?>> removed = new HashSet<>();
+
+	// If true, the selection is replaced by the added sources
+	private boolean cleared = false;
+
+	SelectionEditor(SourceSelectorBehaviour ssb) {
+		this.ssb = ssb;
+	}
+
+	public SelectionEditor add(SourceAndConverter<?> sac) {
+		removed.remove(sac);
+		added.add(sac);
+		return this;
+	}
+
+	public SelectionEditor add(Collection<SourceAndConverter<?>> sources) {
+		sources.forEach(this::add);
+		return this;
+	}
+
+	public SelectionEditor remove(SourceAndConverter<?> sac) {
+		added.remove(sac);
+		if (!cleared) removed.add(sac);
+		return this;
+	}
+
+	public SelectionEditor remove(Collection<SourceAndConverter<?>> sources) {
+		sources.forEach(this::remove);
+		return this;
+	}
+
+	public SelectionEditor clear() {
+		cleared = true;
+		added.clear();
+		removed.clear();
+		return this;
+	}
+
+	/**
+	 * Replaces the selection
+	 *
+	 * @param sources new selection
+	 * @return this editor
+	 */
+	public SelectionEditor set(Collection<SourceAndConverter<?>> sources) {
+		clear();
+		return add(sources);
+	}
+
+	/**
+	 * @param sac source
+	 * @return true if the source will be selected once the transaction is
+	 *         applied
+	 */
+	public boolean isSelected(SourceAndConverter<?> sac) {
+		if (added.contains(sac)) return true;
+		if (cleared || removed.contains(sac)) return false;
+		return ssb.selectedSources.contains(sac);
+	}
+
+	/**
+	 * Applies the accumulated modifications as one change of the selection,
+	 * see {@link SourceSelectorBehaviour#applyEdit(Set, Set, boolean, String)}
+	 *
+	 * @param eventSource origin of the modification
+	 */
+	void apply(String eventSource) {
+		if (!cleared && added.isEmpty() && removed.isEmpty()) return;
+		ssb.applyEdit(new HashSet<>(added), new HashSet<>(removed), cleared,
+			eventSource);
+	}
+
+}
@@ -0,0 +1,243 @@
+package ch.epfl.biop.bdv.select;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Undo / redo log of the selection. Each step stores the ids (see
+ * {@link SourceIdRegistry}) of the sources it actually added and removed, so
+ * undoing or redoing a step costs the size of its delta, not the size of the
+ * selection. Every few steps, the selection is also stored as a bit set
+ * checkpoint, so that going back many steps at once replays at most a few
+ * deltas from the nearest checkpoint. A checkpoint is only valid as long as
+ * the selection changes by the recorded deltas : when it changes otherwise
+ * (changes shared by another viewer, sources hidden, undo steps which could
+ * not be fully applied), {@link SelectionHistory#invalidateCheckpoints()}
+ * drops them, and moves replay the deltas from the current selection. So
+ * moving n steps at once gives the same selection as n single steps. The
+ * oldest steps are dropped when the log exceeds its memory cap. Not thread
+ * safe : calls are synchronized by {@link SourceSelectorBehaviour}.
+ */
+
+final class SelectionHistory {
+
+	static final class Step {
+
+		final int[] added, removed;
+
+		// Selection after this step, for one step out of checkpointInterval
+		BitSet checkpoint;
+
+		Step(int[] added, int[] removed) {
+			this.added = added;
+			this.removed = removed;
+		}
+
+		long bytes() {
+			long bytes = 64 + 4L * (added.length + removed.length);
+			if (checkpoint != null) bytes += 32 + checkpoint.size() / 8;
+			return bytes;
+		}
+	}
+
+	private final List<Step> steps = new ArrayList<>();
+
+	// Number of steps applied : steps[position, size) can be redone
+	private int position = 0;
+
+	private long bytes = 0;
+
+	private long maxBytes;
+
+	private int checkpointInterval;
+
+	private int stepsSinceCheckpoint = 0;
+
+	private int nCheckpoints = 0;
+
+	/**
+	 * @param maxBytes approximate memory cap of the log, in bytes
+	 * @param checkpointInterval number of steps between two checkpoints
+	 */
+	SelectionHistory(long maxBytes, int checkpointInterval) {
+		this.maxBytes = maxBytes;
+		this.checkpointInterval = Math.max(1, checkpointInterval);
+	}
+
+	void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	long getMaxBytes() {
+		return maxBytes;
+	}
+
+	void setCheckpointInterval(int checkpointInterval) {
+		this.checkpointInterval = Math.max(1, checkpointInterval);
+	}
+
+	long getBytes() {
+		return bytes;
+	}
+
+	int size() {
+		return steps.size();
+	}
+
+	int getPosition() {
+		return position;
+	}
+
+	boolean canUndo() {
+		return position > 0;
+	}
+
+	boolean canRedo() {
+		return position < steps.size();
+	}
+
+	/**
+	 * Appends a step after the current position, dropping the steps which
+	 * could be redone
+	 *
+	 * @param added ids of the sources added to the selection
+	 * @param removed ids of the sources removed from the selection
+	 * @param selection supplies the selection after this step, only called when
+	 *          a checkpoint is due
+	 */
+	void record(int[] added, int[] removed, Supplier<BitSet> selection) {
+		if ((added.length == 0) && (removed.length == 0)) return;
+		while (steps.size() > position) {
+			removeStep(steps.size() - 1);
+		}
+		Step step = new Step(added, removed);
+		if (++stepsSinceCheckpoint >= checkpointInterval) {
+			step.checkpoint = selection.get();
+			stepsSinceCheckpoint = 0;
+			nCheckpoints++;
+		}
+		steps.add(step);
+		bytes += step.bytes();
+		position++;
+		trim();
+	}
+
+	private void trim() {
+		// The current step is kept whatever its size
+		while ((bytes > maxBytes) && (position > 1)) {
+			removeStep(0);
+			position--;
+		}
+	}
+
+	private void removeStep(int index) {
+		Step step = steps.remove(index);
+		bytes -= step.bytes();
+		if (step.checkpoint != null) nCheckpoints--;
+	}
+
+	/**
+	 * Drops the checkpoints, to be called when the selection has been modified
+	 * by something else than the recorded steps
+	 */
+	void invalidateCheckpoints() {
+		if (nCheckpoints > 0) {
+			for (Step step : steps) {
+				if (step.checkpoint != null) {
+					bytes -= step.bytes();
+					step.checkpoint = null;
+					bytes += step.bytes();
+				}
+			}
+			nCheckpoints = 0;
+		}
+		stepsSinceCheckpoint = 0;
+	}
+
+	int getNumberOfCheckpoints() {
+		return nCheckpoints;
+	}
+
+	/**
+	 * @return the step to revert, null if there is nothing to undo
+	 */
+	Step undo() {
+		if (!canUndo()) return null;
+		return steps.get(--position);
+	}
+
+	/**
+	 * @return the step to apply again, null if there is nothing to redo
+	 */
+	Step redo() {
+		if (!canRedo()) return null;
+		return steps.get(position++);
+	}
+
+	/**
+	 * Moves the current position, and computes the selection there
+	 *
+	 * @param target position to move to, clamped to the log
+	 * @param current selection at the current position, modified in place when
+	 *          walking from the current position
+	 * @return the selection at the target position
+	 */
+	BitSet moveTo(int target, BitSet current) {
+		target = Math.max(0, Math.min(steps.size(), target));
+		// Nearest checkpoint at or before the target
+		int checkpoint = target;
+		while ((checkpoint > 0) && (steps.get(checkpoint - 1).checkpoint == null)) {
+			checkpoint--;
+		}
+		BitSet selection;
+		int from;
+		if ((checkpoint > 0) && (target - checkpoint < Math.abs(target -
+			position)))
+		{
+			selection = (BitSet) steps.get(checkpoint - 1).checkpoint.clone();
+			from = checkpoint;
+		}
+		else {
+			selection = current;
+			from = position;
+		}
+		// Steps which can't be fully applied show that the selection was changed
+		// by something else than the log, as single undo or redo steps do
+		boolean consistent = true;
+		for (int i = from; i < target; i++) {
+			consistent &= apply(selection, steps.get(i).removed, false);
+			consistent &= apply(selection, steps.get(i).added, true);
+		}
+		for (int i = from - 1; i >= target; i--) {
+			consistent &= apply(selection, steps.get(i).added, false);
+			consistent &= apply(selection, steps.get(i).removed, true);
+		}
+		position = target;
+		if (!consistent) invalidateCheckpoints();
+		return selection;
+	}
+
+	/**
+	 * @return true if all ids changed
+	 */
+	private static boolean apply(BitSet selection, int[] ids, boolean value) {
+		boolean changed = true;
+		for (int id : ids) {
+			changed &= selection.get(id) != value;
+			selection.set(id, value);
+		}
+		return changed;
+	}
+
+	void clear() {
+		steps.clear();
+		position = 0;
+		bytes = 0;
+		stepsSinceCheckpoint = 0;
+		nCheckpoints = 0;
+	}
+
+}
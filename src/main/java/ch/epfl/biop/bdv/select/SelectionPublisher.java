@@ -0,0 +1,339 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.ViewerStateChange;
+import bdv.viewer.ViewerStateChangeListener;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static bdv.viewer.ViewerStateChange.NUM_SOURCES_CHANGED;
+
+/**
+ * Streams the changes of the selection of a {@link SourceSelectorBehaviour}
+ * to external processes (another JVM, a python script...) over a local
+ * socket, bound to the loopback address only. Each connected client first
+ * receives the whole selection, then the sources added to and removed from
+ * it. Sources are identified by their setup id, as in
+ * {@link SourceSelectorBehaviour#exportSelections(java.io.OutputStream)}.
+ * Selection events never wait for the clients : each client has its own
+ * sender thread, and the changes not sent yet are merged, so that a burst of
+ * events is sent as one batch. If a client falls too far behind, its pending
+ * changes are dropped and it receives the whole selection again. Format (big
+ * endian, varint = 7 bits per byte, see {@link VarInts}) :
+ *
+ * <pre>
+ * header  : int MAGIC, byte VERSION
+ * message : byte mode (0 : SET, the whole selection, 1 : ADD, 2 : REMOVE),
+ *           varint number of runs, runs x (varint gap from the end of the
+ *           previous run, varint run length of consecutive setup ids),
+ *           varint number of names, names x UTF name (sources without a
+ *           unique setup id)
+ * </pre>
+ *
+ * Usage : {@code SelectionPublisher publisher = new SelectionPublisher(ssb,
+ * 0); int port = publisher.getPort(); ... publisher.close();}
+ */
+
+public class SelectionPublisher implements SelectedSourcesListener,
+	ViewerStateChangeListener, Closeable
+{
+
+	final static int MAGIC = 0x42535350; // "BSSP"
+
+	final static byte VERSION = 1;
+
+	final static byte SET = 0;
+
+	final static byte ADD = 1;
+
+	final static byte REMOVE = 2;
+
+	private final SourceSelectorBehaviour ssb;
+
+	private final Supplier<Set<SourceAndConverter<?>>> selection;
+
+	private final Supplier<SelectionCodec> codecs;
+
+	private volatile SelectionCodec codec = null;
+
+	private final ServerSocket serverSocket;
+
+	private final List<Client> clients = new CopyOnWriteArrayList<>();
+
+	private final AtomicInteger count = new AtomicInteger();
+
+	private volatile int maxPendingSources = 1 << 16;
+
+	private volatile long batchMillis = 10;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Starts publishing the selection
+	 *
+	 * @param ssb selector whose selection is published
+	 * @param port local port, 0 to pick a free one, see
+	 *          {@link SelectionPublisher#getPort()}
+	 * @throws IOException if the port can't be opened
+	 */
+	public SelectionPublisher(SourceSelectorBehaviour ssb, int port)
+		throws IOException
+	{
+		this(ssb, port, ssb::getSelectedSources, ssb::createSelectionCodec);
+		ssb.state.changeListeners().add(this);
+		ssb.addSelectedSourcesListener(this);
+	}
+
+	/**
+	 * @param selection gives a copy of the current selection
+	 * @param codecs gives a codec for the current sources
+	 */
+	SelectionPublisher(SourceSelectorBehaviour ssb, int port,
+		Supplier<Set<SourceAndConverter<?>>> selection,
+		Supplier<SelectionCodec> codecs) throws IOException
+	{
+		this.ssb = ssb;
+		this.selection = selection;
+		this.codecs = codecs;
+		serverSocket = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(this::accept, "bdv-selection-publisher-" +
+			serverSocket.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return the local port clients connect to
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return the number of connected clients
+	 */
+	public int getNumberOfClients() {
+		return clients.size();
+	}
+
+	/**
+	 * @param maxPendingSources number of changed sources above which the
+	 *          pending changes of a client are replaced by the whole selection
+	 */
+	public void setMaxPendingSources(int maxPendingSources) {
+		this.maxPendingSources = maxPendingSources;
+	}
+
+	/**
+	 * @param batchMillis time during which changes are accumulated before being
+	 *          sent, to batch bursts of events
+	 */
+	public void setBatchMillis(long batchMillis) {
+		this.batchMillis = batchMillis;
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Client client = new Client(socket);
+				clients.add(client);
+				Thread sender = new Thread(client::send, "bdv-selection-publisher-" +
+					getPort() + "-client-" + count.incrementAndGet());
+				sender.setDaemon(true);
+				sender.start();
+			}
+			catch (IOException e) {
+				if (!closed) System.err.println(
+					"Selection publisher : could not accept a client : " + e
+						.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void selectedSourcesUpdated(
+		Collection<SourceAndConverter<?>> selectedSources, String triggerMode)
+	{}
+
+	@Override
+	public void lastSelectionEvent(
+		Collection<SourceAndConverter<?>> lastSelectedSources, String mode,
+		String triggerMode)
+	{
+		for (Client client : clients) {
+			client.offer(lastSelectedSources, mode);
+		}
+	}
+
+	@Override
+	public void viewerStateChanged(ViewerStateChange change) {
+		// Setup ids shared by several sources may have changed
+		if (change.equals(NUM_SOURCES_CHANGED)) codec = null;
+	}
+
+	private SelectionCodec getCodec() {
+		SelectionCodec c = codec;
+		if (c == null) {
+			c = codecs.get();
+			codec = c;
+		}
+		return c;
+	}
+
+	/**
+	 * Stops publishing and disconnects the clients
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (ssb != null) {
+			ssb.removeSelectedSourcesListener(this);
+			ssb.state.changeListeners().remove(this);
+		}
+		try {
+			serverSocket.close();
+		}
+		catch (IOException e) {
+			System.err.println("Selection publisher : " + e.getMessage());
+		}
+		for (Client client : clients) {
+			client.close();
+		}
+	}
+
+	/**
+	 * A connected client, and the changes which have not been sent to it yet
+	 */
+	private class Client {
+
+		final Socket socket;
+
+		final Set<SourceAndConverter<?>> added = new HashSet<>();
+
+		final Set<SourceAndConverter<?>> removed = new HashSet<>();
+
+		// If true, the whole selection is sent instead of the changes
+		boolean resync = true;
+
+		boolean disconnected = false;
+
+		Client(Socket socket) {
+			this.socket = socket;
+		}
+
+		/**
+		 * Called by selection events : never waits for the client
+		 */
+		synchronized void offer(Collection<SourceAndConverter<?>> sources,
+			String mode)
+		{
+			if (resync) return; // the whole selection will be sent anyway
+			switch (mode) {
+				case SourceSelectorBehaviour.ADD:
+					for (SourceAndConverter<?> sac : sources) {
+						removed.remove(sac);
+						added.add(sac);
+					}
+					break;
+				case SourceSelectorBehaviour.REMOVE:
+					for (SourceAndConverter<?> sac : sources) {
+						added.remove(sac);
+						removed.add(sac);
+					}
+					break;
+				default: // SET
+					resync = true;
+					break;
+			}
+			if (added.size() + removed.size() > maxPendingSources) resync = true;
+			if (resync) {
+				added.clear();
+				removed.clear();
+			}
+			notifyAll();
+		}
+
+		void send() {
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream(), 1 << 16));
+				out.writeInt(MAGIC);
+				out.writeByte(VERSION);
+				while (true) {
+					synchronized (this) {
+						while (!disconnected && !resync && added.isEmpty() && removed
+							.isEmpty()) wait();
+						if (disconnected) return;
+					}
+					Thread.sleep(batchMillis);
+					Set<SourceAndConverter<?>> batchAdded, batchRemoved;
+					boolean batchResync;
+					synchronized (this) {
+						batchResync = resync;
+						batchAdded = new HashSet<>(added);
+						batchRemoved = new HashSet<>(removed);
+						resync = false;
+						added.clear();
+						removed.clear();
+					}
+					SelectionCodec c = getCodec();
+					if (batchResync) {
+						// Changes offered from now on apply on top of this selection
+						out.writeByte(SET);
+						c.writeSources(out, selection.get());
+					}
+					else {
+						if (!batchRemoved.isEmpty()) {
+							out.writeByte(REMOVE);
+							c.writeSources(out, batchRemoved);
+						}
+						if (!batchAdded.isEmpty()) {
+							out.writeByte(ADD);
+							c.writeSources(out, batchAdded);
+						}
+					}
+					out.flush();
+				}
+			}
+			catch (IOException e) {
+				// The client disconnected
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finally {
+				clients.remove(this);
+				close();
+			}
+		}
+
+		void close() {
+			synchronized (this) {
+				disconnected = true;
+				notifyAll();
+			}
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+
+}
@@ -0,0 +1,306 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Records the selection interactions of a {@link SourceSelectorBehaviour} in a
+ * compact binary log, which can be replayed headless with
+ * {@link SelectionTraceReplay} to measure the latency of a new version on a
+ * realistic workload. Install it with
+ * {@link SourceSelectorBehaviour#setTraceRecorder(SelectionTraceRecorder)}.
+ * Recorded are : calls to
+ * {@link SourceSelectorBehaviour#processSelectionModificationEvent}, the
+ * interactions with the mouse (rubber band rectangles, point picks, lassos
+ * and volume selections) with the view they were made in, and toggles of the
+ * selection mode. Sources are written once with their name, then referred to
+ * by a small integer id. Format (big endian, varint = 7 bits per byte, see
+ * {@link VarInts}):
+ *
+ * <pre>
+ * header    : int MAGIC, byte VERSION
+ * record    : byte type, varlong microseconds since previous record, payload
+ * view      : 2 x int (canvas width, height), int timepoint,
+ *             12 x double (row packed viewer transform)
+ * SOURCE    : varint id, UTF name
+ * EVENT     : byte mode, UTF eventSource, varint n, n x varint id
+ * RECTANGLE : byte mode, 4 x int (x0, y0, x1, y1), view
+ * TOGGLE    : boolean enabled
+ * PICK      : byte mode, 2 x int (x, y), view
+ * POLYGON   : byte mode, varint n, n x 2 x double (x, y), view
+ * VOLUME    : byte mode, 4 x int (x0, y0, x1, y1), 2 x double (zMin, zMax),
+ *             view
+ * </pre>
+ *
+ * Version 1 traces have no PICK, POLYGON nor VOLUME record.
+ */
+
+public class SelectionTraceRecorder implements Closeable {
+
+	final static int MAGIC = 0x42535452; // "BSTR"
+
+	final static byte VERSION = 2;
+
+	final static byte SOURCE = 1;
+
+	final static byte EVENT = 2;
+
+	final static byte RECTANGLE = 3;
+
+	final static byte TOGGLE = 4;
+
+	final static byte PICK = 5;
+
+	final static byte POLYGON = 6;
+
+	final static byte VOLUME = 7;
+
+	private final DataOutputStream out;
+
+	// Weak ids : a recorder left installed does not keep removed sources alive
+	private final SourceIdRegistry ids = new SourceIdRegistry();
+
+	// Ids of the sources whose SOURCE record has been written
+	private final BitSet written = new BitSet();
+
+	private long lastTime = System.nanoTime();
+
+	private boolean closed = false;
+
+	public SelectionTraceRecorder(File file) throws IOException {
+		this(new FileOutputStream(file));
+	}
+
+	public SelectionTraceRecorder(OutputStream os) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(os));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+	}
+
+	static byte modeToByte(String mode) {
+		switch (mode) {
+			case SourceSelectorBehaviour.SET:
+				return 0;
+			case SourceSelectorBehaviour.ADD:
+				return 1;
+			case SourceSelectorBehaviour.REMOVE:
+				return 2;
+			default:
+				return -1;
+		}
+	}
+
+	static String byteToMode(byte mode) {
+		switch (mode) {
+			case 0:
+				return SourceSelectorBehaviour.SET;
+			case 1:
+				return SourceSelectorBehaviour.ADD;
+			case 2:
+				return SourceSelectorBehaviour.REMOVE;
+			default:
+				return "UNKNOWN";
+		}
+	}
+
+	private void header(byte type) throws IOException {
+		long now = System.nanoTime();
+		out.writeByte(type);
+		VarInts.writeVarLong(out, Math.max(0, (now - lastTime) / 1000));
+		lastTime = now;
+	}
+
+	private int idOf(SourceAndConverter<?> sac) throws IOException {
+		int id = ids.getId(sac);
+		if (!written.get(id)) {
+			written.set(id);
+			header(SOURCE);
+			VarInts.writeVarInt(out, id);
+			out.writeUTF(sac.getSpimSource().getName());
+		}
+		return id;
+	}
+
+	private void failed(IOException e) {
+		System.err.println("Selection trace recording stopped : " + e
+			.getMessage());
+		try {
+			close();
+		}
+		catch (IOException ignored) {}
+	}
+
+	/**
+	 * Records a selection modification event
+	 *
+	 * @param sources sources involved in the event
+	 * @param mode see {@link SourceSelectorBehaviour#SET} ADD REMOVE
+	 * @param eventSource origin of the event
+	 */
+	public synchronized void selectionEvent(
+		Collection<SourceAndConverter<?>> sources, String mode, String eventSource)
+	{
+		if (closed) return;
+		try {
+			int[] sourceIds = new int[sources.size()];
+			int i = 0;
+			for (SourceAndConverter<?> sac : sources) {
+				sourceIds[i++] = idOf(sac);
+			}
+			header(EVENT);
+			out.writeByte(modeToByte(mode));
+			out.writeUTF(eventSource);
+			VarInts.writeVarInt(out, sourceIds.length);
+			for (int id : sourceIds) {
+				VarInts.writeVarInt(out, id);
+			}
+		}
+		catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Records a rubber band rectangle drawn in the viewer
+	 */
+	public synchronized void rectangle(int x0, int y0, int x1, int y1,
+		String mode, AffineTransform3D viewerTransform, int canvasWidth,
+		int canvasHeight, int timepoint)
+	{
+		if (closed) return;
+		try {
+			header(RECTANGLE);
+			out.writeByte(modeToByte(mode));
+			out.writeInt(x0);
+			out.writeInt(y0);
+			out.writeInt(x1);
+			out.writeInt(y1);
+			writeView(viewerTransform, canvasWidth, canvasHeight, timepoint);
+		}
+		catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Records a click which picks a single source
+	 */
+	public synchronized void pick(int x, int y, String mode,
+		AffineTransform3D viewerTransform, int canvasWidth, int canvasHeight,
+		int timepoint)
+	{
+		if (closed) return;
+		try {
+			header(PICK);
+			out.writeByte(modeToByte(mode));
+			out.writeInt(x);
+			out.writeInt(y);
+			writeView(viewerTransform, canvasWidth, canvasHeight, timepoint);
+		}
+		catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Records a lasso or a polygon closed in the viewer
+	 *
+	 * @param xs x coordinates of the vertices
+	 * @param ys y coordinates of the vertices
+	 * @param n number of vertices
+	 */
+	public synchronized void polygon(double[] xs, double[] ys, int n,
+		String mode, AffineTransform3D viewerTransform, int canvasWidth,
+		int canvasHeight, int timepoint)
+	{
+		if (closed) return;
+		try {
+			header(POLYGON);
+			out.writeByte(modeToByte(mode));
+			VarInts.writeVarInt(out, n);
+			for (int i = 0; i < n; i++) {
+				out.writeDouble(xs[i]);
+				out.writeDouble(ys[i]);
+			}
+			writeView(viewerTransform, canvasWidth, canvasHeight, timepoint);
+		}
+		catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Records a rectangle selecting the sources in a volume
+	 *
+	 * @param zMin lower bound of the depth range, in viewer coordinates
+	 * @param zMax upper bound of the depth range
+	 */
+	public synchronized void volume(int x0, int y0, int x1, int y1,
+		double zMin, double zMax, String mode, AffineTransform3D viewerTransform,
+		int canvasWidth, int canvasHeight, int timepoint)
+	{
+		if (closed) return;
+		try {
+			header(VOLUME);
+			out.writeByte(modeToByte(mode));
+			out.writeInt(x0);
+			out.writeInt(y0);
+			out.writeInt(x1);
+			out.writeInt(y1);
+			out.writeDouble(zMin);
+			out.writeDouble(zMax);
+			writeView(viewerTransform, canvasWidth, canvasHeight, timepoint);
+		}
+		catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	private void writeView(AffineTransform3D viewerTransform, int canvasWidth,
+		int canvasHeight, int timepoint) throws IOException
+	{
+		out.writeInt(canvasWidth);
+		out.writeInt(canvasHeight);
+		out.writeInt(timepoint);
+		for (double v : viewerTransform.getRowPackedCopy()) {
+			out.writeDouble(v);
+		}
+	}
+
+	/**
+	 * Records a toggle of the selection mode
+	 */
+	public synchronized void toggle(boolean enabled) {
+		if (closed) return;
+		try {
+			header(TOGGLE);
+			out.writeBoolean(enabled);
+		}
+		catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	public synchronized void flush() throws IOException {
+		if (!closed) out.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		written.clear();
+		out.close();
+	}
+
+}
@@ -0,0 +1,427 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.BigDataViewer;
+import bdv.tools.brightness.ConverterSetup;
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.BasicViewerState;
+import bdv.viewer.DisplayMode;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.SynchronizedViewerState;
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.XmlIoSpimData;
+import net.imglib2.FinalInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.ConstantUtils;
+
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Headless replay of a selection trace written by
+ * {@link SelectionTraceRecorder}. The trace is re-executed against a set of
+ * sources, either loaded from a BigDataViewer xml file or synthetic, without
+ * any viewer : selection events go through
+ * {@link SourceSelectorBehaviour#processSelectionModificationEvent} of a
+ * selector built on a viewer state where all the sources are visible, and
+ * mouse interactions are hit-tested for the recorded view as the overlay does
+ * : rubber band rectangles, point picks and lassos on the
+ * {@link SourceGeometryService.Frame} computed by the
+ * {@link SourceSelectionEngine}, volume selections on the
+ * {@link SourceBoundsIndex} of the engine. The latency of each step is reported as percentiles.
+ * Recorded sources are matched by name : the ones which can't be found are
+ * counted as unresolved and left out of the replayed events. Command line
+ * usage:
+ *
+ * <pre>
+ * SelectionTraceReplay trace.bstr src/test/resources/mri-stack.xml
+ * SelectionTraceReplay trace.bstr synthetic:10000
+ * </pre>
+ */
+
+public class SelectionTraceReplay {
+
+	final List<SourceAndConverter<?>> sources;
+
+	final Map<String, SourceAndConverter<?>> sourcesByName = new HashMap<>();
+
+	final SourceSelectionEngine engine;
+
+	/**
+	 * @param sources sources the trace is replayed against, all considered
+	 *          visible
+	 */
+	public SelectionTraceReplay(List<SourceAndConverter<?>> sources) {
+		this.sources = sources;
+		for (SourceAndConverter<?> sac : sources) {
+			sourcesByName.putIfAbsent(sac.getSpimSource().getName(), sac);
+		}
+		engine = new SourceSelectionEngine(sources);
+	}
+
+	public Report replay(File trace) throws IOException {
+		try (InputStream is = new FileInputStream(trace)) {
+			return replay(is);
+		}
+	}
+
+	public Report replay(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+		if (in.readInt() != SelectionTraceRecorder.MAGIC) throw new IOException(
+			"Not a selection trace");
+		byte version = in.readByte();
+		// Version 1 has a subset of the records of the current version
+		if ((version < 1) || (version > SelectionTraceRecorder.VERSION))
+			throw new IOException(
+			"Unsupported selection trace version " + version);
+
+		// Selector without viewer : all the sources are visible
+		SynchronizedViewerState state = new SynchronizedViewerState(
+			new BasicViewerState());
+		state.setDisplayMode(DisplayMode.FUSED);
+		state.addSources(sources);
+		state.setSourcesActive(sources, true);
+		SourceSelectorBehaviour ssb = new SourceSelectorBehaviour(state);
+		try {
+			Report report = replay(in, ssb);
+			report.selection = ssb.getSelectedSources();
+			return report;
+		}
+		finally {
+			ssb.remove();
+		}
+	}
+
+	private Report replay(DataInputStream in, SourceSelectorBehaviour ssb)
+		throws IOException
+	{
+		Map<Integer, SourceAndConverter<?>> idToSource = new HashMap<>();
+		Report report = new Report();
+		SourceGeometryService.Frame frame = null;
+
+		while (true) {
+			byte type;
+			try {
+				type = in.readByte();
+			}
+			catch (EOFException e) {
+				break;
+			}
+			VarInts.readVarLong(in); // time since previous record, unused here
+			switch (type) {
+				case SelectionTraceRecorder.SOURCE: {
+					int id = VarInts.readVarInt(in);
+					String name = in.readUTF();
+					SourceAndConverter<?> sac = sourcesByName.get(name);
+					if (sac != null) idToSource.put(id, sac);
+					else report.unresolved++;
+					break;
+				}
+				case SelectionTraceRecorder.EVENT: {
+					String mode = SelectionTraceRecorder.byteToMode(in.readByte());
+					String eventSource = in.readUTF();
+					int n = VarInts.readVarInt(in);
+					Set<SourceAndConverter<?>> involved = new HashSet<>();
+					for (int i = 0; i < n; i++) {
+						// Unresolved sources are left out
+						SourceAndConverter<?> sac = idToSource.get(VarInts.readVarInt(in));
+						if (sac != null) involved.add(sac);
+					}
+					long t0 = System.nanoTime();
+					ssb.processSelectionModificationEvent(involved, mode, eventSource);
+					report.selectionEvent.add(System.nanoTime() - t0);
+					break;
+				}
+				// Interactions : the selection is modified by the event which follows
+				case SelectionTraceRecorder.RECTANGLE: {
+					in.readByte(); // mode
+					int x0 = in.readInt();
+					int y0 = in.readInt();
+					int x1 = in.readInt();
+					int y1 = in.readInt();
+					frame = getFrame(frame, new View(in), report);
+
+					long t0 = System.nanoTime();
+					Set<SourceAndConverter<?>> hits = frame.getSourcesIntersecting(
+						new Rectangle2D.Double(Math.min(x0, x1), Math.min(y0, y1), Math
+							.abs(x1 - x0), Math.abs(y1 - y0)));
+					report.hitTest.add(System.nanoTime() - t0);
+					report.hits.add(hits.size());
+					break;
+				}
+				case SelectionTraceRecorder.PICK: {
+					in.readByte(); // mode
+					int x = in.readInt();
+					int y = in.readInt();
+					frame = getFrame(frame, new View(in), report);
+
+					long t0 = System.nanoTime();
+					List<SourceAndConverter<?>> candidates = frame.getSourcesAt(x, y);
+					report.hitTest.add(System.nanoTime() - t0);
+					report.hits.add(candidates.isEmpty() ? 0 : 1);
+					break;
+				}
+				case SelectionTraceRecorder.POLYGON: {
+					in.readByte(); // mode
+					int n = VarInts.readVarInt(in);
+					double[] xs = new double[n];
+					double[] ys = new double[n];
+					for (int i = 0; i < n; i++) {
+						xs[i] = in.readDouble();
+						ys[i] = in.readDouble();
+					}
+					frame = getFrame(frame, new View(in), report);
+
+					long t0 = System.nanoTime();
+					Set<SourceAndConverter<?>> hits = frame.getSourcesIntersecting(
+						new ScreenPolygon(xs, ys, n));
+					report.hitTest.add(System.nanoTime() - t0);
+					report.hits.add(hits.size());
+					break;
+				}
+				case SelectionTraceRecorder.VOLUME: {
+					in.readByte(); // mode
+					int x0 = in.readInt();
+					int y0 = in.readInt();
+					int x1 = in.readInt();
+					int y1 = in.readInt();
+					double zMin = in.readDouble();
+					double zMax = in.readDouble();
+					View view = new View(in);
+					SourceBoundsIndex index = engine.getBoundsIndex(view.timepoint);
+
+					long t0 = System.nanoTime();
+					Set<SourceAndConverter<?>> hits = SourceSelectionEngine
+						.selectInVolume(index, view.viewerTransform, x0, y0, x1, y1, zMin,
+							zMax);
+					report.hitTest.add(System.nanoTime() - t0);
+					report.hits.add(hits.size());
+					break;
+				}
+				case SelectionTraceRecorder.TOGGLE:
+					in.readBoolean();
+					report.toggles++;
+					break;
+				default:
+					throw new IOException("Unknown selection trace record type " + type);
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * @param frame previous frame, reused if it is still valid as in
+	 *          {@link SourceGeometryService#getFrame(int, int)}
+	 * @return the frame for this view, whose build time is reported if it is
+	 *         a new one
+	 */
+	private SourceGeometryService.Frame getFrame(
+		SourceGeometryService.Frame frame, View view, Report report)
+	{
+		if ((frame != null) && frame.isValidFor(view.viewerTransform,
+			view.canvasWidth, view.canvasHeight, view.timepoint, 0) && frame
+				.getSlice().isUpToDate())
+		{
+			return frame;
+		}
+		List<SourceBox> boxes = engine.getBoxes(view.timepoint);
+		long t0 = System.nanoTime();
+		frame = new SourceGeometryService.Frame(boxes, view.viewerTransform,
+			view.canvasWidth, view.canvasHeight, view.timepoint, 0);
+		report.frame.add(System.nanoTime() - t0);
+		return frame;
+	}
+
+	/**
+	 * View an interaction was made in, see {@link SelectionTraceRecorder}
+	 */
+	static class View {
+
+		final int canvasWidth, canvasHeight, timepoint;
+
+		final AffineTransform3D viewerTransform = new AffineTransform3D();
+
+		View(DataInputStream in) throws IOException {
+			canvasWidth = in.readInt();
+			canvasHeight = in.readInt();
+			timepoint = in.readInt();
+			double[] m = new double[12];
+			for (int i = 0; i < 12; i++) {
+				m[i] = in.readDouble();
+			}
+			viewerTransform.set(m);
+		}
+	}
+
+	/**
+	 * Loads the sources of a BigDataViewer xml dataset, without displaying them
+	 *
+	 * @param xmlPath path to the xml file
+	 * @return the sources of the dataset
+	 * @throws Exception if the dataset can't be loaded
+	 */
+	public static List<SourceAndConverter<?>> loadSources(String xmlPath)
+		throws Exception
+	{
+		SpimData sd = new XmlIoSpimData().load(xmlPath);
+		List<SourceAndConverter<?>> sources = new ArrayList<>();
+		BigDataViewer.initSetups(sd, new ArrayList<ConverterSetup>(), sources);
+		return sources;
+	}
+
+	/**
+	 * Creates a mosaic of 2D tiles, each tile overlapping its neighbours by 10%
+	 *
+	 * @param nTiles number of tiles
+	 * @param tileSize size in pixel of each square tile
+	 * @return sources of the mosaic, named Tile_0, Tile_1...
+	 */
+	public static List<SourceAndConverter<?>> createSyntheticMosaic(int nTiles,
+		int tileSize)
+	{
+		int nColumns = (int) Math.ceil(Math.sqrt(nTiles));
+		List<SourceAndConverter<?>> sources = new ArrayList<>(nTiles);
+		for (int i = 0; i < nTiles; i++) {
+			AffineTransform3D location = new AffineTransform3D();
+			location.translate((i % nColumns) * tileSize * 0.9, (i / nColumns) *
+				tileSize * 0.9, 0);
+			UnsignedByteType type = new UnsignedByteType();
+			RandomAccessibleIntervalSource<UnsignedByteType> source =
+				new RandomAccessibleIntervalSource<>(ConstantUtils
+					.constantRandomAccessibleInterval(type, new FinalInterval(tileSize,
+						tileSize, 1)), type, location, "Tile_" + i);
+			sources.add(new SourceAndConverter<>(source, null));
+		}
+		return sources;
+	}
+
+	/**
+	 * Latencies of a replay, in nanoseconds
+	 */
+	public static class Report {
+
+		final Latencies frame = new Latencies();
+
+		final Latencies hitTest = new Latencies();
+
+		final Latencies selectionEvent = new Latencies();
+
+		final Latencies hits = new Latencies();
+
+		int toggles = 0;
+
+		int unresolved = 0;
+
+		Set<SourceAndConverter<?>> selection;
+
+		public Latencies getFrame() {
+			return frame;
+		}
+
+		public Latencies getHitTest() {
+			return hitTest;
+		}
+
+		public Latencies getSelectionEvent() {
+			return selectionEvent;
+		}
+
+		/**
+		 * @return the selection at the end of the replay
+		 */
+		public Set<SourceAndConverter<?>> getSelection() {
+			return selection;
+		}
+
+		/**
+		 * @return number of recorded sources which could not be found by name,
+		 *         left out of the replayed events
+		 */
+		public int getUnresolved() {
+			return unresolved;
+		}
+
+		@Override
+		public String toString() {
+			return "Frame build (us)      : " + frame.toString(1000) + "\n" +
+				"Hit-test (us)         : " + hitTest.toString(1000) + "\n" +
+				"Selection event (us)  : " + selectionEvent.toString(1000) + "\n" +
+				"Sources hit per query : " + hits.toString(1) + "\n" +
+				"Selection mode toggles: " + toggles + "\n" +
+				"Unresolved sources    : " + unresolved;
+		}
+	}
+
+	public static class Latencies {
+
+		long[] values = new long[16];
+
+		int n = 0;
+
+		boolean sorted = true;
+
+		void add(long value) {
+			if (n == values.length) values = Arrays.copyOf(values, 2 * n);
+			values[n++] = value;
+			sorted = false;
+		}
+
+		public int count() {
+			return n;
+		}
+
+		/**
+		 * @param quantile between 0 and 1
+		 * @return the value at this quantile, 0 if no value was recorded
+		 */
+		public long percentile(double quantile) {
+			if (n == 0) return 0;
+			if (!sorted) {
+				Arrays.sort(values, 0, n);
+				sorted = true;
+			}
+			int index = (int) Math.ceil(quantile * n) - 1;
+			return values[Math.max(0, Math.min(n - 1, index))];
+		}
+
+		String toString(double unit) {
+			return String.format("n=%d p50=%.1f p90=%.1f p99=%.1f max=%.1f", n,
+				percentile(0.5) / unit, percentile(0.9) / unit, percentile(0.99) /
+					unit, percentile(1) / unit);
+		}
+	}
+
+	public static void main(String... args) throws Exception {
+		if (args.length != 2) {
+			System.err.println(
+				"Usage : SelectionTraceReplay trace_file (dataset.xml | synthetic:nTiles)");
+			return;
+		}
+		List<SourceAndConverter<?>> sources;
+		if (args[1].startsWith("synthetic:")) {
+			sources = createSyntheticMosaic(Integer.parseInt(args[1].substring(
+				"synthetic:".length())), 512);
+		}
+		else {
+			sources = loadSources(args[1]);
+		}
+		System.out.println("Replaying " + args[0] + " against " + sources.size() +
+			" sources");
+		System.out.println(new SelectionTraceReplay(sources).replay(new File(
+			args[0])));
+	}
+
+}
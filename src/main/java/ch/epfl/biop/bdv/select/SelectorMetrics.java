@@ -0,0 +1,351 @@
+package ch.epfl.biop.bdv.select;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers and counters of the hot paths of the source selector : overlay
+ * drawing, hit-testing, boxes update, selection events, listener dispatch and
+ * selection mode toggling. Metrics are disabled by default : in this state
+ * each instrumented call only costs a volatile read. They can be enabled
+ * programmatically with {@link SelectorMetrics#setEnabled(boolean)}, from
+ * JConsole through the {@link SelectorMetricsMXBean} registered under
+ * {@link SelectorMetrics#OBJECT_NAME}, or at startup with the system property
+ * {@code -Dbdv.selector.metrics=true}. Usage pattern in instrumented code:
+ *
+ * <pre>
+ * final long t0 = SelectorMetrics.start();
+ * // ... work ...
+ * SelectorMetrics.getInstance().draw.stop(t0);
+ * </pre>
+ *
+ * Values are accumulated in log-scale histograms (4 buckets per power of two),
+ * so percentiles are approximate (within 25%).
+ */
+
+public class SelectorMetrics implements SelectorMetricsMXBean {
+
+	final public static String OBJECT_NAME =
+		"ch.epfl.biop.bdv.select:type=SelectorMetrics";
+
+	final public static String ENABLE_PROPERTY = "bdv.selector.metrics";
+
+	final static long NOT_STARTED = Long.MIN_VALUE;
+
+	private static volatile boolean enabled = Boolean.getBoolean(
+		ENABLE_PROPERTY);
+
+	private static final SelectorMetrics instance = new SelectorMetrics();
+
+	static {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(instance, name);
+			}
+		}
+		catch (Exception e) {
+			System.err.println("Could not register selector metrics MBean : " + e
+				.getMessage());
+		}
+	}
+
+	public static SelectorMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return true if metrics are currently recorded
+	 */
+	public static boolean enabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return a start timestamp to be given to {@link Histogram#stop(long)}, or
+	 *         a sentinel value if metrics are disabled
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : NOT_STARTED;
+	}
+
+	// Timers - durations recorded in nanoseconds, reported in microseconds
+	public final Histogram draw = new Histogram(true);
+
+	public final Histogram hitTest = new Histogram(true);
+
+	public final Histogram updateBoxes = new Histogram(true);
+
+	public final Histogram selectionEvent = new Histogram(true);
+
+	public final Histogram listenerDispatch = new Histogram(true);
+
+	public final Histogram install = new Histogram(true);
+
+	public final Histogram uninstall = new Histogram(true);
+
+	// Value distributions
+	public final Histogram sourcesProjected = new Histogram(false);
+
+	public final Histogram sourcesCulled = new Histogram(false);
+
+	public final Histogram sourcesDrawn = new Histogram(false);
+
+	public final Histogram selectionSize = new Histogram(false);
+
+	public final Histogram eventSize = new Histogram(false);
+
+	private SelectorMetrics() {}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		SelectorMetrics.enabled = enabled;
+	}
+
+	@Override
+	public void reset() {
+		for (Histogram h : new Histogram[] { draw, hitTest, updateBoxes,
+			selectionEvent, listenerDispatch, install, uninstall, sourcesProjected,
+			sourcesCulled, sourcesDrawn, selectionSize, eventSize })
+		{
+			h.reset();
+		}
+	}
+
+	@Override
+	public Snapshot getDraw() {
+		return draw.snapshot();
+	}
+
+	@Override
+	public Snapshot getHitTest() {
+		return hitTest.snapshot();
+	}
+
+	@Override
+	public Snapshot getUpdateBoxes() {
+		return updateBoxes.snapshot();
+	}
+
+	@Override
+	public Snapshot getSelectionEvent() {
+		return selectionEvent.snapshot();
+	}
+
+	@Override
+	public Snapshot getListenerDispatch() {
+		return listenerDispatch.snapshot();
+	}
+
+	@Override
+	public Snapshot getInstall() {
+		return install.snapshot();
+	}
+
+	@Override
+	public Snapshot getUninstall() {
+		return uninstall.snapshot();
+	}
+
+	@Override
+	public Snapshot getSourcesProjected() {
+		return sourcesProjected.snapshot();
+	}
+
+	@Override
+	public Snapshot getSourcesCulled() {
+		return sourcesCulled.snapshot();
+	}
+
+	@Override
+	public Snapshot getSourcesDrawn() {
+		return sourcesDrawn.snapshot();
+	}
+
+	@Override
+	public Snapshot getSelectionSize() {
+		return selectionSize.snapshot();
+	}
+
+	@Override
+	public Snapshot getEventSize() {
+		return eventSize.snapshot();
+	}
+
+	/**
+	 * Lock free log-scale histogram of non negative long values
+	 */
+	public static class Histogram {
+
+		final static int N_BUCKETS = 4 * 62;
+
+		final boolean isTimer;
+
+		final LongAdder count = new LongAdder();
+
+		final LongAdder sum = new LongAdder();
+
+		final AtomicLong max = new AtomicLong();
+
+		final AtomicLongArray buckets = new AtomicLongArray(N_BUCKETS);
+
+		volatile long last;
+
+		Histogram(boolean isTimer) {
+			this.isTimer = isTimer;
+		}
+
+		/**
+		 * Records the time elapsed since start, if metrics are enabled
+		 *
+		 * @param start value returned by {@link SelectorMetrics#start()}
+		 */
+		public void stop(long start) {
+			if (start == NOT_STARTED) return;
+			record(System.nanoTime() - start);
+		}
+
+		/**
+		 * Records a value, if metrics are enabled
+		 *
+		 * @param value value to record, negative values are recorded as 0
+		 */
+		public void record(long value) {
+			if (!enabled) return;
+			if (value < 0) value = 0;
+			last = value;
+			count.increment();
+			sum.add(value);
+			buckets.incrementAndGet(bucketOf(value));
+			long currentMax = max.get();
+			while ((value > currentMax) && (!max.compareAndSet(currentMax,
+				value)))
+			{
+				currentMax = max.get();
+			}
+		}
+
+		public void reset() {
+			count.reset();
+			sum.reset();
+			max.set(0);
+			last = 0;
+			for (int i = 0; i < N_BUCKETS; i++) {
+				buckets.set(i, 0);
+			}
+		}
+
+		static int bucketOf(long value) {
+			if (value < 4) return (int) value;
+			int exp = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) ((value >>> (exp - 2)) & 3);
+			return Math.min(4 * (exp - 1) + sub, N_BUCKETS - 1);
+		}
+
+		static long upperBoundOf(int bucket) {
+			if (bucket < 4) return bucket;
+			int exp = bucket / 4 + 1;
+			int sub = bucket % 4;
+			return ((4L + sub) << (exp - 2)) + (1L << (exp - 2)) - 1;
+		}
+
+		/**
+		 * @param quantile between 0 and 1
+		 * @return approximate value below which this quantile of the recorded
+		 *         values lies, in recorded units
+		 */
+		public long quantile(double quantile) {
+			long total = 0;
+			long[] counts = new long[N_BUCKETS];
+			for (int i = 0; i < N_BUCKETS; i++) {
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0) return 0;
+			long rank = (long) Math.ceil(quantile * total);
+			long cumulated = 0;
+			for (int i = 0; i < N_BUCKETS; i++) {
+				cumulated += counts[i];
+				if (cumulated >= rank) return Math.min(upperBoundOf(i), max.get());
+			}
+			return max.get();
+		}
+
+		public Snapshot snapshot() {
+			// Timers are reported in microseconds
+			double unit = isTimer ? 1000.0 : 1.0;
+			long n = count.sum();
+			return new Snapshot(n, n == 0 ? 0 : sum.sum() / unit / n, last / unit,
+				max.get() / unit, quantile(0.5) / unit, quantile(0.9) / unit,
+				quantile(0.99) / unit);
+		}
+	}
+
+	/**
+	 * Immutable summary of a histogram, durations being in microseconds
+	 */
+	public static class Snapshot {
+
+		final long count;
+
+		final double mean, last, max, p50, p90, p99;
+
+		public Snapshot(long count, double mean, double last, double max,
+			double p50, double p90, double p99)
+		{
+			this.count = count;
+			this.mean = mean;
+			this.last = last;
+			this.max = max;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getLast() {
+			return last;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		public double getP50() {
+			return p50;
+		}
+
+		public double getP90() {
+			return p90;
+		}
+
+		public double getP99() {
+			return p99;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+				"n=%d mean=%.1f last=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f", count,
+				mean, last, p50, p90, p99, max);
+		}
+	}
+
+}
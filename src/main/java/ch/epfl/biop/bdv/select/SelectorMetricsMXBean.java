@@ -0,0 +1,44 @@
+package ch.epfl.biop.bdv.select;
+
+/**
+ * JMX view of {@link SelectorMetrics} - registered in the platform MBean
+ * server under {@link SelectorMetrics#OBJECT_NAME}, so that it can be read and
+ * enabled from JConsole. Durations are in microseconds.
+ */
+
+public interface SelectorMetricsMXBean {
+
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	/**
+	 * Clears all the recorded values
+	 */
+	void reset();
+
+	SelectorMetrics.Snapshot getDraw();
+
+	SelectorMetrics.Snapshot getHitTest();
+
+	SelectorMetrics.Snapshot getUpdateBoxes();
+
+	SelectorMetrics.Snapshot getSelectionEvent();
+
+	SelectorMetrics.Snapshot getListenerDispatch();
+
+	SelectorMetrics.Snapshot getInstall();
+
+	SelectorMetrics.Snapshot getUninstall();
+
+	SelectorMetrics.Snapshot getSourcesProjected();
+
+	SelectorMetrics.Snapshot getSourcesCulled();
+
+	SelectorMetrics.Snapshot getSourcesDrawn();
+
+	SelectorMetrics.Snapshot getSelectionSize();
+
+	SelectorMetrics.Snapshot getEventSize();
+
+}
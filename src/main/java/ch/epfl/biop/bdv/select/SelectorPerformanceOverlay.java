@@ -0,0 +1,160 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.util.BdvFunctions;
+import bdv.util.BdvOptions;
+import bdv.util.BdvOverlay;
+import bdv.util.BdvOverlaySource;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Optional overlay which displays live performance numbers of a
+ * {@link SourceSelectorOverlay} : frame time, number of sources projected /
+ * culled / drawn during the last frame, hit rate of the label caches and
+ * latency of the last hit-test. Numbers are read from {@link SelectorMetrics},
+ * which is enabled when this overlay is created, and set back to its previous
+ * state when the last overlay is removed with
+ * {@link SelectorPerformanceOverlay#remove()}. The metrics are global : with
+ * several viewers, the numbers mix the frames and hit-tests of all of them,
+ * not only the ones of the viewer this overlay is shown in. The overlay only
+ * draws a few lines of text, so its own cost is negligible. Usage:
+ *
+ * <pre>
+ * SelectorPerformanceOverlay hud = new SelectorPerformanceOverlay(ssb);
+ * hud.show();
+ * // ...
+ * hud.remove();
+ * </pre>
+ */
+
+public class SelectorPerformanceOverlay extends BdvOverlay {
+
+	// Number of overlays not removed yet, and state of the metrics before the
+	// first one was created
+	private static int nOverlays = 0;
+
+	private static boolean metricsWereEnabled;
+
+	final SelectorMetrics metrics = SelectorMetrics.getInstance();
+
+	final SourceSelectorBehaviour ssb;
+
+	BdvOverlaySource<SelectorPerformanceOverlay> bos;
+
+	private boolean removed = false;
+
+	final List<GlyphVectorCache> labelCaches = new ArrayList<>();
+
+	final Font font = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+
+	Color color = Color.WHITE;
+
+	Color backgroundColor = new Color(0x80000000, true);
+
+	public SelectorPerformanceOverlay(SourceSelectorBehaviour ssb) {
+		this.ssb = ssb;
+		labelCaches.add(ssb.getSourceSelectorOverlay().getLabelCache());
+		synchronized (SelectorPerformanceOverlay.class) {
+			if (nOverlays++ == 0) metricsWereEnabled = metrics.isEnabled();
+			metrics.setEnabled(true);
+		}
+	}
+
+	/**
+	 * Shows this overlay in the viewer of the selector
+	 *
+	 * @return the overlay source, removed by
+	 *         {@link SelectorPerformanceOverlay#remove()}
+	 */
+	public BdvOverlaySource<SelectorPerformanceOverlay> show() {
+		if (bos != null) return bos;
+		// Adding an overlay source resets the number of timepoints
+		int nTimePoints = ssb.bdvh.getViewerPanel().state().getNumTimepoints();
+		int currentTimePoint = ssb.bdvh.getViewerPanel().state()
+			.getCurrentTimepoint();
+		bos = BdvFunctions.showOverlay(this, "Selector Performance", BdvOptions
+			.options().addTo(ssb.bdvh));
+		ssb.bdvh.getViewerPanel().state().setNumTimepoints(nTimePoints);
+		ssb.bdvh.getViewerPanel().state().setCurrentTimepoint(currentTimePoint);
+		return bos;
+	}
+
+	/**
+	 * Removes this overlay from the viewer if it has been shown with
+	 * {@link SelectorPerformanceOverlay#show()}, and, if this is the last
+	 * overlay, sets {@link SelectorMetrics} back to the state it had before the
+	 * first overlay was created
+	 */
+	public void remove() {
+		if (bos != null) {
+			bos.removeFromBdv();
+			bos = null;
+		}
+		synchronized (SelectorPerformanceOverlay.class) {
+			if (removed) return;
+			removed = true;
+			if (--nOverlays == 0) metrics.setEnabled(metricsWereEnabled);
+		}
+	}
+
+	/**
+	 * Also reports the hit rate of another label cache, for instance the one of
+	 * a {@link SourceNameOverlay}
+	 *
+	 * @param cache label cache
+	 */
+	public void addLabelCache(GlyphVectorCache cache) {
+		labelCaches.add(cache);
+	}
+
+	public void setColor(Color color) {
+		this.color = color;
+	}
+
+	public void setBackgroundColor(Color backgroundColor) {
+		this.backgroundColor = backgroundColor;
+	}
+
+	@Override
+	protected void draw(Graphics2D g) {
+		long hits = 0;
+		long misses = 0;
+		for (GlyphVectorCache cache : labelCaches) {
+			hits += cache.getHits();
+			misses += cache.getMisses();
+		}
+		double hitRate = (hits + misses) == 0 ? 0 : 100.0 * hits / (hits +
+			misses);
+
+		SelectorMetrics.Snapshot draw = metrics.getDraw();
+		String[] lines = new String[] { String.format(
+			"Selector frame : %.2f ms (p90 %.2f ms)", draw.getLast() / 1000.0, draw
+				.getP90() / 1000.0), String.format(
+					"Sources : %d projected, %d culled, %d drawn",
+					metrics.sourcesProjected.last, metrics.sourcesCulled.last,
+					metrics.sourcesDrawn.last), String.format(
+						"Label cache hit rate : %.1f %%", hitRate), String.format(
+							"Last hit-test : %.3f ms", metrics.hitTest.last / 1e6) };
+
+		g.setFont(font);
+		int lineHeight = g.getFontMetrics().getHeight();
+		int width = 0;
+		for (String line : lines) {
+			width = Math.max(width, g.getFontMetrics().stringWidth(line));
+		}
+		int x = 10;
+		int y = 10;
+		g.setColor(backgroundColor);
+		g.fillRect(x, y, width + 10, lineHeight * lines.length + 6);
+		g.setColor(color);
+		for (int i = 0; i < lines.length; i++) {
+			g.drawString(lines[i], x + 5, y + 3 + lineHeight * (i + 1) - g
+				.getFontMetrics().getDescent());
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the selections of several {@link SourceSelectorBehaviour} in sync,
+ * typically the same sources shown in several BDV windows. When the selection
+ * of one behaviour changes, only the sources actually added and removed are
+ * applied to the others, which repaint their overlay only. Changes applied
+ * this way are not propagated again, so there are no echo events. A source
+ * which is not visible in a viewer is not selected in it : hiding a selected
+ * source in one viewer deselects it in this viewer only, it stays selected in
+ * the others.
+ *
+ * Usage : {@code SharedSelectionModel model = new SharedSelectionModel();
+ * model.attach(ssb1); model.attach(ssb2);}
+ */
+
+public class SharedSelectionModel {
+
+	private final List<SourceSelectorBehaviour> behaviours =
+		new CopyOnWriteArrayList<>();
+
+	/**
+	 * Shares the selection of a behaviour with the ones already attached. Its
+	 * selection is replaced by the shared selection, if there is one.
+	 *
+	 * @param ssb behaviour to attach, detached from its previous model if any
+	 */
+	public synchronized void attach(SourceSelectorBehaviour ssb) {
+		SharedSelectionModel previous = ssb.sharedSelectionModel;
+		if (previous == this) return;
+		if (previous != null) previous.detach(ssb);
+		if (!behaviours.isEmpty()) {
+			Set<SourceAndConverter<?>> shared = behaviours.get(0)
+				.getSelectedSources();
+			Set<SourceAndConverter<?>> removed = ssb.getSelectedSources();
+			removed.removeAll(shared);
+			ssb.applySharedDelta(shared, removed, "Shared selection");
+		}
+		behaviours.add(ssb);
+		ssb.sharedSelectionModel = this;
+	}
+
+	public synchronized void detach(SourceSelectorBehaviour ssb) {
+		if (behaviours.remove(ssb)) ssb.sharedSelectionModel = null;
+	}
+
+	/**
+	 * @return the behaviours sharing their selection
+	 */
+	public List<SourceSelectorBehaviour> getBehaviours() {
+		return behaviours;
+	}
+
+	/**
+	 * Applies a change of the selection of one behaviour to all the others
+	 *
+	 * @param origin behaviour whose selection changed
+	 * @param added sources added to its selection
+	 * @param removed sources removed from its selection
+	 * @param eventSource origin of the modification
+	 */
+	synchronized void propagate(SourceSelectorBehaviour origin,
+		Collection<SourceAndConverter<?>> added,
+		Collection<SourceAndConverter<?>> removed, String eventSource)
+	{
+		if (!behaviours.contains(origin)) return;
+		for (SourceSelectorBehaviour ssb : behaviours) {
+			if (ssb == origin) continue;
+			ssb.applySharedDelta(added, removed, eventSource);
+		}
+	}
+
+}
@@ -0,0 +1,446 @@
+package ch.epfl.biop.bdv.select;
+
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.util.Arrays;
+
+/**
+ * Polygon resulting from the intersection of a transformed box with the
+ * slicing plane (z = 0 in viewer coordinates), expressed in screen
+ * coordinates. All tests are done with plain arithmetic, without AWT, so that
+ * this class can be used on headless machines. For an affinely transformed
+ * box, the polygon is convex and its vertices are stored in counter-clockwise
+ * order in the (x, y) frame, which appears clockwise on screen since y points
+ * down. The intersection of a warped source, sliced from its boundary mesh,
+ * can be concave and made of several loops : its inside is then defined by
+ * the even-odd rule.
+ */
+
+public final class SlicePolygon {
+
+	final double[] xs, ys;
+
+	final int n;
+
+	final double minX, minY, maxX, maxY;
+
+	final boolean convex;
+
+	// Loop k is made of the vertices [loopStarts[k], loopStarts[k + 1])
+	final int[] loopStarts;
+
+	// Next vertex in the loop of each vertex, null if convex
+	private final int[] next;
+
+	SlicePolygon(double[] xs, double[] ys, int n) {
+		this(xs, ys, n, new int[] { 0, n }, true);
+	}
+
+	/**
+	 * @param loopStarts index of the first vertex of each loop, followed by n
+	 */
+	SlicePolygon(double[] xs, double[] ys, int n, int[] loopStarts) {
+		this(xs, ys, n, loopStarts, false);
+	}
+
+	private SlicePolygon(double[] xs, double[] ys, int n, int[] loopStarts,
+		boolean convex)
+	{
+		this.xs = xs;
+		this.ys = ys;
+		this.n = n;
+		this.loopStarts = loopStarts;
+		this.convex = convex;
+		if (convex) {
+			next = null;
+		}
+		else {
+			next = new int[n];
+			for (int k = 0; k + 1 < loopStarts.length; k++) {
+				for (int i = loopStarts[k]; i < loopStarts[k + 1]; i++) {
+					next[i] = i + 1;
+				}
+				next[loopStarts[k + 1] - 1] = loopStarts[k];
+			}
+		}
+		double x0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY;
+		double y0 = Double.POSITIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			x0 = Math.min(x0, xs[i]);
+			x1 = Math.max(x1, xs[i]);
+			y0 = Math.min(y0, ys[i]);
+			y1 = Math.max(y1, ys[i]);
+		}
+		minX = x0;
+		maxX = x1;
+		minY = y0;
+		maxY = y1;
+	}
+
+	// Edges of a box, as pairs of corner indexes - corner i has the coordinates
+	// (i & 1 ? max : min, i & 2 ? max : min, i & 4 ? max : min)
+	private static final int[][] EDGES = { { 0, 1 }, { 2, 3 }, { 4, 5 }, { 6,
+		7 }, { 0, 2 }, { 1, 3 }, { 4, 6 }, { 5, 7 }, { 0, 4 }, { 1, 5 }, { 2, 6 },
+		{ 3, 7 } };
+
+	/**
+	 * @param interval box in source coordinates
+	 * @param transform source to viewer transform
+	 * @param corners array of 8 x 3 values, filled with the corners of the box
+	 *          in viewer coordinates
+	 */
+	static void projectCorners(RealInterval interval, AffineTransform3D transform,
+		double[][] corners)
+	{
+		final double[] corner = new double[3];
+		for (int i = 0; i < 8; i++) {
+			corner[0] = ((i & 1) == 0) ? interval.realMin(0) : interval.realMax(0);
+			corner[1] = ((i & 2) == 0) ? interval.realMin(1) : interval.realMax(1);
+			corner[2] = ((i & 4) == 0) ? interval.realMin(2) : interval.realMax(2);
+			transform.apply(corner, corners[i]);
+		}
+	}
+
+	/**
+	 * Intersects a box with the slicing plane
+	 *
+	 * @param corners the 8 corners of the box in viewer coordinates, see
+	 *          {@link SlicePolygon#projectCorners}
+	 * @return the intersection polygon, or null if the box does not cross the
+	 *         plane or if the intersection is degenerated
+	 */
+	static SlicePolygon slice(double[][] corners) {
+		double[] xs = new double[12];
+		double[] ys = new double[12];
+		int n = 0;
+		// Corners lying on the plane
+		for (int i = 0; i < 8; i++) {
+			if (corners[i][2] == 0) {
+				xs[n] = corners[i][0];
+				ys[n] = corners[i][1];
+				n++;
+			}
+		}
+		// Edges crossing the plane
+		for (int[] edge : EDGES) {
+			double[] a = corners[edge[0]];
+			double[] b = corners[edge[1]];
+			if (((a[2] < 0) && (b[2] > 0)) || ((a[2] > 0) && (b[2] < 0))) {
+				double t = a[2] / (a[2] - b[2]);
+				xs[n] = a[0] + t * (b[0] - a[0]);
+				ys[n] = a[1] + t * (b[1] - a[1]);
+				n++;
+			}
+		}
+		if (n < 3) return null;
+		return convexHull(xs, ys, n);
+	}
+
+	/**
+	 * Intersects a box with the slicing plane
+	 *
+	 * @param interval box in source coordinates
+	 * @param transform source to viewer transform
+	 * @return the intersection polygon, or null if the box does not cross the
+	 *         plane
+	 */
+	public static SlicePolygon slice(RealInterval interval,
+		AffineTransform3D transform)
+	{
+		double[][] corners = new double[8][3];
+		projectCorners(interval, transform, corners);
+		return slice(corners);
+	}
+
+	/**
+	 * Andrew's monotone chain - at most 12 points here, which lie on the
+	 * boundary of a convex polygon, possibly duplicated
+	 */
+	static SlicePolygon convexHull(double[] xs, double[] ys, int n) {
+		// Insertion sort of the point indexes by x then y
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			int j = i;
+			while ((j > 0) && ((xs[order[j - 1]] > xs[i]) || ((xs[order[j -
+				1]] == xs[i]) && (ys[order[j - 1]] > ys[i]))))
+			{
+				order[j] = order[j - 1];
+				j--;
+			}
+			order[j] = i;
+		}
+		double[] hx = new double[2 * n];
+		double[] hy = new double[2 * n];
+		int k = 0;
+		for (int idx = 0; idx < n; idx++) { // lower hull
+			int i = order[idx];
+			while ((k >= 2) && (cross(hx[k - 2], hy[k - 2], hx[k - 1], hy[k - 1],
+				xs[i], ys[i]) <= 0)) k--;
+			hx[k] = xs[i];
+			hy[k] = ys[i];
+			k++;
+		}
+		for (int idx = n - 2, t = k + 1; idx >= 0; idx--) { // upper hull
+			int i = order[idx];
+			while ((k >= t) && (cross(hx[k - 2], hy[k - 2], hx[k - 1], hy[k - 1],
+				xs[i], ys[i]) <= 0)) k--;
+			hx[k] = xs[i];
+			hy[k] = ys[i];
+			k++;
+		}
+		k--; // last point is the first one
+		if (k < 3) return null;
+		return new SlicePolygon(Arrays.copyOf(hx, k), Arrays.copyOf(hy, k), k);
+	}
+
+	static double cross(double ox, double oy, double ax, double ay, double bx,
+		double by)
+	{
+		return (ax - ox) * (by - oy) - (ay - oy) * (bx - ox);
+	}
+
+	/**
+	 * @return index of the vertex following vertex i in its loop
+	 */
+	int next(int i) {
+		return next == null ? (i + 1) % n : next[i];
+	}
+
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * @return false if the polygon may be concave or made of several loops
+	 */
+	public boolean isConvex() {
+		return convex;
+	}
+
+	public int getNumberOfLoops() {
+		return loopStarts.length - 1;
+	}
+
+	/**
+	 * @return index of the first vertex of loop k, or the number of vertices
+	 *         for k = {@link SlicePolygon#getNumberOfLoops()}
+	 */
+	public int getLoopStart(int k) {
+		return loopStarts[k];
+	}
+
+	public double getX(int i) {
+		return xs[i];
+	}
+
+	public double getY(int i) {
+		return ys[i];
+	}
+
+	public double getMinX() {
+		return minX;
+	}
+
+	public double getMinY() {
+		return minY;
+	}
+
+	public double getMaxX() {
+		return maxX;
+	}
+
+	public double getMaxY() {
+		return maxY;
+	}
+
+	/**
+	 * Separating axis test between this polygon and an axis aligned rectangle
+	 *
+	 * @return true if the rectangle and the polygon overlap, including when one
+	 *         contains the other
+	 */
+	public boolean intersectsRectangle(double rMinX, double rMinY, double rMaxX,
+		double rMaxY)
+	{
+		// Rectangle axes
+		if ((maxX < rMinX) || (minX > rMaxX) || (maxY < rMinY) || (minY > rMaxY))
+			return false;
+		if (!convex) return intersectsRectangleConcave(rMinX, rMinY, rMaxX,
+			rMaxY);
+		// Polygon edge normals
+		for (int i = 0; i < n; i++) {
+			int j = (i + 1) % n;
+			double nx = ys[i] - ys[j];
+			double ny = xs[j] - xs[i];
+			// The polygon lies on the positive side of its edges (convex, ccw)
+			double edge = nx * xs[i] + ny * ys[i];
+			double rectMax = Math.max(nx * rMinX, nx * rMaxX) + Math.max(ny * rMinY,
+				ny * rMaxY);
+			if (rectMax < edge) return false;
+		}
+		return true;
+	}
+
+	private boolean intersectsRectangleConcave(double rMinX, double rMinY,
+		double rMaxX, double rMaxY)
+	{
+		// The polygon is in the rectangle, or the rectangle in the polygon
+		if ((xs[0] >= rMinX) && (xs[0] <= rMaxX) && (ys[0] >= rMinY) &&
+			(ys[0] <= rMaxY)) return true;
+		if (contains(rMinX, rMinY)) return true;
+		// Otherwise their boundaries cross
+		for (int i = 0; i < n; i++) {
+			int j = next(i);
+			if ((Math.max(xs[i], xs[j]) < rMinX) || (Math.min(xs[i], xs[j]) >
+				rMaxX) || (Math.max(ys[i], ys[j]) < rMinY) || (Math.min(ys[i],
+					ys[j]) > rMaxY)) continue;
+			if (((xs[j] >= rMinX) && (xs[j] <= rMaxX) && (ys[j] >= rMinY) &&
+				(ys[j] <= rMaxY)) || ScreenPolygon.segmentsIntersect(xs[i], ys[i],
+					xs[j], ys[j], rMinX, rMinY, rMaxX, rMinY) || ScreenPolygon
+						.segmentsIntersect(xs[i], ys[i], xs[j], ys[j], rMaxX, rMinY, rMaxX,
+							rMaxY) || ScreenPolygon.segmentsIntersect(xs[i], ys[i], xs[j],
+								ys[j], rMaxX, rMaxY, rMinX, rMaxY) || ScreenPolygon
+									.segmentsIntersect(xs[i], ys[i], xs[j], ys[j], rMinX, rMaxY,
+										rMinX, rMinY)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the point is inside the polygon or on the boundary of a
+	 *         convex polygon
+	 */
+	public boolean contains(double x, double y) {
+		if ((x < minX) || (x > maxX) || (y < minY) || (y > maxY)) return false;
+		if (!convex) {
+			// Even-odd rule
+			boolean inside = false;
+			for (int i = 0; i < n; i++) {
+				int j = next[i];
+				if (((ys[i] > y) != (ys[j] > y)) && (x < xs[i] + (y - ys[i]) *
+					(xs[j] - xs[i]) / (ys[j] - ys[i])))
+				{
+					inside = !inside;
+				}
+			}
+			return inside;
+		}
+		for (int i = 0; i < n; i++) {
+			int j = (i + 1) % n;
+			if (cross(xs[i], ys[i], xs[j], ys[j], x, y) < 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return area of the polygon - the loops of a sliced mesh are consistently
+	 *         oriented, so that holes are subtracted
+	 */
+	public double area() {
+		double a = 0;
+		for (int i = 0; i < n; i++) {
+			int j = next(i);
+			a += xs[i] * ys[j] - xs[j] * ys[i];
+		}
+		return Math.abs(a) / 2.0;
+	}
+
+	/**
+	 * Sutherland-Hodgman clipping against an axis aligned rectangle
+	 *
+	 * @return the part of this polygon which lies in the rectangle, or null if
+	 *         there is none
+	 */
+	public SlicePolygon clip(double rMinX, double rMinY, double rMaxX,
+		double rMaxY)
+	{
+		if ((minX >= rMinX) && (maxX <= rMaxX) && (minY >= rMinY) &&
+			(maxY <= rMaxY)) return this;
+		if (!convex) return clipLoops(rMinX, rMinY, rMaxX, rMaxY);
+		return clip(xs, ys, 0, n, rMinX, rMinY, rMaxX, rMaxY);
+	}
+
+	/**
+	 * Clips each loop separately
+	 */
+	private SlicePolygon clipLoops(double rMinX, double rMinY, double rMaxX,
+		double rMaxY)
+	{
+		double[] cx = new double[2 * n + 4 * getNumberOfLoops()];
+		double[] cy = new double[cx.length];
+		int[] starts = new int[loopStarts.length];
+		int cn = 0, nLoops = 0;
+		for (int k = 0; k < getNumberOfLoops(); k++) {
+			SlicePolygon loop = clip(xs, ys, loopStarts[k], loopStarts[k + 1],
+				rMinX, rMinY, rMaxX, rMaxY);
+			if (loop == null) continue;
+			if (cn + loop.n > cx.length) {
+				cx = Arrays.copyOf(cx, 2 * (cn + loop.n));
+				cy = Arrays.copyOf(cy, cx.length);
+			}
+			System.arraycopy(loop.xs, 0, cx, cn, loop.n);
+			System.arraycopy(loop.ys, 0, cy, cn, loop.n);
+			starts[nLoops++] = cn;
+			cn += loop.n;
+		}
+		if (nLoops == 0) return null;
+		starts[nLoops] = cn;
+		return new SlicePolygon(cx, cy, cn, Arrays.copyOf(starts, nLoops + 1));
+	}
+
+	/**
+	 * Sutherland-Hodgman clipping of the loop [from, to) of a polygon
+	 */
+	private static SlicePolygon clip(double[] xs, double[] ys, int from, int to,
+		double rMinX, double rMinY, double rMaxX, double rMaxY)
+	{
+		double[] cx = Arrays.copyOfRange(xs, from, to);
+		double[] cy = Arrays.copyOfRange(ys, from, to);
+		int cn = to - from;
+		for (int side = 0; side < 4; side++) {
+			double[] ox = new double[cn * 2 + 2];
+			double[] oy = new double[cn * 2 + 2];
+			int on = 0;
+			for (int i = 0; i < cn; i++) {
+				int j = (i + 1) % cn;
+				double di = distanceInside(side, cx[i], cy[i], rMinX, rMinY, rMaxX,
+					rMaxY);
+				double dj = distanceInside(side, cx[j], cy[j], rMinX, rMinY, rMaxX,
+					rMaxY);
+				if (di >= 0) {
+					ox[on] = cx[i];
+					oy[on] = cy[i];
+					on++;
+				}
+				if ((di >= 0) != (dj >= 0)) {
+					double t = di / (di - dj);
+					ox[on] = cx[i] + t * (cx[j] - cx[i]);
+					oy[on] = cy[i] + t * (cy[j] - cy[i]);
+					on++;
+				}
+			}
+			if (on < 3) return null;
+			cx = ox;
+			cy = oy;
+			cn = on;
+		}
+		return new SlicePolygon(cx, cy, cn);
+	}
+
+	private static double distanceInside(int side, double x, double y,
+		double rMinX, double rMinY, double rMaxX, double rMaxY)
+	{
+		switch (side) {
+			case 0:
+				return x - rMinX;
+			case 1:
+				return rMaxX - x;
+			case 2:
+				return y - rMinY;
+			default:
+				return rMaxY - y;
+		}
+	}
+
+}
@@ -0,0 +1,238 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.RealInterval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bounding volume hierarchy over the world extents of a list of sources, at
+ * one timepoint. Each node holds the axis aligned bounding box of its
+ * children ; the tree is built once by splitting the sources at the median of
+ * their centers along the longest axis, so a volume query visits O(log N)
+ * nodes plus the ones which contain hits. Candidates are then tested exactly
+ * with {@link OrientedBox#intersects(OrientedBox)}. The index is immutable and
+ * can be queried from several threads.
+ */
+
+public class SourceBoundsIndex {
+
+	static final int LEAF_SIZE = 4;
+
+	final SourceAndConverter<?>[] sources;
+
+	final OrientedBox[] boxes;
+
+	// Sources indexes, ordered such as each node covers a contiguous range
+	final int[] order;
+
+	// Nodes : bounds, children (-1 for leaves), range in order
+	double[] nodeMin, nodeMax;
+
+	int[] nodeLeft, nodeRight, nodeStart, nodeEnd;
+
+	int nNodes = 0;
+
+	int depth = 0;
+
+	// Version of the source transforms the index has been built with
+	final long transformsVersion;
+
+	/**
+	 * @param sourceBoxes boxes of the sources to index, boxes of sources absent
+	 *          at their timepoint are ignored
+	 */
+	public SourceBoundsIndex(List<SourceBox> sourceBoxes) {
+		transformsVersion = SourceBox.getTransformsVersion();
+		List<SourceAndConverter<?>> sacs = new ArrayList<>(sourceBoxes.size());
+		List<OrientedBox> obs = new ArrayList<>(sourceBoxes.size());
+		for (SourceBox box : sourceBoxes) {
+			if (box.interval == null) continue;
+			BoundaryMesh mesh = BoundaryMesh.of(box);
+			OrientedBox ob = mesh == null ? OrientedBox.of(box) : new OrientedBox(
+				mesh.getBounds());
+			sacs.add(box.sac);
+			obs.add(ob);
+		}
+		int n = obs.size();
+		sources = sacs.toArray(new SourceAndConverter<?>[n]);
+		boxes = obs.toArray(new OrientedBox[n]);
+		order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		int capacity = Math.max(1, 2 * (n / LEAF_SIZE + 1));
+		nodeMin = new double[3 * capacity];
+		nodeMax = new double[3 * capacity];
+		nodeLeft = new int[capacity];
+		nodeRight = new int[capacity];
+		nodeStart = new int[capacity];
+		nodeEnd = new int[capacity];
+		if (n > 0) build(0, n, 1);
+	}
+
+	/**
+	 * @return number of indexed sources
+	 */
+	public int size() {
+		return boxes.length;
+	}
+
+	/**
+	 * @return false if sources have been moved or rewarped since the index has
+	 *         been built, see {@link SourceBox#sourcesMoved()}
+	 */
+	public boolean isUpToDate() {
+		return transformsVersion == SourceBox.getTransformsVersion();
+	}
+
+	/**
+	 * @return the depth of the tree
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	private int build(int start, int end, int level) {
+		depth = Math.max(depth, level);
+		int node = nNodes++;
+		ensureCapacity(nNodes);
+		double[] cMin = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+			Double.POSITIVE_INFINITY };
+		double[] cMax = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+			Double.NEGATIVE_INFINITY };
+		for (int d = 0; d < 3; d++) {
+			nodeMin[3 * node + d] = Double.POSITIVE_INFINITY;
+			nodeMax[3 * node + d] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = start; i < end; i++) {
+			OrientedBox b = boxes[order[i]];
+			for (int d = 0; d < 3; d++) {
+				nodeMin[3 * node + d] = Math.min(nodeMin[3 * node + d], b.min[d]);
+				nodeMax[3 * node + d] = Math.max(nodeMax[3 * node + d], b.max[d]);
+				cMin[d] = Math.min(cMin[d], b.center[d]);
+				cMax[d] = Math.max(cMax[d], b.center[d]);
+			}
+		}
+		nodeStart[node] = start;
+		nodeEnd[node] = end;
+		if (end - start <= LEAF_SIZE) {
+			nodeLeft[node] = -1;
+			nodeRight[node] = -1;
+			return node;
+		}
+		int axis = 0;
+		for (int d = 1; d < 3; d++) {
+			if (cMax[d] - cMin[d] > cMax[axis] - cMin[axis]) axis = d;
+		}
+		int mid = (start + end) >>> 1;
+		select(start, end, mid, axis);
+		int left = build(start, mid, level + 1);
+		int right = build(mid, end, level + 1);
+		nodeLeft[node] = left;
+		nodeRight[node] = right;
+		return node;
+	}
+
+	private void ensureCapacity(int n) {
+		if (n <= nodeLeft.length) return;
+		int capacity = 2 * n;
+		nodeMin = Arrays.copyOf(nodeMin, 3 * capacity);
+		nodeMax = Arrays.copyOf(nodeMax, 3 * capacity);
+		nodeLeft = Arrays.copyOf(nodeLeft, capacity);
+		nodeRight = Arrays.copyOf(nodeRight, capacity);
+		nodeStart = Arrays.copyOf(nodeStart, capacity);
+		nodeEnd = Arrays.copyOf(nodeEnd, capacity);
+	}
+
+	/**
+	 * Quickselect : reorders order[start, end) such as the element at k is the
+	 * one which would be there if the range was sorted by center along axis
+	 */
+	private void select(int start, int end, int k, int axis) {
+		int lo = start, hi = end - 1;
+		while (lo < hi) {
+			double pivot = boxes[order[(lo + hi) >>> 1]].center[axis];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (boxes[order[i]].center[axis] < pivot) i++;
+				while (boxes[order[j]].center[axis] > pivot) j--;
+				if (i <= j) {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else return;
+		}
+	}
+
+	/**
+	 * @param volume volume in world coordinates
+	 * @return all sources whose transformed box intersects the volume
+	 */
+	public Set<SourceAndConverter<?>> query(OrientedBox volume) {
+		Set<SourceAndConverter<?>> hits = new HashSet<>();
+		if (nNodes == 0) return hits;
+		int[] stack = new int[2 * depth + 2];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (!nodeIntersects(node, volume)) continue;
+			if (nodeLeft[node] < 0) {
+				for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+					if (boxes[order[i]].intersects(volume)) hits.add(sources[order[i]]);
+				}
+			}
+			else {
+				stack[top++] = nodeLeft[node];
+				stack[top++] = nodeRight[node];
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * @param worldInterval axis aligned volume in world coordinates
+	 * @return all sources whose transformed box intersects the volume
+	 */
+	public Set<SourceAndConverter<?>> query(RealInterval worldInterval) {
+		return query(new OrientedBox(worldInterval));
+	}
+
+	private boolean nodeIntersects(int node, OrientedBox volume) {
+		for (int d = 0; d < 3; d++) {
+			if ((nodeMin[3 * node + d] > volume.max[d]) || (nodeMax[3 * node +
+				d] < volume.min[d])) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param d dimension
+	 * @return lower bound of all indexed sources along d, +infinity if the index
+	 *         is empty
+	 */
+	public double realMin(int d) {
+		return nNodes == 0 ? Double.POSITIVE_INFINITY : nodeMin[d];
+	}
+
+	/**
+	 * @param d dimension
+	 * @return upper bound of all indexed sources along d, -infinity if the index
+	 *         is empty
+	 */
+	public double realMax(int d) {
+		return nNodes == 0 ? Double.NEGATIVE_INFINITY : nodeMax[d];
+	}
+
+}
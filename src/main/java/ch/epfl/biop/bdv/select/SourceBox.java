@@ -0,0 +1,117 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A source, its extent at a timepoint and its location in the world. The
+ * extent is fetched once, when the box is created, because getting it may
+ * require to open the source.
+ */
+
+public class SourceBox {
+
+	// Incremented by BoundaryMesh#invalidate, see SourceBox#sourcesMoved()
+	static final AtomicLong transformsVersion = new AtomicLong();
+
+	final SourceAndConverter<?> sac;
+
+	final int timepoint;
+
+	final RealInterval interval;
+
+	public SourceBox(SourceAndConverter<?> sac, int timepoint) {
+		this.sac = sac;
+		this.timepoint = timepoint;
+		this.interval = computeInterval(sac, timepoint);
+	}
+
+	/**
+	 * @param interval extent already fetched with
+	 *          {@link SourceBox#computeInterval(SourceAndConverter, int)}
+	 */
+	SourceBox(SourceAndConverter<?> sac, int timepoint, RealInterval interval) {
+		this.sac = sac;
+		this.timepoint = timepoint;
+		this.interval = interval;
+	}
+
+	public SourceAndConverter<?> getSourceAndConverter() {
+		return sac;
+	}
+
+	public int getTimepoint() {
+		return timepoint;
+	}
+
+	/**
+	 * @return the extent of the source in voxel coordinates, or null if the
+	 *         source is not present at this timepoint
+	 */
+	public RealInterval getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @param transform is set to the voxel to world transform of the source
+	 */
+	public void getTransform(AffineTransform3D transform) {
+		sac.getSpimSource().getSourceTransform(timepoint, 0, transform);
+	}
+
+	/**
+	 * Invalidates the geometry cached for the sources : slices, frames, bounding
+	 * volume indexes and boundary meshes are built again when they are next
+	 * used. Source transforms are not watched, since reading them on every
+	 * query would cost O(N) : call this after modifying them in place, for
+	 * instance with {@code TransformedSource#setFixedTransform}, or after
+	 * replacing the warp of a {@code WarpedSource} or modifying it in place,
+	 * for instance an edited landmark transform. Overlays are updated on their
+	 * next repaint.
+	 */
+	public static void sourcesMoved() {
+		BoundaryMesh.invalidate(null);
+	}
+
+	/**
+	 * Same as {@link SourceBox#sourcesMoved()}, but only the boundary meshes of
+	 * these sources are built again
+	 *
+	 * @param sources sources which have been moved or rewarped
+	 */
+	public static void sourcesMoved(
+		Collection<? extends SourceAndConverter<?>> sources)
+	{
+		BoundaryMesh.invalidate(sources);
+	}
+
+	/**
+	 * @return the version of the source transforms, incremented by
+	 *         {@link SourceBox#sourcesMoved()} : geometry computed at a version
+	 *         is valid as long as the version has not changed
+	 */
+	static long getTransformsVersion() {
+		return transformsVersion.get();
+	}
+
+	static RealInterval computeInterval(SourceAndConverter<?> sac,
+		int timepoint)
+	{
+		return computeInterval(sac.getSpimSource(), timepoint);
+	}
+
+	static RealInterval computeInterval(Source<?> source, int timepoint) {
+		if (!source.isPresent(timepoint)) return null;
+		long[] dims = new long[3];
+		source.getSource(timepoint, 0).dimensions(dims);
+		return new FinalRealInterval(new double[] { -0.5, -0.5, -0.5 },
+			new double[] { dims[0] - 0.5, dims[1] - 0.5, dims[2] - 0.5 });
+	}
+
+}
@@ -0,0 +1,656 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.ViewerPanel;
+import bdv.viewer.ViewerStateChange;
+import bdv.viewer.ViewerStateChangeListener;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static bdv.viewer.ViewerStateChange.CURRENT_TIMEPOINT_CHANGED;
+import static bdv.viewer.ViewerStateChange.NUM_SOURCES_CHANGED;
+import static bdv.viewer.ViewerStateChange.VISIBILITY_CHANGED;
+
+/**
+ * Shared geometry of the visible sources of a {@link ViewerPanel} There is one
+ * service per viewer, retrieved with
+ * {@link SourceGeometryService#forViewer(ViewerPanel)}. Overlays which need to
+ * know where sources are on screen ({@link SourceSelectorOverlay},
+ * {@link SourceNameOverlay}...) subscribe to it and ask for a {@link Frame} when
+ * they are drawn. The frame contains the intersection of each source box with
+ * the current slicing plane, computed by the {@link SourceSelectionEngine},
+ * and the location of its label. A
+ * frame is computed once for a given viewer transform, canvas size and
+ * timepoint, so that any number of overlays can share the projection work and
+ * only pay for their own drawing. The source extents are fetched when the
+ * visible sources or the timepoint change, not at every frame. Fetching an
+ * extent may open the source, which can block on I/O for remote or lazily
+ * opened datasets : it is done in the background on a small thread pool, and
+ * cached, as well as the boundary mesh of warped sources. Sources appear in
+ * the frames as their extents become known, and the overlays are repainted at
+ * that time. Source transforms are not watched : after moving sources, call
+ * {@link SourceBox#sourcesMoved()}.
+ */
+
+public class SourceGeometryService implements ViewerStateChangeListener {
+
+	private static final Map<ViewerPanel, SourceGeometryService> services =
+		new WeakHashMap<>();
+
+	// Extent fetching, shared by all viewers
+	private static final ExecutorService extentFetcher = createExtentFetcher();
+
+	// Cache markers, compared by identity
+	private static final RealInterval PENDING = new FinalRealInterval(
+		new double[3], new double[3]);
+
+	private static final RealInterval ABSENT = new FinalRealInterval(
+		new double[3], new double[3]);
+
+	private static ExecutorService createExtentFetcher() {
+		int nThreads = Math.max(2, Math.min(8, Runtime.getRuntime()
+			.availableProcessors()));
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(nThreads, nThreads,
+			10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+				Thread thread = new Thread(r, "bdv-selector-extents-" + count
+					.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * @param viewer viewer panel
+	 * @return the geometry service associated to this viewer, created if
+	 *         necessary
+	 */
+	public static SourceGeometryService forViewer(ViewerPanel viewer) {
+		synchronized (services) {
+			SourceGeometryService service = services.get(viewer);
+			if (service == null) {
+				service = new SourceGeometryService(viewer);
+				services.put(viewer, service);
+			}
+			return service;
+		}
+	}
+
+	final ViewerPanel viewer;
+
+	private final Set<Object> subscribers = new HashSet<>();
+
+	private volatile List<SourceBox> boxes = Collections.emptyList();
+
+	private long boxesVersion = 0;
+
+	// Sequence numbers of the rebuilds of the boxes, see updateBoxes
+	private long boxesRequested = 0, boxesPublished = 0;
+
+	private Frame lastFrame;
+
+	private SourceBoundsIndex boundsIndex;
+
+	// Extent of each source, per timepoint. Intervals do not reference their
+	// source, so the weak keys are really released.
+	private final Map<SourceAndConverter<?>, Map<Integer, RealInterval>> extents =
+		new WeakHashMap<>();
+
+	private int pendingExtents = 0;
+
+	private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+	SourceGeometryService(ViewerPanel viewer) {
+		this.viewer = viewer;
+	}
+
+	/**
+	 * Registers an object which uses the geometry of this viewer. As long as
+	 * there is at least one subscriber, the service follows the changes of the
+	 * viewer state.
+	 *
+	 * @param subscriber typically an overlay
+	 */
+	public void subscribe(Object subscriber) {
+		boolean first;
+		synchronized (this) {
+			first = subscribers.isEmpty();
+			if (first) {
+				synchronized (services) {
+					services.putIfAbsent(viewer, this);
+				}
+				viewer.state().changeListeners().add(this);
+			}
+			subscribers.add(subscriber);
+		}
+		// Reads the viewer state : not called while holding the lock of the
+		// service, which the state listener takes
+		if (first) updateBoxes();
+	}
+
+	/**
+	 * @param subscriber object previously registered with
+	 *          {@link SourceGeometryService#subscribe(Object)}
+	 */
+	public synchronized void unsubscribe(Object subscriber) {
+		if (subscribers.remove(subscriber) && subscribers.isEmpty()) {
+			viewer.state().changeListeners().remove(this);
+			// Rebuilds still running are not published
+			boxesPublished = ++boxesRequested;
+			boxes = Collections.emptyList();
+			lastFrame = null;
+			boundsIndex = null;
+			// The service references the viewer : as a value of the weak map, it
+			// would prevent the viewer from being garbage collected
+			synchronized (services) {
+				if (services.get(viewer) == this) services.remove(viewer);
+			}
+		}
+	}
+
+	@Override
+	public void viewerStateChanged(ViewerStateChange change) {
+		if (change.equals(NUM_SOURCES_CHANGED) || change.equals(
+			VISIBILITY_CHANGED) || change.equals(CURRENT_TIMEPOINT_CHANGED))
+		{
+			updateBoxes();
+		}
+	}
+
+	/**
+	 * Updates the boxes of the visible sources at the current timepoint. The
+	 * extents which are not known yet are fetched in the background : their
+	 * sources are added to the boxes once fetched. Called by the thread which
+	 * changes the viewer state and by the fetching threads : each rebuild gets
+	 * a sequence number before reading the state, and is not published if a
+	 * later one, which has read a more recent state, already has been.
+	 */
+	public void updateBoxes() {
+		final long t0 = SelectorMetrics.start();
+		long sequence;
+		synchronized (this) {
+			sequence = ++boxesRequested;
+		}
+		int currentTimePoint = viewer.state().getCurrentTimepoint();
+		List<SourceBox> newBoxes = new ArrayList<>();
+		synchronized (extents) {
+			for (SourceAndConverter<?> sac : viewer.state().getVisibleSources()) {
+				Map<Integer, RealInterval> sourceExtents = extents.computeIfAbsent(sac,
+					k -> new HashMap<>(2));
+				RealInterval interval = sourceExtents.get(currentTimePoint);
+				if (interval == null) {
+					sourceExtents.put(currentTimePoint, PENDING);
+					pendingExtents++;
+					fetchExtent(sac, currentTimePoint);
+				}
+				// TODO : fix hack to avoid dirty overlay filter, which are ABSENT
+				else if ((interval != PENDING) && (interval != ABSENT)) {
+					newBoxes.add(new SourceBox(sac, currentTimePoint, interval));
+				}
+			}
+		}
+		synchronized (this) {
+			if (sequence > boxesPublished) {
+				boxesPublished = sequence;
+				boxes = Collections.unmodifiableList(newBoxes);
+				boxesVersion++;
+				lastFrame = null;
+				boundsIndex = null;
+			}
+		}
+		SelectorMetrics.getInstance().updateBoxes.stop(t0);
+	}
+
+	private void fetchExtent(SourceAndConverter<?> sac, int timepoint) {
+		extentFetcher.execute(() -> {
+			RealInterval interval;
+			try {
+				interval = sac.getSpimSource().getSource(timepoint, 0) == null
+					? ABSENT : SourceBox.computeInterval(sac, timepoint);
+				if (interval == null) interval = ABSENT;
+				// Warping the boundary of a source is costly : done here rather than
+				// on the first paint
+				else BoundaryMesh.of(new SourceBox(sac, timepoint, interval));
+			}
+			catch (Exception e) {
+				System.err.println("Could not get the extent of source " + sac
+					.getSpimSource().getName() + " : " + e.getMessage());
+				interval = ABSENT;
+			}
+			synchronized (extents) {
+				extents.computeIfAbsent(sac, k -> new HashMap<>(2)).put(timepoint,
+					interval);
+				pendingExtents--;
+			}
+			scheduleRefresh();
+		});
+	}
+
+	/**
+	 * Rebuilds the boxes once, after the extents fetched so far, and repaints
+	 * the overlays
+	 */
+	private void scheduleRefresh() {
+		if (!refreshScheduled.compareAndSet(false, true)) return;
+		// Queued after the fetches already submitted, so that they are batched
+		extentFetcher.execute(() -> {
+			refreshScheduled.set(false);
+			synchronized (this) {
+				if (subscribers.isEmpty()) return;
+			}
+			updateBoxes();
+			viewer.getDisplay().repaint();
+		});
+	}
+
+	/**
+	 * @return true if the extents of some visible sources are still being
+	 *         fetched, in which case they are not part of the frames yet
+	 */
+	public boolean hasPendingExtents() {
+		synchronized (extents) {
+			return pendingExtents > 0;
+		}
+	}
+
+	/**
+	 * @return the boxes of the sources currently visible
+	 */
+	public List<SourceBox> getBoxes() {
+		return boxes;
+	}
+
+	/**
+	 * @return the bounding volume index of the visible sources, built on the
+	 *         first call after the visible sources or the timepoint change, or
+	 *         after sources have been moved or rewarped, see
+	 *         {@link SourceBox#sourcesMoved()}
+	 */
+	public SourceBoundsIndex getBoundsIndex() {
+		SourceBoundsIndex index;
+		List<SourceBox> currentBoxes;
+		long version;
+		synchronized (this) {
+			index = boundsIndex;
+			currentBoxes = boxes;
+			version = boxesVersion;
+		}
+		if ((index != null) && index.isUpToDate()) return index;
+		// Built without holding the lock, see getFrame
+		index = new SourceBoundsIndex(currentBoxes);
+		synchronized (this) {
+			if (version == boxesVersion) boundsIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the geometry of the visible sources for the current viewer
+	 * transform. The frame is recomputed only if the transform, the canvas size,
+	 * the timepoint or the visible sources have changed since the last call, or
+	 * if sources have been moved, see {@link SourceBox#sourcesMoved()}. A
+	 * frame is an immutable snapshot : it is built without holding any lock,
+	 * so that the paint and the input threads never wait for each other. When
+	 * both need a new frame at the same time, it may be built twice.
+	 *
+	 * @param canvasWidth width of the canvas the overlay draws in
+	 * @param canvasHeight height of the canvas the overlay draws in
+	 * @return the current frame
+	 */
+	public Frame getFrame(int canvasWidth, int canvasHeight) {
+		AffineTransform3D viewerTransform = new AffineTransform3D();
+		viewer.state().getViewerTransform(viewerTransform);
+		int timepoint = viewer.state().getCurrentTimepoint();
+		Frame frame;
+		List<SourceBox> currentBoxes;
+		long version;
+		synchronized (this) {
+			frame = lastFrame;
+			currentBoxes = boxes;
+			version = boxesVersion;
+		}
+		if ((frame != null) && (frame.isValidFor(viewerTransform, canvasWidth,
+			canvasHeight, timepoint, version)) && frame.slice.isUpToDate())
+		{
+			return frame;
+		}
+		frame = new Frame(currentBoxes, viewerTransform, canvasWidth,
+			canvasHeight, timepoint, version);
+		synchronized (this) {
+			// Not published if the boxes changed in the meantime
+			if (version == boxesVersion) lastFrame = frame;
+		}
+		return frame;
+	}
+
+	/**
+	 * Intersection of a source box with the current slicing plane, in screen
+	 * coordinates, see {@link SourceSelectionEngine.SlicedSource}. The AWT shape
+	 * used for drawing is only built when it is needed.
+	 */
+	public static class ProjectedSource {
+
+		final SourceSelectionEngine.SlicedSource sliced;
+
+		private GeneralPath intersection;
+
+		double labelX, labelY;
+
+		ProjectedSource(SourceSelectionEngine.SlicedSource sliced) {
+			this.sliced = sliced;
+		}
+
+		public SourceAndConverter<?> getSourceAndConverter() {
+			return sliced.getSourceAndConverter();
+		}
+
+		public SourceSelectionEngine.SlicedSource getSlicedSource() {
+			return sliced;
+		}
+
+		/**
+		 * @return the intersection of the source box with the slicing plane, null
+		 *         if it is degenerated
+		 */
+		public SlicePolygon getPolygon() {
+			return sliced.getPolygon();
+		}
+
+		/**
+		 * @return the intersection of the source box with the slicing plane, as a
+		 *         shape which can be drawn
+		 */
+		public synchronized GeneralPath getIntersection() {
+			if (intersection == null) {
+				intersection = toPath(sliced.getPolygon());
+			}
+			return intersection;
+		}
+
+		/**
+		 * Cheap test based on the projected corners of the box
+		 *
+		 * @param r a rectangle in screen coordinates
+		 * @return false if the intersection of this source with the slicing plane
+		 *         cannot intersect the rectangle
+		 */
+		public boolean mayIntersect(Rectangle2D r) {
+			return sliced.mayIntersect(r.getMinX(), r.getMinY(), r.getMaxX(), r
+				.getMaxY());
+		}
+
+		public double getLabelX() {
+			return labelX;
+		}
+
+		public double getLabelY() {
+			return labelY;
+		}
+	}
+
+	static GeneralPath toPath(SlicePolygon polygon) {
+		GeneralPath path = new GeneralPath(GeneralPath.WIND_EVEN_ODD);
+		if (polygon == null) return path;
+		for (int k = 0; k < polygon.getNumberOfLoops(); k++) {
+			int start = polygon.getLoopStart(k);
+			path.moveTo(polygon.getX(start), polygon.getY(start));
+			for (int i = start + 1; i < polygon.getLoopStart(k + 1); i++) {
+				path.lineTo(polygon.getX(i), polygon.getY(i));
+			}
+			path.closePath();
+		}
+		return path;
+	}
+
+	/**
+	 * Immutable geometry of all visible sources for one viewer transform
+	 */
+	public static class Frame {
+
+		final double[] viewerTransform;
+
+		final int canvasWidth, canvasHeight, timepoint;
+
+		final long boxesVersion;
+
+		final SourceSelectionEngine.Slice slice;
+
+		final List<ProjectedSource> projected;
+
+		final List<ProjectedSource> onScreen;
+
+		final int nCulledByCanvas;
+
+		private boolean labelsComputed = false;
+
+		private CentroidIndex centroidIndex;
+
+		Frame(List<SourceBox> boxes, AffineTransform3D viewerTransform,
+			int canvasWidth, int canvasHeight, int timepoint, long boxesVersion)
+		{
+			this.viewerTransform = viewerTransform.getRowPackedCopy();
+			this.canvasWidth = canvasWidth;
+			this.canvasHeight = canvasHeight;
+			this.timepoint = timepoint;
+			this.boxesVersion = boxesVersion;
+			this.slice = SourceSelectionEngine.slice(boxes, viewerTransform);
+
+			List<ProjectedSource> all = new ArrayList<>(slice.getSlicedSources()
+				.size());
+			List<ProjectedSource> visible = new ArrayList<>();
+			int culledByCanvas = 0;
+			for (SourceSelectionEngine.SlicedSource sliced : slice
+				.getSlicedSources())
+			{
+				ProjectedSource ps = new ProjectedSource(sliced);
+				all.add(ps);
+				// Projected corners first, exact intersection only if necessary
+				if (sliced.intersectsRectangle(0, 0, canvasWidth, canvasHeight)) {
+					visible.add(ps);
+				}
+				else {
+					culledByCanvas++;
+				}
+			}
+			this.projected = Collections.unmodifiableList(all);
+			this.onScreen = Collections.unmodifiableList(visible);
+			this.nCulledByCanvas = culledByCanvas;
+		}
+
+		boolean isValidFor(AffineTransform3D viewerTransform, int canvasWidth,
+			int canvasHeight, int timepoint, long boxesVersion)
+		{
+			return (this.canvasWidth == canvasWidth) &&
+				(this.canvasHeight == canvasHeight) && (this.timepoint == timepoint) &&
+				(this.boxesVersion == boxesVersion) && Arrays.equals(
+					this.viewerTransform, viewerTransform.getRowPackedCopy());
+		}
+
+		/**
+		 * @return the slice computed by the selection engine for this frame
+		 */
+		public SourceSelectionEngine.Slice getSlice() {
+			return slice;
+		}
+
+		/**
+		 * @return all sources crossing the slicing plane, including the ones which
+		 *         are out of the canvas, in the order of
+		 *         {@link SourceSelectionEngine.Slice#getSlicedSources()}
+		 */
+		public List<ProjectedSource> getProjectedSources() {
+			return projected;
+		}
+
+		/**
+		 * @return the sources whose intersection with the slicing plane is
+		 *         visible on the canvas
+		 */
+		public List<ProjectedSource> getOnScreenSources() {
+			return onScreen;
+		}
+
+		/**
+		 * @param r rectangle in screen coordinates
+		 * @return all sources whose intersection with the slicing plane
+		 *         intersects or contains the rectangle
+		 */
+		public Set<SourceAndConverter<?>> getSourcesIntersecting(Rectangle2D r) {
+			return slice.selectInRectangle(r.getMinX(), r.getMinY(), r.getMaxX(), r
+				.getMaxY());
+		}
+
+		/**
+		 * @return the sources whose intersection with the slicing plane contains
+		 *         the point, the smallest first
+		 */
+		public List<SourceAndConverter<?>> getSourcesAt(double x, double y) {
+			List<SourceAndConverter<?>> sources = new ArrayList<>();
+			for (int i : slice.pickIndexes(x, y)) {
+				sources.add(projected.get(i).getSourceAndConverter());
+			}
+			return sources;
+		}
+
+		/**
+		 * @return the projected sources whose intersection with the slicing plane
+		 *         contains the point, the smallest first
+		 */
+		public List<ProjectedSource> getProjectedSourcesAt(double x, double y) {
+			List<ProjectedSource> sources = new ArrayList<>();
+			for (int i : slice.pickIndexes(x, y)) {
+				sources.add(projected.get(i));
+			}
+			return sources;
+		}
+
+		/**
+		 * @param polygon lasso or polygon in screen coordinates
+		 * @return all sources whose intersection with the slicing plane
+		 *         intersects or is contained in the polygon
+		 */
+		public Set<SourceAndConverter<?>> getSourcesIntersecting(
+			ScreenPolygon polygon)
+		{
+			return slice.selectInPolygon(polygon);
+		}
+
+		/**
+		 * @return number of source boxes this frame has been built from
+		 */
+		public int getNumberOfSources() {
+			return slice.getNumberOfSources();
+		}
+
+		/**
+		 * @return number of sources rejected because they do not cross the
+		 *         slicing plane
+		 */
+		public int getNumberOfSourcesCulledByPlane() {
+			return slice.getNumberOfSourcesCulledByPlane();
+		}
+
+		/**
+		 * @return number of sources crossing the slicing plane but out of the
+		 *         canvas
+		 */
+		public int getNumberOfSourcesCulledByCanvas() {
+			return nCulledByCanvas;
+		}
+
+		/**
+		 * @return the viewer transform this frame has been computed for
+		 */
+		public AffineTransform3D getViewerTransform() {
+			AffineTransform3D transform = new AffineTransform3D();
+			transform.set(viewerTransform);
+			return transform;
+		}
+
+		/**
+		 * @return the k-d tree of the centroids of the visible part of the on
+		 *         screen sources, in the order of
+		 *         {@link Frame#getOnScreenSources()}, built on the first call
+		 */
+		synchronized CentroidIndex getCentroidIndex() {
+			if (centroidIndex == null) {
+				int n = onScreen.size();
+				double[] xs = new double[n], ys = new double[n], heights =
+					new double[n];
+				for (int i = 0; i < n; i++) {
+					SlicePolygon p = onScreen.get(i).getPolygon();
+					SlicePolygon clipped = p.clip(0, 0, canvasWidth, canvasHeight);
+					if (clipped == null) clipped = p;
+					xs[i] = (clipped.getMinX() + clipped.getMaxX()) / 2.0;
+					ys[i] = (clipped.getMinY() + clipped.getMaxY()) / 2.0;
+					heights[i] = clipped.getMaxY() - clipped.getMinY();
+				}
+				centroidIndex = new CentroidIndex(xs, ys, heights);
+			}
+			return centroidIndex;
+		}
+
+		/**
+		 * Lays out the source names of the on screen sources : each label is put
+		 * at the centroid of the visible part of its source, and shifted down if
+		 * another label is already there
+		 *
+		 * @return the on screen sources, with their label location computed
+		 */
+		public synchronized List<ProjectedSource> getLabelledSources() {
+			if (!labelsComputed) {
+				Map<Integer, Set<Integer>> occupied = new HashMap<>();
+				for (ProjectedSource ps : onScreen) {
+					SlicePolygon clipped = ps.getPolygon().clip(0, 0, canvasWidth,
+						canvasHeight);
+					if (clipped == null) clipped = ps.getPolygon();
+					placeLabel(ps, (clipped.getMinX() + clipped.getMaxX()) / 2.0,
+						(clipped.getMinY() + clipped.getMaxY()) / 2.0, occupied);
+				}
+				labelsComputed = true;
+			}
+			return onScreen;
+		}
+
+		private static void placeLabel(ProjectedSource ps, double xp, double yp,
+			Map<Integer, Set<Integer>> occupied)
+		{
+			double binSizeX = 100;
+			double binSizeY = 20;
+			int binX = (int) (xp / binSizeX);
+			int binY = (int) (yp / binSizeY);
+			int shiftY = 0;
+			Set<Integer> occupiedY = occupied.computeIfAbsent(binX,
+				k -> new HashSet<>());
+			while (occupiedY.contains(binY)) {
+				binY++;
+				shiftY += (int) binSizeY;
+			}
+			occupiedY.add(binY);
+			ps.labelX = xp;
+			ps.labelY = yp + shiftY;
+		}
+	}
+
+}
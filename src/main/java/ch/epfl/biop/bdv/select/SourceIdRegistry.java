@@ -0,0 +1,103 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Gives a small int id to each source, so that sets of sources can be stored
+ * as {@link BitSet} : 100k sources fit in 12.5 kB, and set operations are done
+ * 64 sources at a time. Ids are given in order of first use and never reused.
+ * Sources are weakly referenced : registering a source does not prevent it
+ * from being garbage collected once removed from the viewer. All methods are
+ * thread safe.
+ */
+
+final class SourceIdRegistry {
+
+	private final Map<SourceAndConverter<?>, Integer> ids = new WeakHashMap<>();
+
+	private final List<WeakReference<SourceAndConverter<?>>> sources =
+		new ArrayList<>();
+
+	/**
+	 * @return the id of this source, a new one if it is not registered yet
+	 */
+	synchronized int getId(SourceAndConverter<?> sac) {
+		Integer id = ids.get(sac);
+		if (id == null) {
+			id = sources.size();
+			ids.put(sac, id);
+			sources.add(new WeakReference<>(sac));
+		}
+		return id;
+	}
+
+	/**
+	 * @return the source of this id, null if it is unknown or has been garbage
+	 *         collected
+	 */
+	synchronized SourceAndConverter<?> getSource(int id) {
+		if ((id < 0) || (id >= sources.size())) return null;
+		return sources.get(id).get();
+	}
+
+	synchronized int size() {
+		return sources.size();
+	}
+
+	synchronized BitSet toBitSet(Collection<SourceAndConverter<?>> set) {
+		BitSet bits = new BitSet(sources.size());
+		for (SourceAndConverter<?> sac : set) {
+			bits.set(getId(sac));
+		}
+		return bits;
+	}
+
+	synchronized int[] toIds(Collection<SourceAndConverter<?>> set) {
+		int[] result = new int[set.size()];
+		int k = 0;
+		for (SourceAndConverter<?> sac : set) {
+			result[k++] = getId(sac);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the sources of these ids, without the ones which have been
+	 *         garbage collected
+	 */
+	synchronized Set<SourceAndConverter<?>> toSources(int[] ids) {
+		Set<SourceAndConverter<?>> set = new HashSet<>(Math.max(16, ids.length *
+			2));
+		for (int id : ids) {
+			SourceAndConverter<?> sac = getSource(id);
+			if (sac != null) set.add(sac);
+		}
+		return set;
+	}
+
+	/**
+	 * @return the sources of the set bits, without the ones which have been
+	 *         garbage collected
+	 */
+	synchronized Set<SourceAndConverter<?>> toSources(BitSet bits) {
+		Set<SourceAndConverter<?>> set = new HashSet<>(Math.max(16, bits
+			.cardinality() * 2));
+		for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+			if (id >= sources.size()) break;
+			SourceAndConverter<?> sac = sources.get(id).get();
+			if (sac != null) set.add(sac);
+		}
+		return set;
+	}
+
+}
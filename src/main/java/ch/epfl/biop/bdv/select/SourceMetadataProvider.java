@@ -0,0 +1,62 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.tools.brightness.ConverterSetup;
+import bdv.viewer.ConverterSetups;
+import bdv.viewer.SourceAndConverter;
+import mpicbg.spim.data.generic.AbstractSpimData;
+import mpicbg.spim.data.generic.base.Entity;
+import mpicbg.spim.data.generic.base.NamedEntity;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Provides key / value metadata of sources, which can then be queried with
+ * {@link SourceSelectorBehaviour#findSourcesByMetadata(String, String)}.
+ */
+
+public interface SourceMetadataProvider {
+
+	/**
+	 * @param sac source
+	 * @return the metadata of this source, an empty map if it has none
+	 */
+	Map<String, String> getMetadata(SourceAndConverter<?> sac);
+
+	/**
+	 * Metadata taken from the attributes of the view setups of a dataset, for
+	 * instance "channel" = "2" or "tile" = "12". The value of an attribute is
+	 * its name, or its id if it has no name.
+	 *
+	 * @param spimData dataset the sources come from
+	 * @param converterSetups converter setups of the viewer, used to find the
+	 *          setup id of a source, see BdvHandle#getConverterSetups()
+	 * @return a provider of the view setup attributes of the sources
+	 */
+	static SourceMetadataProvider fromSpimData(AbstractSpimData<?> spimData,
+		ConverterSetups converterSetups)
+	{
+		final Map<Integer, ? extends BasicViewSetup> setups = spimData
+			.getSequenceDescription().getViewSetups();
+		return sac -> {
+			ConverterSetup cs = converterSetups.getConverterSetup(sac);
+			if (cs == null) return Collections.emptyMap();
+			BasicViewSetup setup = setups.get(cs.getSetupId());
+			if (setup == null) return Collections.emptyMap();
+			Map<String, String> metadata = new HashMap<>();
+			for (Map.Entry<String, Entity> attribute : setup.getAttributes()
+				.entrySet())
+			{
+				Entity entity = attribute.getValue();
+				String value = ((entity instanceof NamedEntity) &&
+					(((NamedEntity) entity).getName() != null)) ? ((NamedEntity) entity)
+						.getName() : Integer.toString(entity.getId());
+				metadata.put(attribute.getKey(), value);
+			}
+			return metadata;
+		};
+	}
+
+}
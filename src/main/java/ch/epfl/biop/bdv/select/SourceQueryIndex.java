@@ -0,0 +1,267 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Index of sources by name and by metadata, maintained incrementally as
+ * sources are added and removed. Names are kept sorted, forward and reversed,
+ * so that a glob pattern with a literal prefix ("Well_B*") or a literal suffix
+ * ("*_ch2") only goes through the names which share it. Metadata are indexed
+ * by key, then by value. All methods are thread safe.
+ */
+
+public class SourceQueryIndex {
+
+	private final NavigableMap<String, List<SourceAndConverter<?>>> byName =
+		new TreeMap<>();
+
+	private final NavigableMap<String, List<SourceAndConverter<?>>> byReversedName =
+		new TreeMap<>();
+
+	private final Map<String, Map<String, Set<SourceAndConverter<?>>>> byMetadata =
+		new HashMap<>();
+
+	// Name and metadata at the time the source was indexed, to remove it
+	private final Map<SourceAndConverter<?>, String> names = new HashMap<>();
+
+	private final Map<SourceAndConverter<?>, Map<String, String>> metadata =
+		new HashMap<>();
+
+	private SourceMetadataProvider metadataProvider = null;
+
+	/**
+	 * Sets how metadata are fetched, and reindexes the metadata of all sources
+	 *
+	 * @param provider metadata provider, or null to index names only
+	 */
+	public synchronized void setMetadataProvider(
+		SourceMetadataProvider provider)
+	{
+		this.metadataProvider = provider;
+		byMetadata.clear();
+		metadata.clear();
+		for (SourceAndConverter<?> sac : names.keySet()) {
+			indexMetadata(sac);
+		}
+	}
+
+	public synchronized void add(SourceAndConverter<?> sac) {
+		if (names.containsKey(sac)) return;
+		String name = sac.getSpimSource().getName();
+		if (name == null) name = "";
+		names.put(sac, name);
+		byName.computeIfAbsent(name, k -> new ArrayList<>(1)).add(sac);
+		byReversedName.computeIfAbsent(reverse(name), k -> new ArrayList<>(1)).add(
+			sac);
+		indexMetadata(sac);
+	}
+
+	public synchronized void remove(SourceAndConverter<?> sac) {
+		String name = names.remove(sac);
+		if (name == null) return;
+		removeFrom(byName, name, sac);
+		removeFrom(byReversedName, reverse(name), sac);
+		Map<String, String> md = metadata.remove(sac);
+		if (md != null) {
+			for (Map.Entry<String, String> entry : md.entrySet()) {
+				Map<String, Set<SourceAndConverter<?>>> values = byMetadata.get(entry
+					.getKey());
+				if (values == null) continue;
+				Set<SourceAndConverter<?>> sources = values.get(entry.getValue());
+				if (sources == null) continue;
+				sources.remove(sac);
+				if (sources.isEmpty()) values.remove(entry.getValue());
+				if (values.isEmpty()) byMetadata.remove(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Adds and removes sources such as the index contains exactly the given
+	 * sources. Only the differences are processed.
+	 *
+	 * @param sources sources which should be indexed
+	 */
+	public synchronized void sync(Collection<SourceAndConverter<?>> sources) {
+		Set<SourceAndConverter<?>> target = (sources instanceof Set)
+			? (Set<SourceAndConverter<?>>) sources : new HashSet<>(sources);
+		List<SourceAndConverter<?>> removed = new ArrayList<>();
+		for (SourceAndConverter<?> sac : names.keySet()) {
+			if (!target.contains(sac)) removed.add(sac);
+		}
+		removed.forEach(this::remove);
+		for (SourceAndConverter<?> sac : target) {
+			add(sac);
+		}
+	}
+
+	public synchronized int size() {
+		return names.size();
+	}
+
+	/**
+	 * @param prefix beginning of the name
+	 * @return the sources whose name starts with prefix
+	 */
+	public synchronized Set<SourceAndConverter<?>> findByNamePrefix(
+		String prefix)
+	{
+		Set<SourceAndConverter<?>> result = new HashSet<>();
+		withPrefix(byName, prefix).values().forEach(result::addAll);
+		return result;
+	}
+
+	/**
+	 * @param pattern glob pattern : '*' matches any sequence of characters, '?'
+	 *          matches a single character, for instance "Well_B*"
+	 * @return the sources whose name matches the pattern
+	 */
+	public synchronized Set<SourceAndConverter<?>> findByName(String pattern) {
+		int firstWildcard = firstWildcard(pattern);
+		if (firstWildcard < 0) {
+			List<SourceAndConverter<?>> sources = byName.get(pattern);
+			return sources == null ? new HashSet<>() : new HashSet<>(sources);
+		}
+		String prefix = pattern.substring(0, firstWildcard);
+		if ((firstWildcard == pattern.length() - 1) && (pattern.charAt(
+			firstWildcard) == '*'))
+		{
+			// "prefix*" : all the names of the range match
+			return findByNamePrefix(prefix);
+		}
+		Set<SourceAndConverter<?>> result = new HashSet<>();
+		String suffix = pattern.substring(lastWildcard(pattern) + 1);
+		if (suffix.length() > prefix.length()) {
+			String reversedPattern = reverse(pattern);
+			for (Map.Entry<String, List<SourceAndConverter<?>>> entry : withPrefix(
+				byReversedName, reverse(suffix)).entrySet())
+			{
+				if (globMatches(reversedPattern, entry.getKey())) result.addAll(entry
+					.getValue());
+			}
+		}
+		else {
+			for (Map.Entry<String, List<SourceAndConverter<?>>> entry : withPrefix(
+				byName, prefix).entrySet())
+			{
+				if (globMatches(pattern, entry.getKey())) result.addAll(entry
+					.getValue());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param key metadata key, for instance "channel"
+	 * @param value metadata value, for instance "2"
+	 * @return the sources which have this metadata value
+	 */
+	public synchronized Set<SourceAndConverter<?>> findByMetadata(String key,
+		String value)
+	{
+		Map<String, Set<SourceAndConverter<?>>> values = byMetadata.get(key);
+		if (values == null) return new HashSet<>();
+		Set<SourceAndConverter<?>> sources = values.get(value);
+		return sources == null ? new HashSet<>() : new HashSet<>(sources);
+	}
+
+	/**
+	 * @return the metadata keys of the indexed sources
+	 */
+	public synchronized Set<String> getMetadataKeys() {
+		return Collections.unmodifiableSet(new HashSet<>(byMetadata.keySet()));
+	}
+
+	private void indexMetadata(SourceAndConverter<?> sac) {
+		if (metadataProvider == null) return;
+		Map<String, String> md = metadataProvider.getMetadata(sac);
+		if ((md == null) || md.isEmpty()) return;
+		md = new HashMap<>(md);
+		metadata.put(sac, md);
+		for (Map.Entry<String, String> entry : md.entrySet()) {
+			byMetadata.computeIfAbsent(entry.getKey(), k -> new HashMap<>())
+				.computeIfAbsent(entry.getValue(), k -> new HashSet<>()).add(sac);
+		}
+	}
+
+	private static void removeFrom(
+		Map<String, List<SourceAndConverter<?>>> map, String key,
+		SourceAndConverter<?> sac)
+	{
+		List<SourceAndConverter<?>> sources = map.get(key);
+		if (sources == null) return;
+		sources.remove(sac);
+		if (sources.isEmpty()) map.remove(key);
+	}
+
+	private static <T> NavigableMap<String, T> withPrefix(
+		NavigableMap<String, T> map, String prefix)
+	{
+		if (prefix.isEmpty()) return map;
+		return map.subMap(prefix, true, prefix + Character.MAX_VALUE, true);
+	}
+
+	private static String reverse(String s) {
+		return new StringBuilder(s).reverse().toString();
+	}
+
+	private static int firstWildcard(String pattern) {
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if ((c == '*') || (c == '?')) return i;
+		}
+		return -1;
+	}
+
+	private static int lastWildcard(String pattern) {
+		for (int i = pattern.length() - 1; i >= 0; i--) {
+			char c = pattern.charAt(i);
+			if ((c == '*') || (c == '?')) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Glob matching without backtracking on more than the last '*'
+	 *
+	 * @return true if name matches the pattern
+	 */
+	static boolean globMatches(String pattern, String name) {
+		int p = 0, n = 0, starP = -1, starN = 0;
+		while (n < name.length()) {
+			if ((p < pattern.length()) && ((pattern.charAt(p) == '?') || (pattern
+				.charAt(p) == name.charAt(n))))
+			{
+				p++;
+				n++;
+			}
+			else if ((p < pattern.length()) && (pattern.charAt(p) == '*')) {
+				starP = p++;
+				starN = n;
+			}
+			else if (starP >= 0) {
+				p = starP + 1;
+				n = ++starN;
+			}
+			else {
+				return false;
+			}
+		}
+		while ((p < pattern.length()) && (pattern.charAt(p) == '*')) {
+			p++;
+		}
+		return p == pattern.length();
+	}
+
+}
@@ -0,0 +1,473 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.img.WarpedSource;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Region selection of sources, independent of any viewer : given a list of
+ * sources, a viewer transform, a timepoint and a query region in screen
+ * coordinates, it returns the sources whose intersection with the slicing
+ * plane hits the region. Sources can also be selected in a 3D volume, across
+ * slices, with a {@link SourceBoundsIndex}. There is no AWT nor Swing dependency, so it can be
+ * used in batch scripts on headless machines. An engine is thread safe and
+ * can be queried from several threads, the extents of the sources being
+ * fetched once per timepoint. Source transforms and warps are not watched :
+ * call {@link SourceBox#sourcesMoved()} after modifying them.
+ * {@link SourceSelectorOverlay} and
+ * {@link SourceGeometryService} are built on top of the static
+ * {@link SourceSelectionEngine#slice(List, AffineTransform3D)} function.
+ * Example:
+ *
+ * <pre>
+ * SourceSelectionEngine engine = new SourceSelectionEngine(sources);
+ * Set&lt;SourceAndConverter&lt;?&gt;&gt; hits = engine.selectInRectangle(viewerTransform, 0,
+ * 	0, 0, 400, 300);
+ * </pre>
+ */
+
+public class SourceSelectionEngine {
+
+	final List<SourceAndConverter<?>> sources;
+
+	final Map<Integer, List<SourceBox>> boxesPerTimepoint =
+		new ConcurrentHashMap<>();
+
+	final Map<Integer, SourceBoundsIndex> indexPerTimepoint =
+		new ConcurrentHashMap<>();
+
+	public SourceSelectionEngine(
+		Collection<? extends SourceAndConverter<?>> sources)
+	{
+		this.sources = Collections.unmodifiableList(new ArrayList<>(sources));
+	}
+
+	public List<SourceAndConverter<?>> getSources() {
+		return sources;
+	}
+
+	/**
+	 * @param timepoint timepoint
+	 * @return the boxes of the sources at this timepoint, computed once
+	 */
+	public List<SourceBox> getBoxes(int timepoint) {
+		return boxesPerTimepoint.computeIfAbsent(timepoint, t -> {
+			List<SourceBox> boxes = new ArrayList<>(sources.size());
+			for (SourceAndConverter<?> sac : sources) {
+				boxes.add(new SourceBox(sac, t));
+			}
+			return Collections.unmodifiableList(boxes);
+		});
+	}
+
+	/**
+	 * @param timepoint timepoint
+	 * @return the bounding volume index of the sources at this timepoint,
+	 *         built again only if sources have been moved or rewarped, see
+	 *         {@link SourceBox#sourcesMoved()}
+	 */
+	public SourceBoundsIndex getBoundsIndex(int timepoint) {
+		return indexPerTimepoint.compute(timepoint, (t, index) -> ((index !=
+			null) && index.isUpToDate()) ? index : new SourceBoundsIndex(getBoxes(
+				t)));
+	}
+
+	/**
+	 * @param worldInterval volume in world coordinates
+	 * @param timepoint timepoint
+	 * @return the sources whose transformed box intersects the volume, whatever
+	 *         the current slicing plane
+	 */
+	public Set<SourceAndConverter<?>> selectInVolume(RealInterval worldInterval,
+		int timepoint)
+	{
+		return getBoundsIndex(timepoint).query(worldInterval);
+	}
+
+	/**
+	 * Selects the sources in the volume defined by a rectangle on screen and a
+	 * depth range around the slicing plane
+	 *
+	 * @param viewerTransform world to screen transform
+	 * @param timepoint timepoint
+	 * @param zMin lower bound of the depth range, in viewer coordinates (the
+	 *          slicing plane is at z = 0), can be infinite
+	 * @param zMax upper bound of the depth range, can be infinite
+	 * @return the sources whose transformed box intersects the volume
+	 */
+	public Set<SourceAndConverter<?>> selectInVolume(
+		AffineTransform3D viewerTransform, int timepoint, double x0, double y0,
+		double x1, double y1, double zMin, double zMax)
+	{
+		return selectInVolume(getBoundsIndex(timepoint), viewerTransform, x0, y0,
+			x1, y1, zMin, zMax);
+	}
+
+	/**
+	 * See
+	 * {@link SourceSelectionEngine#selectInVolume(AffineTransform3D, int, double, double, double, double, double, double)}
+	 */
+	public static Set<SourceAndConverter<?>> selectInVolume(
+		SourceBoundsIndex index, AffineTransform3D viewerTransform, double x0,
+		double y0, double x1, double y1, double zMin, double zMax)
+	{
+		if (index.size() == 0) return new HashSet<>();
+		if (Double.isInfinite(zMin) || Double.isInfinite(zMax)) {
+			// Clamps the depth range to the extent of all sources
+			double[] corner = new double[3];
+			double[] viewerCorner = new double[3];
+			double zLow = Double.POSITIVE_INFINITY, zHigh = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < 8; i++) {
+				for (int d = 0; d < 3; d++) {
+					corner[d] = ((i & (1 << d)) == 0) ? index.realMin(d) : index
+						.realMax(d);
+				}
+				viewerTransform.apply(corner, viewerCorner);
+				zLow = Math.min(zLow, viewerCorner[2]);
+				zHigh = Math.max(zHigh, viewerCorner[2]);
+			}
+			if (Double.isInfinite(zMin)) zMin = Math.min(zLow, zMax);
+			if (Double.isInfinite(zMax)) zMax = Math.max(zHigh, zMin);
+		}
+		RealInterval viewerInterval = new FinalRealInterval(new double[] { Math
+			.min(x0, x1), Math.min(y0, y1), zMin }, new double[] { Math.max(x0, x1),
+				Math.max(y0, y1), zMax });
+		return index.query(OrientedBox.ofViewerInterval(viewerInterval,
+			viewerTransform));
+	}
+
+	/**
+	 * @param viewerTransform world to screen transform
+	 * @param timepoint timepoint
+	 * @return the sources crossing the slicing plane
+	 */
+	public Slice slice(AffineTransform3D viewerTransform, int timepoint) {
+		return slice(getBoxes(timepoint), viewerTransform);
+	}
+
+	/**
+	 * @return the sources whose intersection with the slicing plane intersects
+	 *         or contains the rectangle (x0, y0) - (x1, y1), in screen
+	 *         coordinates
+	 */
+	public Set<SourceAndConverter<?>> selectInRectangle(
+		AffineTransform3D viewerTransform, int timepoint, double x0, double y0,
+		double x1, double y1)
+	{
+		return slice(viewerTransform, timepoint).selectInRectangle(Math.min(x0,
+			x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1));
+	}
+
+	/**
+	 * @param polygon lasso or polygon in screen coordinates
+	 * @return the sources whose intersection with the slicing plane intersects
+	 *         or is contained in the polygon
+	 */
+	public Set<SourceAndConverter<?>> selectInPolygon(
+		AffineTransform3D viewerTransform, int timepoint, ScreenPolygon polygon)
+	{
+		return slice(viewerTransform, timepoint).selectInPolygon(polygon);
+	}
+
+	/**
+	 * Projects the boxes in viewer space. Boxes which do not cross the slicing
+	 * plane are rejected with their 8 projected corners ; the exact
+	 * intersection polygon of the other ones is computed lazily. Warped sources
+	 * are culled with the bounding box of their boundary mesh, and their
+	 * intersection is computed by slicing the mesh.
+	 *
+	 * @param boxes source boxes
+	 * @param viewerTransform world to screen transform
+	 * @return the sources crossing the slicing plane
+	 */
+	public static Slice slice(List<SourceBox> boxes,
+		AffineTransform3D viewerTransform)
+	{
+		// Read before the source transforms : a source moved while slicing makes
+		// the slice out of date
+		final long version = SourceBox.getTransformsVersion();
+		final double[][] corners = new double[8][3];
+		List<SlicedSource> sliced = new ArrayList<>();
+		int culledByPlane = 0;
+		AffineTransform3D sourceTransform = new AffineTransform3D();
+		for (SourceBox box : boxes) {
+			if (box.interval == null) continue;
+			BoundaryMesh mesh = null;
+			AffineTransform3D transform;
+			if (box.sac.getSpimSource() instanceof WarpedSource) {
+				mesh = BoundaryMesh.of(box);
+			}
+			if (mesh == null) {
+				box.getTransform(sourceTransform);
+				transform = sourceTransform.copy();
+				transform.preConcatenate(viewerTransform);
+				SlicePolygon.projectCorners(box.interval, transform, corners);
+			}
+			else {
+				// The mesh is in world coordinates
+				transform = viewerTransform.copy();
+				SlicePolygon.projectCorners(mesh.getBounds(), transform, corners);
+			}
+
+			double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+			double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+			double zMin = Double.POSITIVE_INFINITY, zMax = Double.NEGATIVE_INFINITY;
+			for (double[] c : corners) {
+				xMin = Math.min(xMin, c[0]);
+				xMax = Math.max(xMax, c[0]);
+				yMin = Math.min(yMin, c[1]);
+				yMax = Math.max(yMax, c[1]);
+				zMin = Math.min(zMin, c[2]);
+				zMax = Math.max(zMax, c[2]);
+			}
+
+			// The box does not cross the slicing plane : nothing to draw or select
+			if ((zMin > 0) || (zMax < 0)) {
+				culledByPlane++;
+				continue;
+			}
+			sliced.add(new SlicedSource(box, mesh, transform, xMin, yMin, xMax,
+				yMax));
+		}
+		return new Slice(sliced, boxes.size(), version, culledByPlane);
+	}
+
+	/**
+	 * A source crossing the slicing plane
+	 */
+	public static class SlicedSource {
+
+		final SourceBox box;
+
+		// Boundary of a warped source, null for an affine source
+		final BoundaryMesh mesh;
+
+		// Source to viewer transform, or world to viewer transform for a mesh
+		final AffineTransform3D transform;
+
+		// Bounds of the projected corners, which contain the intersection polygon
+		final double xMin, yMin, xMax, yMax;
+
+		private volatile SlicePolygon polygon;
+
+		private volatile boolean polygonComputed = false;
+
+		SlicedSource(SourceBox box, BoundaryMesh mesh, AffineTransform3D transform,
+			double xMin, double yMin, double xMax, double yMax)
+		{
+			this.box = box;
+			this.mesh = mesh;
+			this.transform = transform;
+			this.xMin = xMin;
+			this.yMin = yMin;
+			this.xMax = xMax;
+			this.yMax = yMax;
+		}
+
+		public SourceAndConverter<?> getSourceAndConverter() {
+			return box.sac;
+		}
+
+		public SourceBox getBox() {
+			return box;
+		}
+
+		/**
+		 * @return the intersection of the box with the slicing plane, null if it
+		 *         is degenerated - it may be concave for a warped source
+		 */
+		public SlicePolygon getPolygon() {
+			if (!polygonComputed) {
+				polygon = mesh == null ? SlicePolygon.slice(box.interval, transform)
+					: mesh.slice(transform);
+				polygonComputed = true;
+			}
+			return polygon;
+		}
+
+		/**
+		 * Cheap test based on the projected corners of the box
+		 *
+		 * @return false if the intersection of this source with the slicing plane
+		 *         cannot intersect the rectangle
+		 */
+		public boolean mayIntersect(double rMinX, double rMinY, double rMaxX,
+			double rMaxY)
+		{
+			return (xMax >= rMinX) && (xMin <= rMaxX) && (yMax >= rMinY) &&
+				(yMin <= rMaxY);
+		}
+
+		/**
+		 * @return true if the intersection of this source with the slicing plane
+		 *         intersects or contains the rectangle
+		 */
+		public boolean intersectsRectangle(double rMinX, double rMinY,
+			double rMaxX, double rMaxY)
+		{
+			if (!mayIntersect(rMinX, rMinY, rMaxX, rMaxY)) return false;
+			SlicePolygon p = getPolygon();
+			return (p != null) && p.intersectsRectangle(rMinX, rMinY, rMaxX, rMaxY);
+		}
+	}
+
+	/**
+	 * All sources crossing the slicing plane for a viewer transform. Queries go
+	 * through a uniform grid over the projected corners of the sources, built
+	 * on the first query.
+	 */
+	public static class Slice {
+
+		final List<SlicedSource> sliced;
+
+		final int nSources, nCulledByPlane;
+
+		// Version of the source transforms this slice has been computed with
+		final long transformsVersion;
+
+		private volatile ScreenGrid grid;
+
+		Slice(List<SlicedSource> sliced, int nSources, long transformsVersion,
+			int nCulledByPlane)
+		{
+			this.sliced = Collections.unmodifiableList(sliced);
+			this.nSources = nSources;
+			this.transformsVersion = transformsVersion;
+			this.nCulledByPlane = nCulledByPlane;
+		}
+
+		/**
+		 * @return false if sources have been moved or rewarped since this slice
+		 *         has been computed, see {@link SourceBox#sourcesMoved()}
+		 */
+		public boolean isUpToDate() {
+			return transformsVersion == SourceBox.getTransformsVersion();
+		}
+
+		public List<SlicedSource> getSlicedSources() {
+			return sliced;
+		}
+
+		/**
+		 * @return number of boxes this slice has been built from
+		 */
+		public int getNumberOfSources() {
+			return nSources;
+		}
+
+		/**
+		 * @return number of boxes rejected because they do not cross the slicing
+		 *         plane
+		 */
+		public int getNumberOfSourcesCulledByPlane() {
+			return nCulledByPlane;
+		}
+
+		ScreenGrid getGrid() {
+			ScreenGrid g = grid;
+			if (g == null) {
+				synchronized (this) {
+					g = grid;
+					if (g == null) {
+						int n = sliced.size();
+						double[] xMin = new double[n], yMin = new double[n];
+						double[] xMax = new double[n], yMax = new double[n];
+						for (int i = 0; i < n; i++) {
+							SlicedSource s = sliced.get(i);
+							xMin[i] = s.xMin;
+							yMin[i] = s.yMin;
+							xMax[i] = s.xMax;
+							yMax[i] = s.yMax;
+						}
+						g = new ScreenGrid(xMin, yMin, xMax, yMax, n);
+						grid = g;
+					}
+				}
+			}
+			return g;
+		}
+
+		/**
+		 * @return the sources whose intersection with the slicing plane
+		 *         intersects or contains the rectangle
+		 */
+		public Set<SourceAndConverter<?>> selectInRectangle(double rMinX,
+			double rMinY, double rMaxX, double rMaxY)
+		{
+			Set<SourceAndConverter<?>> hits = new HashSet<>();
+			getGrid().query(rMinX, rMinY, rMaxX, rMaxY, i -> {
+				SlicedSource s = sliced.get(i);
+				if (s.intersectsRectangle(rMinX, rMinY, rMaxX, rMaxY)) {
+					hits.add(s.box.sac);
+				}
+			});
+			return hits;
+		}
+
+		/**
+		 * Point location query
+		 *
+		 * @return the sources whose intersection with the slicing plane contains
+		 *         the point, the smallest first
+		 */
+		public List<SlicedSource> pick(double x, double y) {
+			List<SlicedSource> hits = new ArrayList<>();
+			for (int i : pickIndexes(x, y)) {
+				hits.add(sliced.get(i));
+			}
+			return hits;
+		}
+
+		/**
+		 * @return indexes in {@link Slice#getSlicedSources()} of the sources
+		 *         containing the point, the smallest first
+		 */
+		int[] pickIndexes(double x, double y) {
+			List<Integer> hits = new ArrayList<>();
+			getGrid().query(x, y, x, y, i -> {
+				SlicedSource s = sliced.get(i);
+				if (!s.mayIntersect(x, y, x, y)) return;
+				SlicePolygon p = s.getPolygon();
+				if ((p != null) && p.contains(x, y)) hits.add(i);
+			});
+			hits.sort(Comparator.comparingDouble(i -> sliced.get(i).getPolygon()
+				.area()));
+			int[] indexes = new int[hits.size()];
+			for (int k = 0; k < indexes.length; k++) {
+				indexes[k] = hits.get(k);
+			}
+			return indexes;
+		}
+
+		/**
+		 * @param polygon lasso or polygon drawn on screen
+		 * @return the sources whose intersection with the slicing plane
+		 *         intersects or is contained in the polygon
+		 */
+		public Set<SourceAndConverter<?>> selectInPolygon(ScreenPolygon polygon) {
+			Set<SourceAndConverter<?>> hits = new HashSet<>();
+			getGrid().query(polygon.minX, polygon.minY, polygon.maxX, polygon.maxY,
+				i -> {
+					SlicedSource s = sliced.get(i);
+					if (!s.mayIntersect(polygon.minX, polygon.minY, polygon.maxX,
+						polygon.maxY)) return;
+					SlicePolygon p = s.getPolygon();
+					if ((p != null) && polygon.intersects(p)) hits.add(s.box.sac);
+				});
+			return hits;
+		}
+	}
+
+}
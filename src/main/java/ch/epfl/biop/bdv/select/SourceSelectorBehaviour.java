@@ -1,6 +1,7 @@
 
 package ch.epfl.biop.bdv.select;
 
+import bdv.tools.brightness.ConverterSetup;
 import bdv.util.BdvFunctions;
 import bdv.util.BdvHandle;
 import bdv.util.BdvOptions;
@@ -12,19 +13,34 @@ import bdv.viewer.ViewerPanel;
 import bdv.viewer.ViewerState;
 import bdv.viewer.ViewerStateChange;
 import bdv.viewer.ViewerStateChangeListener;
+import net.imglib2.RealInterval;
 import org.scijava.ui.behaviour.*;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 import org.scijava.ui.behaviour.util.Behaviours;
 import org.scijava.ui.behaviour.util.TriggerBehaviourBindings;
 import javax.swing.InputMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static bdv.viewer.ViewerStateChange.*;
@@ -40,9 +56,9 @@ import static bdv.viewer.ViewerStateChange.*;
  * such as only visible sources can be selected - if source becomes invisible,
  * then they are removed from the current selected. This is made to avoid that a
  * removed Source is kept in memory while it is invisible or more importantly if
- * it is removed from the BdvHandle. Limitation : supports 'Box' (3d RAI with an
- * Affine Transform) sources - A WarpedSource will not be handled well without
- * some extra effort for instance See BdvSelectorDemo for usage example
+ * it is removed from the BdvHandle. Supports 'Box' (3d RAI with an Affine
+ * Transform) sources, and WarpedSource with an invertible warp, whose boundary
+ * is sampled into a boundary mesh. See BdvSelectorDemo for usage example
  *
  * @author Nicolas Chiaruttini, BIOP, EPFL, 2020
  */
@@ -67,10 +83,15 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 
 	final ViewerPanel viewer;
 
+	// State of the viewer, or of a selector without viewer
+	final SynchronizedViewerState state;
+
 	final Behaviours behaviours;
 
 	boolean isInstalled; // flag for the toggle action
 
+	private boolean focusTraversalKeysEnabled = true;
+
 	// Listeners list
 	final List<ToggleListener> toggleListeners = new ArrayList<>();
 
@@ -80,6 +101,30 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 	protected final Set<SourceAndConverter<?>> selectedSources = ConcurrentHashMap
 		.newKeySet(); // Makes a concurrent set
 
+	volatile SelectionTraceRecorder traceRecorder = null;
+
+	volatile boolean pointPicking = false;
+
+	// Created on the first query by name or metadata
+	private SourceQueryIndex queryIndex = null;
+
+	// Ids of the sources, for the compact storage of selections
+	final SourceIdRegistry sourceIds = new SourceIdRegistry();
+
+	// Set by SharedSelectionModel#attach
+	volatile SharedSelectionModel sharedSelectionModel = null;
+
+	// Undo / redo log, guarded by selectedSources
+	private final SelectionHistory history = new SelectionHistory(8 << 20, 32);
+
+	// Named selection sets, as bit sets over the source ids
+	private final Map<String, BitSet> storedSelections = new LinkedHashMap<>();
+
+	// Depth range of the volume selection, in viewer coordinates
+	volatile double volumeSelectionZMin = Double.NEGATIVE_INFINITY;
+
+	volatile double volumeSelectionZMax = Double.POSITIVE_INFINITY;
+
 	/**
 	 * Construct a SourceSelectorBehaviour
 	 * 
@@ -91,6 +136,7 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 		this.bdvh = bdvh;
 		this.triggerbindings = bdvh.getTriggerbindings();
 		this.viewer = bdvh.getViewerPanel();
+		this.state = viewer.state();
 
 		selectorOverlay = new SourceSelectorOverlay(viewer, this);
 
@@ -111,7 +157,26 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 			"source-selector-toggle");
 		behaviours = new Behaviours(new InputTriggerConfig(), "bdv");
 
-		viewer.state().changeListeners().add(this);
+		state.changeListeners().add(this);
+	}
+
+	/**
+	 * Construct a selector without viewer, which follows the visible sources of
+	 * a viewer state : the selection is modified programmatically only, there
+	 * is no overlay, key binding nor repaint, and sources have no setup id.
+	 * Used to test and benchmark the selection logic without display.
+	 *
+	 * @param state viewer state, for instance
+	 *          {@code new SynchronizedViewerState(new BasicViewerState())}
+	 */
+	SourceSelectorBehaviour(SynchronizedViewerState state) {
+		this.bdvh = null;
+		this.triggerbindings = null;
+		this.viewer = null;
+		this.state = state;
+		this.selectorOverlay = null;
+		this.behaviours = new Behaviours(new InputTriggerConfig(), "bdv");
+		state.changeListeners().add(this);
 	}
 
 	/**
@@ -153,13 +218,497 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 	}
 
 	/**
-	 * Completely disassociate the selector with this BdvHandle TODO safe in terms
-	 * of freeing memory ?
+	 * Records all the selection interactions with this behaviour, see
+	 * {@link SelectionTraceRecorder}
+	 *
+	 * @param recorder trace recorder, or null to stop recording
+	 */
+	public void setTraceRecorder(SelectionTraceRecorder recorder) {
+		this.traceRecorder = recorder;
+	}
+
+	public SelectionTraceRecorder getTraceRecorder() {
+		return traceRecorder;
+	}
+
+	/**
+	 * Sets the depth range used when sources are selected in a volume with the
+	 * mouse, see {@link SourceSelectorOverlay}. The range is expressed in viewer
+	 * coordinates : the slicing plane is at z = 0 and one unit is one screen
+	 * pixel. Infinite bounds select through all slices.
+	 *
+	 * @param zMin lower bound of the depth range
+	 * @param zMax upper bound of the depth range
+	 */
+	public void setVolumeSelectionDepth(double zMin, double zMax) {
+		this.volumeSelectionZMin = Math.min(zMin, zMax);
+		this.volumeSelectionZMax = Math.max(zMin, zMax);
+	}
+
+	public double getVolumeSelectionZMin() {
+		return volumeSelectionZMin;
+	}
+
+	public double getVolumeSelectionZMax() {
+		return volumeSelectionZMax;
+	}
+
+	/**
+	 * @param worldInterval volume in world coordinates
+	 * @return the visible sources whose box intersects the volume, whatever the
+	 *         current slicing plane
+	 */
+	public Set<SourceAndConverter<?>> getVisibleSourcesInVolume(
+		RealInterval worldInterval)
+	{
+		if (selectorOverlay == null) {
+			return new SourceSelectionEngine(state.getVisibleSources())
+				.selectInVolume(worldInterval, state.getCurrentTimepoint());
+		}
+		return selectorOverlay.geometry.getBoundsIndex().query(worldInterval);
+	}
+
+	/**
+	 * Modifies the selection with all the visible sources whose box intersects
+	 * a volume
+	 *
+	 * @param worldInterval volume in world coordinates
+	 * @param mode see SET ADD REMOVE
+	 */
+	public void selectSourcesInVolume(RealInterval worldInterval, String mode) {
+		processSelectionModificationEvent(getVisibleSourcesInVolume(
+			worldInterval), mode, "API");
+	}
+
+	/**
+	 * Sets how a single click selects sources. By default, all the sources
+	 * under the cursor are involved, which selects all the channels of a
+	 * location at once. With point picking, only the smallest source under the
+	 * cursor is involved ; clicking again at the same location involves the
+	 * next one, cycling through all the overlapping sources.
+	 *
+	 * @param pointPicking true to enable point picking
+	 */
+	public void setPointPicking(boolean pointPicking) {
+		this.pointPicking = pointPicking;
+	}
+
+	public boolean isPointPicking() {
+		return pointPicking;
+	}
+
+	/**
+	 * @return the index of the visible sources by name and metadata, created on
+	 *         the first call then kept up to date with the visible sources
+	 */
+	public synchronized SourceQueryIndex getSourceQueryIndex() {
+		if (queryIndex == null) {
+			queryIndex = new SourceQueryIndex();
+			queryIndex.sync(state.getVisibleSources());
+		}
+		return queryIndex;
+	}
+
+	/**
+	 * Sets how the metadata of the sources are fetched, for instance with
+	 * {@link SourceMetadataProvider#fromSpimData}
+	 *
+	 * @param provider metadata provider
+	 */
+	public void setMetadataProvider(SourceMetadataProvider provider) {
+		getSourceQueryIndex().setMetadataProvider(provider);
+	}
+
+	/**
+	 * @param pattern glob pattern : '*' matches any sequence of characters, '?'
+	 *          matches a single character, for instance "Well_B*"
+	 * @return the visible sources whose name matches the pattern
+	 */
+	public Set<SourceAndConverter<?>> findSourcesByName(String pattern) {
+		return getSourceQueryIndex().findByName(pattern);
+	}
+
+	/**
+	 * @param key metadata key, for instance "channel"
+	 * @param value metadata value, for instance "2"
+	 * @return the visible sources which have this metadata value, see
+	 *         {@link SourceSelectorBehaviour#setMetadataProvider}
+	 */
+	public Set<SourceAndConverter<?>> findSourcesByMetadata(String key,
+		String value)
+	{
+		return getSourceQueryIndex().findByMetadata(key, value);
+	}
+
+	/**
+	 * Modifies the selection with the visible sources whose name matches a
+	 * pattern
+	 *
+	 * @param pattern glob pattern, see
+	 *          {@link SourceSelectorBehaviour#findSourcesByName(String)}
+	 * @param mode see SET ADD REMOVE
+	 */
+	public void selectSourcesByName(String pattern, String mode) {
+		processSelectionModificationEvent(findSourcesByName(pattern), mode,
+			"API");
+	}
+
+	/**
+	 * Modifies the selection with the visible sources which have a metadata
+	 * value
+	 *
+	 * @param key metadata key
+	 * @param value metadata value
+	 * @param mode see SET ADD REMOVE
+	 */
+	public void selectSourcesByMetadata(String key, String value, String mode) {
+		processSelectionModificationEvent(findSourcesByMetadata(key, value), mode,
+			"API");
+	}
+
+	/**
+	 * Stores the current selection under a name, replacing any selection
+	 * previously stored under this name
+	 *
+	 * @param name name of the selection, for instance "reference tiles"
+	 */
+	public void storeSelection(String name) {
+		BitSet bits = sourceIds.toBitSet(getSelectedSources());
+		synchronized (storedSelections) {
+			storedSelections.put(name, bits);
+		}
+	}
+
+	/**
+	 * Stores the union of two stored selections
+	 *
+	 * @param name name of the resulting selection
+	 * @param a name of a stored selection
+	 * @param b name of a stored selection
+	 */
+	public void storeUnion(String name, String a, String b) {
+		synchronized (storedSelections) {
+			BitSet bits = getStoredBits(a);
+			if (bits == null) return;
+			BitSet other = getStoredBits(b);
+			if (other == null) return;
+			bits.or(other);
+			storedSelections.put(name, bits);
+		}
+	}
+
+	/**
+	 * Stores the intersection of two stored selections
+	 *
+	 * @param name name of the resulting selection
+	 * @param a name of a stored selection
+	 * @param b name of a stored selection
+	 */
+	public void storeIntersection(String name, String a, String b) {
+		synchronized (storedSelections) {
+			BitSet bits = getStoredBits(a);
+			if (bits == null) return;
+			BitSet other = getStoredBits(b);
+			if (other == null) return;
+			bits.and(other);
+			storedSelections.put(name, bits);
+		}
+	}
+
+	/**
+	 * Stores the sources of a stored selection which are not in another one
+	 *
+	 * @param name name of the resulting selection
+	 * @param a name of a stored selection
+	 * @param b name of the stored selection to subtract from a
+	 */
+	public void storeDifference(String name, String a, String b) {
+		synchronized (storedSelections) {
+			BitSet bits = getStoredBits(a);
+			if (bits == null) return;
+			BitSet other = getStoredBits(b);
+			if (other == null) return;
+			bits.andNot(other);
+			storedSelections.put(name, bits);
+		}
+	}
+
+	/**
+	 * Replaces the current selection by a stored selection
+	 *
+	 * @param name name of the stored selection
+	 */
+	public void restoreSelection(String name) {
+		restoreSelection(name, SET);
+	}
+
+	/**
+	 * Modifies the current selection with a stored selection, in a single
+	 * change : it is recorded as one undo step and shared with other viewers,
+	 * and listeners are notified of the removed sources, then of the added
+	 * sources. Stored sources which are not visible anymore are ignored.
+	 *
+	 * @param name name of the stored selection
+	 * @param mode SET to restore it, ADD for the union with the current
+	 *          selection, REMOVE for the difference
+	 */
+	public void restoreSelection(String name, String mode) {
+		BitSet bits;
+		synchronized (storedSelections) {
+			bits = getStoredBits(name);
+		}
+		if (bits == null) return;
+		applyStoredBits(bits, mode, "Restore " + name);
+	}
+
+	/**
+	 * Keeps in the current selection only the sources of a stored selection, in
+	 * a single change, see {@link SourceSelectorBehaviour#restoreSelection(String, String)}
+	 *
+	 * @param name name of the stored selection
+	 */
+	public void intersectSelection(String name) {
+		BitSet bits;
+		synchronized (storedSelections) {
+			bits = getStoredBits(name);
+		}
+		if (bits == null) return;
+		applyStoredBits(bits, KEEP, "Intersect " + name);
+	}
+
+	// Mode of applyStoredBits : the selected sources which are not stored are
+	// removed, nothing is added
+	private static final String KEEP = "KEEP";
+
+	/**
+	 * Applies a stored selection to the current selection. The changes are
+	 * computed on the ids of the sources, and only the sources which are added
+	 * or removed are looked up, so that restoring a large selection which
+	 * barely differs from the current one does not go through all its sources.
+	 *
+	 * @param bits ids of the stored sources, see {@link SourceIdRegistry}
+	 * @param mode SET, ADD, REMOVE or KEEP
+	 */
+	private void applyStoredBits(BitSet bits, String mode, String eventSource) {
+		final long t0 = SelectorMetrics.start();
+		final SelectorMetrics metrics = SelectorMetrics.getInstance();
+		Set<SourceAndConverter<?>> added;
+		Set<SourceAndConverter<?>> removed;
+		synchronized (selectedSources) {
+			BitSet current = sourceIds.toBitSet(selectedSources);
+			BitSet addedIds = new BitSet();
+			BitSet removedIds = new BitSet();
+			switch (mode) {
+				case SET:
+					addedIds.or(bits);
+					addedIds.andNot(current);
+					removedIds.or(current);
+					removedIds.andNot(bits);
+					break;
+				case ADD:
+					addedIds.or(bits);
+					addedIds.andNot(current);
+					break;
+				case REMOVE:
+					removedIds.or(bits);
+					removedIds.and(current);
+					break;
+				case KEEP:
+					removedIds.or(current);
+					removedIds.andNot(bits);
+					break;
+				default:
+					System.err.println("Unhandled " + mode +
+						" selected source modification event");
+					return;
+			}
+			removed = sourceIds.toSources(removedIds);
+			// Sources which are not visible anymore are ignored
+			added = applyDelta(sourceIds.toSources(addedIds), removed,
+				eventSource);
+			history.record(sourceIds.toIds(added), sourceIds.toIds(removed),
+				() -> sourceIds.toBitSet(selectedSources));
+			if (SelectorMetrics.enabled()) {
+				metrics.eventSize.record(added.size() + removed.size());
+				metrics.selectionSize.record(selectedSources.size());
+			}
+		}
+		// Outside of the lock : other viewers take their own lock
+		share(added, removed, eventSource);
+		metrics.selectionEvent.stop(t0);
+	}
+
+	/**
+	 * @param name name of a stored selection
+	 * @return the sources of this stored selection, null if there is no
+	 *         selection stored under this name
+	 */
+	public Set<SourceAndConverter<?>> getStoredSelection(String name) {
+		BitSet bits;
+		synchronized (storedSelections) {
+			bits = getStoredBits(name);
+		}
+		return bits == null ? null : sourceIds.toSources(bits);
+	}
+
+	/**
+	 * @return the names of the stored selections, in storage order
+	 */
+	public List<String> getStoredSelectionNames() {
+		synchronized (storedSelections) {
+			return new ArrayList<>(storedSelections.keySet());
+		}
+	}
+
+	public void removeStoredSelection(String name) {
+		synchronized (storedSelections) {
+			storedSelections.remove(name);
+		}
+	}
+
+	/**
+	 * Saves the current selection and the stored selections in a compact binary
+	 * format, see {@link SelectionCodec}. Sources are identified by their setup
+	 * id, which is stable across sessions for sources coming from a spimdata
+	 * dataset, or by their name when they have no unique setup id. Sources
+	 * added with {@code BdvFunctions.show(Source)} get setup ids in the order
+	 * they are added : if they are added in another order in the session which
+	 * imports the selections, other sources are selected, without warning.
+	 *
+	 * @param os stream to write to, it is not closed
+	 * @throws IOException if the stream can't be written
+	 */
+	public void exportSelections(OutputStream os) throws IOException {
+		SelectionCodec codec = createSelectionCodec();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+		List<String> names = getStoredSelectionNames();
+		List<Set<SourceAndConverter<?>>> stored = new ArrayList<>(names.size());
+		for (String name : names) {
+			Set<SourceAndConverter<?>> sources = getStoredSelection(name);
+			stored.add(sources == null ? new HashSet<>() : sources);
+		}
+		codec.writeHeader(out, 1 + names.size());
+		codec.writeSelection(out, null, getSelectedSources());
+		for (int i = 0; i < names.size(); i++) {
+			codec.writeSelection(out, names.get(i), stored.get(i));
+		}
+		out.flush();
+	}
+
+	public void exportSelections(File file) throws IOException {
+		try (OutputStream os = new FileOutputStream(file)) {
+			exportSelections(os);
+		}
+	}
+
+	/**
+	 * Restores selections saved with
+	 * {@link SourceSelectorBehaviour#exportSelections(OutputStream)} : the
+	 * current selection is replaced in a single selection event, and stored
+	 * selections replace the ones with the same name. Sources which can't be
+	 * found in this viewer are skipped.
+	 *
+	 * @param is stream to read from, it is not closed nor read past the end of
+	 *          the selections : it should be buffered by the caller
+	 * @throws IOException if the stream can't be read or is not a selection file
+	 */
+	public void importSelections(InputStream is) throws IOException {
+		SelectionCodec codec = createSelectionCodec();
+		DataInputStream in = new DataInputStream(is);
+		int nSelections = codec.readHeader(in);
+		for (int i = 0; i < nSelections; i++) {
+			codec.readSelection(in, (name, sources) -> {
+				if (name == null) {
+					processSelectionModificationEvent(visibleOnly(sources), SET,
+						"Import");
+				}
+				else {
+					BitSet bits = sourceIds.toBitSet(sources);
+					synchronized (storedSelections) {
+						storedSelections.put(name, bits);
+					}
+				}
+			});
+		}
+		if (codec.getUnresolved() > 0) {
+			System.err.println(codec.getUnresolved() +
+				" imported source(s) could not be found in the viewer");
+		}
+	}
+
+	public void importSelections(File file) throws IOException {
+		try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+			importSelections(is);
+		}
+	}
+
+	/**
+	 * @return a codec of selections, which identifies the sources currently in
+	 *         the viewer by their setup id
+	 */
+	SelectionCodec createSelectionCodec() {
+		return new SelectionCodec(state.getSources(), this::getSetupId);
+	}
+
+	private int getSetupId(SourceAndConverter<?> sac) {
+		if (bdvh == null) return -1;
+		ConverterSetup cs = bdvh.getConverterSetups().getConverterSetup(sac);
+		return cs == null ? -1 : cs.getSetupId();
+	}
+
+	/**
+	 * @return a copy of the bits of a stored selection, null if there is none
+	 *         under this name
+	 */
+	private BitSet getStoredBits(String name) {
+		BitSet bits = storedSelections.get(name);
+		if (bits == null) {
+			System.err.println("No selection stored under the name " + name);
+			return null;
+		}
+		return (BitSet) bits.clone();
+	}
+
+	private Set<SourceAndConverter<?>> visibleOnly(
+		Set<SourceAndConverter<?>> sources)
+	{
+		Set<SourceAndConverter<?>> visible = state.getVisibleSources();
+		sources.retainAll(visible);
+		return sources;
+	}
+
+	/**
+	 * Completely disassociate the selector with this BdvHandle : its listeners,
+	 * key bindings and overlay are removed from the viewer, and the references
+	 * it holds to sources are released, so that the selector, the viewer once
+	 * closed and the sources with their cached data can be garbage collected.
+	 * The selector can't be used anymore afterwards.
 	 */
 	public void remove() {
 		disable();
-		triggerbindings.removeInputTriggerMap(SOURCES_SELECTOR_TOGGLE_MAP);
-		triggerbindings.removeBehaviourMap(SOURCES_SELECTOR_TOGGLE_MAP);
+		SharedSelectionModel model = sharedSelectionModel;
+		if (model != null) model.detach(this);
+		state.changeListeners().remove(this);
+		if (bdvh != null) {
+			triggerbindings.removeInputTriggerMap(SOURCES_SELECTOR_TOGGLE_MAP);
+			triggerbindings.removeBehaviourMap(SOURCES_SELECTOR_TOGGLE_MAP);
+			selectorOverlay.remove();
+		}
+		toggleListeners.clear();
+		selectedSourceListeners.clear();
+		traceRecorder = null;
+		synchronized (this) {
+			queryIndex = null;
+			sourceGroups.clear();
+			bos = null;
+		}
+		synchronized (storedSelections) {
+			storedSelections.clear();
+		}
+		synchronized (selectedSources) {
+			selectedSources.clear();
+			history.clear();
+		}
 	}
 
 	final Set<SourceGroup> sourceGroups = new HashSet<>();
@@ -168,8 +717,14 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 	 * Private : call enable instead
 	 */
 	synchronized void install() {
+		if (bdvh == null) return; // No viewer to interact with
+		final long t0 = SelectorMetrics.start();
 		isInstalled = true;
 		selectorOverlay.addSelectionBehaviours(behaviours);
+		selectorOverlay.installHover();
+		// TAB is used to navigate through sources, not through components
+		focusTraversalKeysEnabled = viewer.getDisplay().getFocusTraversalKeysEnabled();
+		viewer.getDisplay().setFocusTraversalKeysEnabled(false);
 		triggerbindings.addBehaviourMap(SOURCES_SELECTOR_MAP, behaviours
 			.getBehaviourMap());
 		triggerbindings.addInputTriggerMap(SOURCES_SELECTOR_MAP, behaviours
@@ -192,6 +747,9 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 		bdvh.getKeybindings().addInputMap("blocking-source-selector",
 			new InputMap(), "bdv", "navigation");
 		toggleListeners.forEach(ToggleListener::isEnabled);
+		SelectionTraceRecorder recorder = traceRecorder;
+		if (recorder != null) recorder.toggle(true);
+		SelectorMetrics.getInstance().install.stop(t0);
 	}
 
 	static SourceAndConverter<Void> getSourceAndConverterFrom(BdvOverlaySource<?> overlay) {
@@ -214,7 +772,10 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 	 * Private : call disable instead
 	 */
 	synchronized void uninstall() {
+		final long t0 = SelectorMetrics.start();
 		isInstalled = false;
+		selectorOverlay.uninstallHover();
+		viewer.getDisplay().setFocusTraversalKeysEnabled(focusTraversalKeysEnabled);
 		// Removing the bos removes a lot of things from bdv - this needs to be manually restored (groups and timepoints)
 		// Remove the overlay from all groups
 		sourceGroups.forEach(
@@ -222,7 +783,6 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 		);
 		sourceGroups.clear();
 
-		SynchronizedViewerState state = bdvh.getViewerPanel().state();
 		ViewerState snap = state.snapshot();
 		bos.removeFromBdv();
 		state.setNumTimepoints(snap.getNumTimepoints());
@@ -236,6 +796,9 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 		triggerbindings.removeInputTriggerMap(SOURCES_SELECTOR_MAP);
 		bdvh.getKeybindings().removeInputMap("blocking-source-selector");
 		toggleListeners.forEach(ToggleListener::isDisabled);
+		SelectionTraceRecorder recorder = traceRecorder;
+		if (recorder != null) recorder.toggle(false);
+		SelectorMetrics.getInstance().uninstall.stop(t0);
 	}
 
 	// API to Control Selected Sources
@@ -249,12 +812,34 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 		}
 	}
 
+	private void repaint() {
+		// Only the overlay depends on the selection
+		if (viewer != null) viewer.getDisplay().repaint();
+	}
+
 	private Set<SourceAndConverter<?>> removeOverlaySources(
 		Set<SourceAndConverter<?>> in)
 	{
 		// HACK TODO : better filtering
-		return in.stream().filter(sac -> sac.getSpimSource().getSource(viewer
-			.state().getCurrentTimepoint(), 0) != null).collect(Collectors.toSet());
+		// The timepoint is read once : each read takes the viewer state lock
+		final int timepoint = state.getCurrentTimepoint();
+		return in.stream().filter(sac -> sac.getSpimSource().getSource(timepoint,
+			0) != null).collect(Collectors.toSet());
+	}
+
+	/**
+	 * @param sources sources to check
+	 * @param visible snapshot of the visible sources, taken once per event so
+	 *          that the viewer state lock is not taken for each source
+	 * @return true if all the sources are visible
+	 */
+	private static boolean allVisible(Set<SourceAndConverter<?>> sources,
+		Set<SourceAndConverter<?>> visible)
+	{
+		for (SourceAndConverter<?> sac : sources) {
+			if (!visible.contains(sac)) return false;
+		}
+		return true;
 	}
 
 	/**
@@ -269,46 +854,71 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 	public void processSelectionModificationEvent(
 		Set<SourceAndConverter<?>> currentSources, String mode, String eventSource)
 	{
+		final long t0 = SelectorMetrics.start();
+		final SelectorMetrics metrics = SelectorMetrics.getInstance();
+		final SelectionTraceRecorder recorder = traceRecorder;
+		if (recorder != null) {
+			recorder.selectionEvent(currentSources, mode, eventSource);
+		}
+		// Actual changes, recorded in the undo log and shared with other viewers
+		final List<SourceAndConverter<?>> added = new ArrayList<>();
+		final List<SourceAndConverter<?>> removed = new ArrayList<>();
 		synchronized (selectedSources) {
 			int initialSize = selectedSources.size();
 			switch (mode) {
 				case SET:
 					// Sanity check : only visible sources can be selected
-					if (currentSources.stream().anyMatch(sac -> !viewer.state()
-						.isSourceVisible(sac)))
+					if (!allVisible(currentSources, state.getVisibleSources()))
 					{
 						System.err.println(
 							"Error : attempt to select a source which is not visible - selection ignored");
 						return;
 					}
-					selectedSources.clear();
-					selectedSources.addAll(removeOverlaySources(currentSources));
+					Set<SourceAndConverter<?>> newSelection = removeOverlaySources(
+						currentSources);
+					for (SourceAndConverter<?> sac : selectedSources) {
+						if (!newSelection.contains(sac)) removed.add(sac);
+					}
+					for (SourceAndConverter<?> sac : newSelection) {
+						if (!selectedSources.contains(sac)) added.add(sac);
+					}
+					removed.forEach(selectedSources::remove);
+					selectedSources.addAll(added);
 					break;
 				case SourceSelectorBehaviour.ADD:
 					// Sanity check : only visible sources can be selected
-					if (currentSources.stream().anyMatch(sac -> !viewer.state()
-						.isSourceVisible(sac)))
+					if (!allVisible(currentSources, state.getVisibleSources()))
 					{
 						System.err.println(
 							"Error : attempt to select a source which is not visible - selection ignored");
 						return;
 					}
-					selectedSources.addAll(removeOverlaySources(currentSources));
+					for (SourceAndConverter<?> sac : removeOverlaySources(
+						currentSources))
+					{
+						if (selectedSources.add(sac)) added.add(sac);
+					}
 					break;
 				case SourceSelectorBehaviour.REMOVE:
-					selectedSources.removeAll(currentSources);
+					for (SourceAndConverter<?> sac : currentSources) {
+						if (selectedSources.remove(sac)) removed.add(sac);
+					}
 					break;
 				default:
 					System.err.println("Unhandled " + mode +
 						" selected source modification event");
 					break;
 			}
+			history.record(sourceIds.toIds(added), sourceIds.toIds(removed),
+				() -> sourceIds.toBitSet(selectedSources));
 
-			if (!currentSources.isEmpty()) {
+			final long tDispatch = SelectorMetrics.start();
+			if (!currentSources.isEmpty() && !selectedSourceListeners.isEmpty()) {
+				final Set<SourceAndConverter<?>> eventSources = removeOverlaySources(
+					currentSources);
 				selectedSourceListeners.forEach(listener -> {
 					listener.selectedSourcesUpdated(getSelectedSources(), eventSource);
-					listener.lastSelectionEvent(removeOverlaySources(currentSources),
-						mode, eventSource);
+					listener.lastSelectionEvent(eventSources, mode, eventSource);
 				});
 			}
 
@@ -320,11 +930,270 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 					listener.lastSelectionEvent(currentSources, mode, eventSource);
 				});
 			}
+			metrics.listenerDispatch.stop(tDispatch);
+
+			repaint();
+			if (SelectorMetrics.enabled()) {
+				metrics.eventSize.record(currentSources.size());
+				metrics.selectionSize.record(selectedSources.size());
+			}
+		}
+		// Outside of the lock : other viewers take their own lock
+		share(added, removed, eventSource);
+		metrics.selectionEvent.stop(t0);
+	}
+
+	private void share(Collection<SourceAndConverter<?>> added,
+		Collection<SourceAndConverter<?>> removed, String eventSource)
+	{
+		SharedSelectionModel model = sharedSelectionModel;
+		if ((model != null) && (!added.isEmpty() || !removed.isEmpty())) {
+			model.propagate(this, added, removed, eventSource);
+		}
+	}
+
+	/**
+	 * Applies a change of the selection made in another viewer sharing the
+	 * same {@link SharedSelectionModel}. It is not shared again nor recorded in
+	 * the undo log of this viewer.
+	 */
+	void applySharedDelta(Collection<SourceAndConverter<?>> added,
+		Collection<SourceAndConverter<?>> removed, String eventSource)
+	{
+		synchronized (selectedSources) {
+			Set<SourceAndConverter<?>> removedSources = new HashSet<>(removed);
+			Set<SourceAndConverter<?>> addedSources = applyDelta(new HashSet<>(
+				added), removedSources, eventSource);
+			if (!addedSources.isEmpty() || !removedSources.isEmpty()) {
+				history.invalidateCheckpoints();
+			}
+		}
+	}
+
+	/**
+	 * Applies the modifications accumulated by a {@link SelectionEditor} as one
+	 * change, computed under the lock of the selection : it is recorded as one
+	 * undo step and shared with other viewers like a selection event, and
+	 * listeners are notified of the removed sources, then of the added sources.
+	 *
+	 * @param added sources to add
+	 * @param removed sources to remove
+	 * @param cleared if true, the sources which are not added are removed
+	 * @param eventSource origin of the modification
+	 */
+	void applyEdit(Set<SourceAndConverter<?>> added,
+		Set<SourceAndConverter<?>> removed, boolean cleared, String eventSource)
+	{
+		final long t0 = SelectorMetrics.start();
+		final SelectorMetrics metrics = SelectorMetrics.getInstance();
+		synchronized (selectedSources) {
+			// Sanity check : only visible sources can be selected
+			if (!allVisible(added, state.getVisibleSources())) {
+				System.err.println(
+					"Error : attempt to select a source which is not visible - selection ignored");
+				return;
+			}
+			if (cleared) {
+				removed.addAll(selectedSources);
+				removed.removeAll(added);
+			}
+			added = applyDelta(added, removed, eventSource);
+			history.record(sourceIds.toIds(added), sourceIds.toIds(removed),
+				() -> sourceIds.toBitSet(selectedSources));
+			if (SelectorMetrics.enabled()) {
+				metrics.eventSize.record(added.size() + removed.size());
+				metrics.selectionSize.record(selectedSources.size());
+			}
+		}
+		// Outside of the lock : other viewers take their own lock
+		share(added, removed, eventSource);
+		metrics.selectionEvent.stop(t0);
+	}
+
+	/**
+	 * @return the model this selection is shared with, null if it is not
+	 *         shared
+	 */
+	public SharedSelectionModel getSharedSelectionModel() {
+		return sharedSelectionModel;
+	}
+
+	/**
+	 * Applies a change of the selection coming from the undo log, from another
+	 * viewer or from a change of the visible sources : it is not recorded in
+	 * the undo log, and listeners are notified of
+	 * the removed sources, then of the added sources. The sets are modified to
+	 * contain only the actual changes.
+	 *
+	 * @return the sources actually added
+	 */
+	private Set<SourceAndConverter<?>> applyDelta(Set<SourceAndConverter<?>> added,
+		Set<SourceAndConverter<?>> removed, String eventSource)
+	{
+		// Sources which are not visible anymore can't be selected back
+		added.retainAll(state.getVisibleSources());
+		added = removeOverlaySources(added);
+		// Keeps only the actual changes
+		removed.removeIf(sac -> !selectedSources.remove(sac));
+		added.removeIf(sac -> !selectedSources.add(sac));
+		final SelectionTraceRecorder recorder = traceRecorder;
+		if (recorder != null) {
+			if (!removed.isEmpty()) recorder.selectionEvent(removed, REMOVE,
+				eventSource);
+			if (!added.isEmpty()) recorder.selectionEvent(added, ADD, eventSource);
+		}
+		final Set<SourceAndConverter<?>> addedSources = added;
+		if (!added.isEmpty() || !removed.isEmpty()) {
+			selectedSourceListeners.forEach(listener -> {
+				listener.selectedSourcesUpdated(getSelectedSources(), eventSource);
+				if (!removed.isEmpty()) listener.lastSelectionEvent(removed, REMOVE,
+					eventSource);
+				if (!addedSources.isEmpty()) listener.lastSelectionEvent(addedSources,
+					ADD, eventSource);
+			});
+		}
+		repaint();
+		return added;
+	}
+
+	/**
+	 * Reverts the last modification of the selection
+	 *
+	 * @return false if there was nothing to undo
+	 */
+	public boolean undo() {
+		Set<SourceAndConverter<?>> added, removed;
+		synchronized (selectedSources) {
+			SelectionHistory.Step step = history.undo();
+			if (step == null) return false;
+			removed = sourceIds.toSources(step.added);
+			added = applyDelta(sourceIds.toSources(step.removed), removed, "Undo");
+			checkApplied(added, step.removed.length, removed, step.added.length);
+		}
+		share(added, removed, "Undo");
+		return true;
+	}
+
+	/**
+	 * Drops the checkpoints of the undo log if a change coming from the log
+	 * could not be fully applied, for instance because a source to select back
+	 * is not visible anymore : the selection does not match the log anymore
+	 */
+	private void checkApplied(Set<SourceAndConverter<?>> added, int nToAdd,
+		Set<SourceAndConverter<?>> removed, int nToRemove)
+	{
+		if ((added.size() != nToAdd) || (removed.size() != nToRemove)) {
+			history.invalidateCheckpoints();
+		}
+	}
+
+	/**
+	 * Applies again the last modification undone
+	 *
+	 * @return false if there was nothing to redo
+	 */
+	public boolean redo() {
+		Set<SourceAndConverter<?>> added, removed;
+		synchronized (selectedSources) {
+			SelectionHistory.Step step = history.redo();
+			if (step == null) return false;
+			removed = sourceIds.toSources(step.removed);
+			added = applyDelta(sourceIds.toSources(step.added), removed, "Redo");
+			checkApplied(added, step.added.length, removed, step.removed.length);
+		}
+		share(added, removed, "Redo");
+		return true;
+	}
+
+	/**
+	 * Reverts several modifications of the selection at once, starting from the
+	 * nearest checkpoint of the undo log when it is closer, in a single change
+	 *
+	 * @param steps number of steps to undo, negative to redo
+	 */
+	public void undo(int steps) {
+		String eventSource = steps >= 0 ? "Undo" : "Redo";
+		Set<SourceAndConverter<?>> added, removed;
+		synchronized (selectedSources) {
+			BitSet current = sourceIds.toBitSet(selectedSources);
+			BitSet target = history.moveTo(history.getPosition() - steps,
+				(BitSet) current.clone());
+			BitSet addedBits = (BitSet) target.clone();
+			addedBits.andNot(current);
+			current.andNot(target);
+			removed = sourceIds.toSources(current);
+			added = applyDelta(sourceIds.toSources(addedBits), removed,
+				eventSource);
+			checkApplied(added, addedBits.cardinality(), removed, current
+				.cardinality());
+		}
+		share(added, removed, eventSource);
+	}
+
+	public boolean canUndo() {
+		synchronized (selectedSources) {
+			return history.canUndo();
+		}
+	}
+
+	public boolean canRedo() {
+		synchronized (selectedSources) {
+			return history.canRedo();
+		}
+	}
+
+	/**
+	 * Sets the memory cap of the undo log : the oldest steps are dropped when
+	 * it is exceeded. 8 MB by default.
+	 *
+	 * @param maxBytes approximate memory cap, in bytes
+	 */
+	public void setUndoMemoryCap(long maxBytes) {
+		synchronized (selectedSources) {
+			history.setMaxBytes(maxBytes);
+		}
+	}
+
+	/**
+	 * @param steps number of steps between two full copies of the selection in
+	 *          the undo log, 32 by default
+	 */
+	public void setUndoCheckpointInterval(int steps) {
+		synchronized (selectedSources) {
+			history.setCheckpointInterval(steps);
+		}
+	}
 
-			viewer.requestRepaint();
+	public void clearUndoHistory() {
+		synchronized (selectedSources) {
+			history.clear();
 		}
 	}
 
+	/**
+	 * Modifies the selection in a single transaction : any number of add,
+	 * remove and set operations are merged and applied as one change, with one
+	 * validation pass, one undo step, one notification of the removed and of
+	 * the added sources, and one repaint. For instance {@code ssb.modify(editor -> tiles.forEach(
+	 * editor::add))}
+	 *
+	 * @param edits operations to apply, see {@link SelectionEditor}
+	 */
+	public void modify(Consumer<SelectionEditor> edits) {
+		modify(edits, "API");
+	}
+
+	/**
+	 * @param edits operations to apply, see {@link SelectionEditor}
+	 * @param eventSource a String which can indicate the origin of the
+	 *          modification
+	 */
+	public void modify(Consumer<SelectionEditor> edits, String eventSource) {
+		SelectionEditor editor = new SelectionEditor(this);
+		edits.accept(editor);
+		editor.apply(eventSource);
+	}
+
 	public void selectedSourcesClear(String eventSource) {
 		processSelectionModificationEvent(new HashSet<>(), SET, eventSource);
 	}
@@ -375,18 +1244,28 @@ public class SourceSelectorBehaviour implements ViewerStateChangeListener {
 		if (change.equals(NUM_SOURCES_CHANGED) || change.equals(
 			VISIBILITY_CHANGED))
 		{
-			selectorOverlay.updateBoxes();
+			SourceQueryIndex index;
+			synchronized (this) {
+				index = queryIndex;
+			}
+			// One snapshot of the visible sources for the whole update
+			Set<SourceAndConverter<?>> visible = state.getVisibleSources();
+			if (index != null) index.sync(visible);
+			if (selectorOverlay != null) selectorOverlay.clearSourceReferences();
 			// Removes potentially selected source which has been removed from bdv
-			Set<SourceAndConverter<?>> leftOvers = new HashSet<>(selectedSources);
-			leftOvers.removeAll(viewer.state().getVisibleSources());
-			// selectedSources.removeAll(leftOvers);
+			Set<SourceAndConverter<?>> leftOvers = new HashSet<>();
+			for (SourceAndConverter<?> sac : selectedSources) {
+				if (!visible.contains(sac)) leftOvers.add(sac);
+			}
+			// Not a user action : not recorded in the undo log, and not shared, as
+			// the sources may still be visible in other viewers
 			if (!leftOvers.isEmpty()) {
-				processSelectionModificationEvent(leftOvers, REMOVE, change.toString());
+				synchronized (selectedSources) {
+					applyDelta(new HashSet<>(), leftOvers, change.toString());
+					history.invalidateCheckpoints();
+				}
 			}
 		}
-		if (change.equals(CURRENT_TIMEPOINT_CHANGED)) {
-			selectorOverlay.updateBoxes();
-		}
 	}
 
 	/**
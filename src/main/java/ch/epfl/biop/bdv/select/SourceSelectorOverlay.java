@@ -1,13 +1,9 @@
 
 package ch.epfl.biop.bdv.select;
 
-import bdv.tools.boundingbox.TransformedBox;
 import bdv.util.BdvOverlay;
 import bdv.viewer.SourceAndConverter;
 import bdv.viewer.ViewerPanel;
-import bdv.tools.boundingbox.RenderBoxHelper;
-import net.imglib2.FinalRealInterval;
-import net.imglib2.RealInterval;
 import net.imglib2.realtransform.AffineTransform3D;
 import org.scijava.ui.behaviour.ClickBehaviour;
 import org.scijava.ui.behaviour.DragBehaviour;
@@ -20,15 +16,19 @@ import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Stroke;
-import java.awt.geom.Area;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.geom.GeneralPath;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.swing.Timer;
+
 /**
  * Works with {@link SourceSelectorBehaviour} Displays box overlays on top of
  * visible sources of all visible {@link SourceAndConverter} of a
@@ -42,12 +42,29 @@ import java.util.Set;
  * event. Either the user was holding no extra key: - the involved sources will
  * define the new selection set The user was holding CTRL: - the involved
  * sources will be removed from the current selection set The user was holding
- * SHIFT: - the involved sources are added to the current selection set Note :
+ * SHIFT: - the involved sources are added to the current selection set
+ * Holding ALT as well selects the sources in a volume instead of the current
+ * plane : the rectangle is extruded along the viewing direction over the depth
+ * range given by
+ * {@link SourceSelectorBehaviour#setVolumeSelectionDepth(double, double)} (all
+ * slices by default) Sources can also be selected with a freehand lasso (drag
+ * while holding L) or with a polygon (clicks while holding P, clicking on the
+ * first vertex closes the polygon, ESCAPE cancels it), with the same modifier
+ * keys. Note :
  * changing the key pressing DURING the rectangle drawing will not be taken into
  * account, contrary to an expected standard behaviour TODO : can this be
  * improved ? Note : The user can perform a single click as well with the
  * modifier keys, no need to drag this is because a single click also triggers a
- * {@link DragBehaviour} Note : the overlay can be very slow to draw - because
+ * {@link DragBehaviour}. With
+ * {@link SourceSelectorBehaviour#setPointPicking(boolean)}, a single click only
+ * involves the smallest source under the cursor, and repeated clicks cycle
+ * through the overlapping sources. While the selection mode is enabled, the
+ * source under the mouse cursor is highlighted with the "HOVER" style, and its
+ * name is shown. The arrow keys move the selection to the nearest source in
+ * their direction (SHIFT + arrow adds it), TAB and SHIFT + TAB go through the
+ * sources in reading order. CTRL + SHIFT + 1..9 stores the current selection,
+ * CTRL + 1..9 restores it. CTRL + Z undoes the last selection change, CTRL +
+ * SHIFT + Z redoes it. Note : the overlay can be very slow to draw - because
  * it's java graphics 2D... It's especially visible is the zoom is very big...
  * Clipping is badly done TODO ?
  *
@@ -56,19 +73,49 @@ import java.util.Set;
 
 public class SourceSelectorOverlay extends BdvOverlay {
 
+	// Clicking closer than this distance to the first vertex of a polygon
+	// closes it, in pixels
+	static final int POLYGON_CLOSE_DISTANCE = 8;
+
 	final ViewerPanel viewer;
 
-	boolean isCurrentlySelecting = false;
+	// Input state, written by the mouse handlers and read by draw() : each
+	// change publishes a new immutable object, so that painting and input
+	// handling never wait for each other
+
+	// Rectangle being dragged, null if there is none
+	volatile SelectionRectangle currentRectangle = null;
+
+	// Lasso or polygon being drawn, null if there is none
+	volatile PolygonDraft currentPolygon = null;
+
+	// Last point pick, to cycle through overlapping sources
+	int lastPickX, lastPickY, lastPickIndex;
+
+	List<SourceAndConverter<?>> lastPickCandidates = Collections.emptyList();
+
+	// Clicks closer than this distance, in pixels, are at the same location
+	static final int PICK_TOLERANCE = 3;
+
+	// Hover highlight : the source under the cursor is looked up at most once
+	// per HOVER_THROTTLE_MS, from the last known cursor location
+	static final int HOVER_THROTTLE_MS = 40;
+
+	final HoverHandler hoverHandler = new HoverHandler();
 
-	int xCurrentSelectStart, yCurrentSelectStart, xCurrentSelectEnd,
-			yCurrentSelectEnd;
+	volatile SourceAndConverter<?> hoveredSource = null;
+
+	volatile int hoverX, hoverY;
+
+	// Keyboard navigation : location of the last source navigated to, in world
+	// coordinates, so that it survives changes of the viewer transform
+	double[] navigationFocus = null;
 
 	private int canvasWidth;
 
 	private int canvasHeight;
 
-	private final Object lockSourceBoxOverlay = new Object();
-	private List<SourceBoxOverlay> sourcesBoxOverlay = new ArrayList<>();
+	final SourceGeometryService geometry;
 
 	final Map<String, OverlayStyle> styles = new HashMap<>();
 
@@ -76,6 +123,8 @@ public class SourceSelectorOverlay extends BdvOverlay {
 
 	boolean displaySourcesNames = true;
 
+	final GlyphVectorCache labels = new GlyphVectorCache();
+
 	public void showSourcesNames() {
 		displaySourcesNames = true;
 	}
@@ -89,9 +138,65 @@ public class SourceSelectorOverlay extends BdvOverlay {
 	{
 		this.ssb = ssb;
 		this.viewer = viewer;
-		updateBoxes();
+		this.geometry = SourceGeometryService.forViewer(viewer);
+		geometry.subscribe(this);
 		styles.put("DEFAULT", new DefaultOverlayStyle());
 		styles.put("SELECTED", new SelectedOverlayStyle());
+		styles.put("HOVER", new HoverOverlayStyle());
+	}
+
+	/**
+	 * Starts highlighting the source under the mouse cursor
+	 */
+	void installHover() {
+		viewer.getDisplay().addHandler(hoverHandler);
+	}
+
+	/**
+	 * Stops highlighting the source under the mouse cursor
+	 */
+	void uninstallHover() {
+		viewer.getDisplay().removeHandler(hoverHandler);
+		hoverHandler.timer.stop();
+		hoveredSource = null;
+	}
+
+	/**
+	 * Forgets the sources kept for picking and hovering, called when sources
+	 * are removed from the viewer so that they can be garbage collected
+	 */
+	synchronized void clearSourceReferences() {
+		lastPickCandidates = Collections.emptyList();
+		lastPickIndex = -1;
+		hoveredSource = null;
+	}
+
+	/**
+	 * Detaches this overlay from the viewer, see
+	 * {@link SourceSelectorBehaviour#remove()}
+	 */
+	void remove() {
+		uninstallHover();
+		clearSourceReferences();
+		geometry.unsubscribe(this);
+	}
+
+	/**
+	 * Looks up the smallest source under the last cursor location, and
+	 * repaints the overlay if it changed. Only the overlay is repainted, the
+	 * sources are not rendered again.
+	 */
+	void updateHoveredSource() {
+		SourceAndConverter<?> hovered = null;
+		if (hoverX >= 0) {
+			List<SourceAndConverter<?>> candidates = geometry.getFrame(canvasWidth,
+				canvasHeight).getSourcesAt(hoverX, hoverY);
+			if (!candidates.isEmpty()) hovered = candidates.get(0);
+		}
+		if (hovered != hoveredSource) {
+			hoveredSource = hovered;
+			viewer.getDisplay().repaint();
+		}
 	}
 
 	protected void addSelectionBehaviours(Behaviours behaviours) {
@@ -101,6 +206,64 @@ public class SourceSelectorOverlay extends BdvOverlay {
 			SourceSelectorBehaviour.ADD), "select-add-sources", "shift button1");
 		behaviours.behaviour(new RectangleSelectSourcesBehaviour(
 			SourceSelectorBehaviour.REMOVE), "select-remove-sources", "ctrl button1");
+		// Same with ALT : selects in a volume, across slices
+		behaviours.behaviour(new RectangleSelectSourcesBehaviour(
+			SourceSelectorBehaviour.SET, true), "select-set-sources-volume",
+			"alt button1");
+		behaviours.behaviour(new RectangleSelectSourcesBehaviour(
+			SourceSelectorBehaviour.ADD, true), "select-add-sources-volume",
+			"alt shift button1");
+		behaviours.behaviour(new RectangleSelectSourcesBehaviour(
+			SourceSelectorBehaviour.REMOVE, true), "select-remove-sources-volume",
+			"alt ctrl button1");
+		// L + drag : freehand lasso
+		behaviours.behaviour(new LassoSelectSourcesBehaviour(
+			SourceSelectorBehaviour.SET), "lasso-set-sources", "L button1");
+		behaviours.behaviour(new LassoSelectSourcesBehaviour(
+			SourceSelectorBehaviour.ADD), "lasso-add-sources", "L shift button1");
+		behaviours.behaviour(new LassoSelectSourcesBehaviour(
+			SourceSelectorBehaviour.REMOVE), "lasso-remove-sources",
+			"L ctrl button1");
+		// P + clicks : polygon, closed by clicking on its first vertex
+		behaviours.behaviour(new PolygonSelectSourcesBehaviour(
+			SourceSelectorBehaviour.SET), "polygon-set-sources", "P button1");
+		behaviours.behaviour(new PolygonSelectSourcesBehaviour(
+			SourceSelectorBehaviour.ADD), "polygon-add-sources", "P shift button1");
+		behaviours.behaviour(new PolygonSelectSourcesBehaviour(
+			SourceSelectorBehaviour.REMOVE), "polygon-remove-sources",
+			"P ctrl button1");
+		behaviours.behaviour((ClickBehaviour) (x, y) -> cancelCurrentPolygon(),
+			"polygon-cancel", "ESCAPE");
+		// Arrows : moves the selection to the nearest source in this direction,
+		// SHIFT adds it to the selection. TAB : next source in reading order
+		String[] directions = { "LEFT", "RIGHT", "UP", "DOWN" };
+		double[][] vectors = { { -1, 0 }, { 1, 0 }, { 0, -1 }, { 0, 1 } };
+		for (int i = 0; i < 4; i++) {
+			final double[] v = vectors[i];
+			String direction = directions[i];
+			behaviours.behaviour((ClickBehaviour) (x, y) -> navigate(v[0], v[1],
+				SourceSelectorBehaviour.SET), "navigate-" + direction.toLowerCase(),
+				direction);
+			behaviours.behaviour((ClickBehaviour) (x, y) -> navigate(v[0], v[1],
+				SourceSelectorBehaviour.ADD), "navigate-add-" + direction
+					.toLowerCase(), "shift " + direction);
+		}
+		behaviours.behaviour((ClickBehaviour) (x, y) -> navigateReadingOrder(1),
+			"navigate-next", "TAB");
+		behaviours.behaviour((ClickBehaviour) (x, y) -> navigateReadingOrder(-1),
+			"navigate-previous", "shift TAB");
+		behaviours.behaviour((ClickBehaviour) (x, y) -> ssb.undo(),
+			"undo-selection", "ctrl Z");
+		behaviours.behaviour((ClickBehaviour) (x, y) -> ssb.redo(),
+			"redo-selection", "ctrl shift Z", "ctrl Y");
+		// Stored selections : CTRL + SHIFT + digit stores, CTRL + digit restores
+		for (int i = 1; i <= 9; i++) {
+			final String name = Integer.toString(i);
+			behaviours.behaviour((ClickBehaviour) (x, y) -> ssb.storeSelection(name),
+				"store-selection-" + name, "ctrl shift " + name);
+			behaviours.behaviour((ClickBehaviour) (x, y) -> ssb.restoreSelection(
+				name), "restore-selection-" + name, "ctrl " + name);
+		}
 		// Ctrl + A : select all sources
 		behaviours.behaviour((ClickBehaviour) (x, y) -> ssb.selectedSourceAdd(viewer
 			.state().getVisibleSources()), "select-all-visible-sources", "ctrl A");
@@ -110,246 +273,377 @@ public class SourceSelectorOverlay extends BdvOverlay {
 		return styles;
 	}
 
-	synchronized void startCurrentSelection(int x, int y) {
-		xCurrentSelectStart = x;
-		yCurrentSelectStart = y;
+	/**
+	 * @return the cache of laid out source names used by this overlay
+	 */
+	public GlyphVectorCache getLabelCache() {
+		return labels;
+	}
+
+	void startCurrentSelection(int x, int y) {
+		currentRectangle = new SelectionRectangle(x, y, x, y, false);
+	}
+
+	void updateCurrentSelection(int xCurrent, int yCurrent) {
+		SelectionRectangle r = currentRectangle;
+		if (r == null) return;
+		currentRectangle = new SelectionRectangle(r.xStart, r.yStart, xCurrent,
+			yCurrent, true);
+	}
+
+	/**
+	 * @return the rectangle ending at (x, y), which is not drawn anymore
+	 */
+	private SelectionRectangle finishCurrentSelection(int x, int y) {
+		SelectionRectangle r = currentRectangle;
+		currentRectangle = null;
+		if (r == null) r = new SelectionRectangle(x, y, x, y, false);
+		return new SelectionRectangle(r.xStart, r.yStart, x, y, false);
 	}
 
-	synchronized void updateCurrentSelection(int xCurrent, int yCurrent) {
-		xCurrentSelectEnd = xCurrent;
-		yCurrentSelectEnd = yCurrent;
-		isCurrentlySelecting = true;
+	private AffineTransform3D getViewerTransform() {
+		AffineTransform3D viewerTransform = new AffineTransform3D();
+		viewer.state().getViewerTransform(viewerTransform);
+		return viewerTransform;
 	}
 
-	synchronized void endCurrentSelection(int x, int y, String mode) {
-		xCurrentSelectEnd = x;
-		yCurrentSelectEnd = y;
-		isCurrentlySelecting = false;
+	void endCurrentSelection(int x, int y, String mode) {
+		SelectionRectangle r = finishCurrentSelection(x, y);
+		// Recorded before the selection event it leads to
+		SelectionTraceRecorder recorder = ssb.traceRecorder;
+		if (ssb.pointPicking && (r.xStart == x) && (r.yStart == y)) {
+			if (recorder != null) recorder.pick(x, y, mode, getViewerTransform(),
+				canvasWidth, canvasHeight, viewer.state().getCurrentTimepoint());
+			ssb.processSelectionModificationEvent(pick(x, y), mode,
+				"SelectorOverlay");
+			return;
+		}
+		if (recorder != null) {
+			recorder.rectangle(r.xStart, r.yStart, r.xEnd, r.yEnd, mode,
+				getViewerTransform(), canvasWidth, canvasHeight, viewer.state()
+					.getCurrentTimepoint());
+		}
 		// Selection is done : but we need to access the trigger keys to understand
 		// what's happening
-		// Set<SourceAndConverter<?>> currentSelection =
-		this.getLastSelectedSources();
-		ssb.processSelectionModificationEvent(getLastSelectedSources(), mode,
-			"SelectorOverlay");
+		ssb.processSelectionModificationEvent(getSelectedSources(r
+			.toRectangle()), mode, "SelectorOverlay");
 	}
 
-	Rectangle getCurrentSelectionRectangle() {
-		int x0, y0, w, h;
-		if (xCurrentSelectStart > xCurrentSelectEnd) {
-			x0 = xCurrentSelectEnd;
-			w = xCurrentSelectStart - xCurrentSelectEnd;
+	void endCurrentVolumeSelection(int x, int y, String mode) {
+		SelectionRectangle r = finishCurrentSelection(x, y);
+		SelectionTraceRecorder recorder = ssb.traceRecorder;
+		if (recorder != null) {
+			recorder.volume(r.xStart, r.yStart, r.xEnd, r.yEnd,
+				ssb.volumeSelectionZMin, ssb.volumeSelectionZMax, mode,
+				getViewerTransform(), canvasWidth, canvasHeight, viewer.state()
+					.getCurrentTimepoint());
 		}
-		else {
-			x0 = xCurrentSelectStart;
-			w = xCurrentSelectEnd - xCurrentSelectStart;
+		ssb.processSelectionModificationEvent(getSelectedSourcesInVolume(r
+			.toRectangle()), mode, "SelectorOverlay");
+	}
+
+	void startCurrentPolygon(int x, int y) {
+		currentPolygon = new PolygonDraft(x, y);
+	}
+
+	void addPolygonVertex(int x, int y) {
+		PolygonDraft polygon = currentPolygon;
+		if (polygon != null) currentPolygon = polygon.with(x, y);
+	}
+
+	void cancelCurrentPolygon() {
+		currentPolygon = null;
+		viewer.getDisplay().repaint();
+	}
+
+	/**
+	 * Closes the lasso or polygon being drawn and modifies the selection with
+	 * the sources it intersects. Nothing happens if it has less than 3
+	 * vertices.
+	 */
+	void endCurrentPolygon(String mode) {
+		PolygonDraft draft = currentPolygon;
+		currentPolygon = null;
+		if ((draft == null) || (draft.size < 3)) {
+			viewer.getDisplay().repaint();
+			return;
+		}
+		SelectionTraceRecorder recorder = ssb.traceRecorder;
+		if (recorder != null) {
+			recorder.polygon(draft.xs, draft.ys, draft.size, mode,
+				getViewerTransform(), canvasWidth, canvasHeight, viewer.state()
+					.getCurrentTimepoint());
 		}
-		if (yCurrentSelectStart > yCurrentSelectEnd) {
-			y0 = yCurrentSelectEnd;
-			h = yCurrentSelectStart - yCurrentSelectEnd;
+		ScreenPolygon polygon = new ScreenPolygon(draft.xs, draft.ys, draft.size);
+		final long t0 = SelectorMetrics.start();
+		Set<SourceAndConverter<?>> lastSelected = geometry.getFrame(canvasWidth,
+			canvasHeight).getSourcesIntersecting(polygon);
+		SelectorMetrics.getInstance().hitTest.stop(t0);
+		ssb.processSelectionModificationEvent(lastSelected, mode,
+			"SelectorOverlay");
+	}
+
+	/**
+	 * Point pick : the smallest source under the cursor, or the next one if
+	 * the previous click was at the same location
+	 *
+	 * @return a set containing the picked source, empty if there is no source
+	 *         under the cursor
+	 */
+	synchronized Set<SourceAndConverter<?>> pick(int x, int y) {
+		final long t0 = SelectorMetrics.start();
+		List<SourceAndConverter<?>> candidates = geometry.getFrame(canvasWidth,
+			canvasHeight).getSourcesAt(x, y);
+		if ((Math.abs(x - lastPickX) <= PICK_TOLERANCE) && (Math.abs(y -
+			lastPickY) <= PICK_TOLERANCE) && candidates.equals(lastPickCandidates))
+		{
+			lastPickIndex++;
 		}
 		else {
-			y0 = yCurrentSelectStart;
-			h = yCurrentSelectEnd - yCurrentSelectStart;
+			lastPickIndex = 0;
+			lastPickX = x;
+			lastPickY = y;
+			lastPickCandidates = candidates;
 		}
-		// Hack : allows selection on double or single click
-		if (w == 0) w = 1;
-		if (h == 0) h = 1;
-		return new Rectangle(x0, y0, w, h);
+		Set<SourceAndConverter<?>> picked = new HashSet<>();
+		if (!candidates.isEmpty()) {
+			picked.add(candidates.get(lastPickIndex % candidates.size()));
+		}
+		SelectorMetrics.getInstance().hitTest.stop(t0);
+		return picked;
 	}
 
-	synchronized Set<SourceAndConverter<?>> getLastSelectedSources() {
-		Set<SourceAndConverter<?>> lastSelected = new HashSet<>();
-
-		final RenderBoxHelper rbh = new RenderBoxHelper();
-
-		// We need to find whether a rectangle in real space intersects a box in 3d
-		// -> Makes use of the work previously done in RenderBoxHelper
-		for (SourceBoxOverlay sbo : sourcesBoxOverlay) {
-			//
-			AffineTransform3D viewerTransform = new AffineTransform3D();
-			viewer.state().getViewerTransform(viewerTransform);
-			AffineTransform3D transform = new AffineTransform3D();
-
-			sbo.getTransform(transform);
-			transform.preConcatenate(viewerTransform);
+	/**
+	 * Moves the keyboard focus to the nearest on screen source in a direction
+	 * and modifies the selection with it. Without focus, the search starts from
+	 * the center of the canvas.
+	 *
+	 * @param dx x component of the direction, on screen
+	 * @param dy y component of the direction, on screen
+	 * @param mode see SET ADD
+	 */
+	void navigate(double dx, double dy, String mode) {
+		SourceGeometryService.Frame frame = geometry.getFrame(canvasWidth,
+			canvasHeight);
+		CentroidIndex index = frame.getCentroidIndex();
+		double[] focus = getNavigationFocus(frame);
+		int next = index.nearestInDirection(focus[0], focus[1], dx, dy);
+		if (next < 0) return;
+		navigateTo(frame, next, mode);
+	}
 
-			final double ox = canvasWidth / 2.0;
-			final double oy = canvasHeight / 2.0;
+	/**
+	 * Moves the keyboard focus to the next on screen source in reading order,
+	 * and selects it
+	 *
+	 * @param step 1 for the next source, -1 for the previous one
+	 */
+	void navigateReadingOrder(int step) {
+		SourceGeometryService.Frame frame = geometry.getFrame(canvasWidth,
+			canvasHeight);
+		CentroidIndex index = frame.getCentroidIndex();
+		int current = -1;
+		synchronized (this) {
+			if (navigationFocus != null) {
+				double[] focus = getNavigationFocus(frame);
+				current = index.nearest(focus[0], focus[1]);
+			}
+		}
+		int next = index.nextInReadingOrder(current, step);
+		if (next < 0) return;
+		navigateTo(frame, next, SourceSelectorBehaviour.SET);
+	}
 
-			rbh.setOrigin(ox, oy);
-			rbh.setScale(1);
+	private synchronized double[] getNavigationFocus(
+		SourceGeometryService.Frame frame)
+	{
+		if (navigationFocus == null) return new double[] { canvasWidth / 2.0,
+			canvasHeight / 2.0, 0 };
+		double[] screen = new double[3];
+		frame.getViewerTransform().apply(navigationFocus, screen);
+		return screen;
+	}
 
-			final GeneralPath front = new GeneralPath();
-			final GeneralPath back = new GeneralPath();
-			final GeneralPath intersection = new GeneralPath();
+	private void navigateTo(SourceGeometryService.Frame frame, int index,
+		String mode)
+	{
+		CentroidIndex centroids = frame.getCentroidIndex();
+		double[] world = new double[3];
+		frame.getViewerTransform().applyInverse(world, new double[] {
+			centroids.xs[index], centroids.ys[index], 0 });
+		synchronized (this) {
+			navigationFocus = world;
+		}
+		Set<SourceAndConverter<?>> sources = new HashSet<>();
+		sources.add(frame.getOnScreenSources().get(index).getSourceAndConverter());
+		ssb.processSelectionModificationEvent(sources, mode, "Keyboard");
+	}
 
-			if (sbo.getInterval() != null) {
-				rbh.renderBox(sbo.getInterval(), transform, front, back, intersection);
-				Rectangle r = getCurrentSelectionRectangle();
+	/**
+	 * @param r selection rectangle, in screen coordinates
+	 * @return the sources whose intersection with the slicing plane intersects
+	 *         the rectangle
+	 */
+	Set<SourceAndConverter<?>> getSelectedSources(Rectangle r) {
+		final long t0 = SelectorMetrics.start();
+		Set<SourceAndConverter<?>> lastSelected = new HashSet<>();
 
-				if (intersection.intersects(r) || intersection.contains(r)) {
-					lastSelected.add(sbo.sac);
-				}
-			}
+		// We need to find whether a rectangle in real space intersects a box in 3d
+		// -> Makes use of the intersections computed by the geometry service
+		SourceGeometryService.Frame frame = geometry.getFrame(canvasWidth,
+			canvasHeight);
+		lastSelected.addAll(frame.getSourcesIntersecting(r));
+		SelectorMetrics.getInstance().hitTest.stop(t0);
+		return lastSelected;
+	}
 
-		}
+	/**
+	 * @param r selection rectangle, in screen coordinates
+	 * @return the sources intersecting the volume defined by the rectangle and
+	 *         the volume selection depth range of the
+	 *         {@link SourceSelectorBehaviour}
+	 */
+	Set<SourceAndConverter<?>> getSelectedSourcesInVolume(Rectangle r) {
+		final long t0 = SelectorMetrics.start();
+		Set<SourceAndConverter<?>> lastSelected = SourceSelectionEngine
+			.selectInVolume(geometry.getBoundsIndex(), getViewerTransform(), r
+				.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY(),
+				ssb.volumeSelectionZMin, ssb.volumeSelectionZMax);
+		SelectorMetrics.getInstance().hitTest.stop(t0);
 		return lastSelected;
 	}
 
+	/**
+	 * Draws the current frame and input state. It takes no lock : the frame,
+	 * the selection rectangle and the polygon are immutable snapshots, so a
+	 * slow paint never blocks the mouse handlers.
+	 */
 	@Override
-	public synchronized void draw(Graphics2D g) {
+	public void draw(Graphics2D g) {
+		final long t0 = SelectorMetrics.start();
 
-		Map<Integer,Set<Integer>> occupied = new HashMap<>();
+		SourceGeometryService.Frame frame = geometry.getFrame(canvasWidth,
+			canvasHeight);
 
-		for (SourceBoxOverlay source : sourcesBoxOverlay) {
-			source.drawBoxOverlay(g, displaySourcesNames, occupied);
-		}
+		drawSources(g, frame, ssb.selectedSources, styles, labels,
+			displaySourcesNames);
 
+		SelectionRectangle rectangle = currentRectangle;
+		boolean isCurrentlySelecting = (rectangle != null) && rectangle.visible;
 		if (isCurrentlySelecting) {
 			g.setStroke(styles.get("SELECTED").getNormalStroke());
 			g.setPaint(styles.get("SELECTED").getBackColor());
-			g.draw(getCurrentSelectionRectangle());
+			g.draw(rectangle.toRectangle());
 		}
 
-	}
-
-	@Override
-	public void setCanvasSize(final int width, final int height) {
-		this.canvasWidth = width;
-		this.canvasHeight = height;
-	}
+		SourceAndConverter<?> hovered = hoveredSource;
+		if ((hovered != null) && (!isCurrentlySelecting)) {
+			drawHoveredSource(g, frame, hovered);
+		}
 
-	public void updateBoxes() {
-		List<SourceBoxOverlay> newSourcesBoxOverlay = new ArrayList<>();
-
-		for (SourceAndConverter<?> sac : viewer.state().getVisibleSources()) {
-			if (sac.getSpimSource().getSource(viewer.state().getCurrentTimepoint(),
-				0) != null)
-			{ // TODO : fix hack to avoid dirty overlay filter
-				newSourcesBoxOverlay.add(new SourceSelectorOverlay.SourceBoxOverlay(
-					sac));
+		PolygonDraft polygon = currentPolygon;
+		if (polygon != null) {
+			g.setStroke(styles.get("SELECTED").getNormalStroke());
+			g.setPaint(styles.get("SELECTED").getBackColor());
+			GeneralPath path = new GeneralPath();
+			path.moveTo(polygon.xs[0], polygon.ys[0]);
+			for (int i = 1; i < polygon.size; i++) {
+				path.lineTo(polygon.xs[i], polygon.ys[i]);
 			}
+			g.draw(path);
+			g.drawRect((int) polygon.xs[0] - POLYGON_CLOSE_DISTANCE / 2,
+				(int) polygon.ys[0] - POLYGON_CLOSE_DISTANCE / 2,
+				POLYGON_CLOSE_DISTANCE, POLYGON_CLOSE_DISTANCE);
 		}
 
-		synchronized (lockSourceBoxOverlay) {
-			sourcesBoxOverlay = newSourcesBoxOverlay;
+		final SelectorMetrics metrics = SelectorMetrics.getInstance();
+		metrics.draw.stop(t0);
+		if (SelectorMetrics.enabled()) {
+			metrics.sourcesProjected.record(frame.getNumberOfSources());
+			metrics.sourcesCulled.record(frame.getNumberOfSourcesCulledByPlane() +
+				frame.getNumberOfSourcesCulledByCanvas());
+			metrics.sourcesDrawn.record(frame.getOnScreenSources().size());
 		}
-
 	}
 
-	class SourceBoxOverlay implements TransformedBox {
-
-		final SourceAndConverter<?> sac;
-
-		final RenderBoxHelper rbh;
-
-		public SourceBoxOverlay(SourceAndConverter<?> sac) {
-			this.sac = sac;
-			rbh = new RenderBoxHelper();
+	private void drawHoveredSource(Graphics2D g, SourceGeometryService.Frame frame,
+		SourceAndConverter<?> hovered)
+	{
+		final OverlayStyle hoverStyle = styles.get("HOVER");
+		for (SourceGeometryService.ProjectedSource ps : frame
+			.getOnScreenSources())
+		{
+			if (ps.getSourceAndConverter() != hovered) continue;
+			g.setPaint(hoverStyle.getIntersectionFillColor());
+			g.fill(ps.getIntersection());
+			g.setPaint(hoverStyle.getIntersectionColor());
+			g.setStroke(hoverStyle.getIntersectionStroke());
+			g.draw(ps.getIntersection());
+			g.setColor(hoverStyle.getFrontColor());
+			labels.drawString(g, hovered.getSpimSource().getName(), hoverX + 12,
+				hoverY);
+			return;
 		}
+	}
 
-		private Map<Integer,Set<Integer>> displayAt(Graphics2D graphics, double xp, double yp, String name, Map<Integer,Set<Integer>> occupied) {
-			double binSizeX = 100;
-			double binSizeY = 20;
-			int binX = (int) (xp/binSizeX);
-			int binY = (int) (yp/binSizeY);
-			int shiftX = 0;
-			int shiftY = 0;
-			if (!occupied.containsKey(binX)) {
-				occupied.put(binX, new HashSet<>());
-			}
-			Set<Integer> occupiedY = occupied.get(binX);
-
-			while (occupiedY.contains(binY)) {
-				binY++;
-				shiftY += (int) binSizeY;
-			}
-			occupiedY.add(binY);
-			graphics.drawString(sac.getSpimSource().getName(),(int) (xp+shiftX),(int) (yp+shiftY));
-			return occupied;
-		}
+	/**
+	 * Draws the intersection of the on screen sources of a frame with the
+	 * slicing plane, and optionally their names
+	 *
+	 * @param g graphics to draw in
+	 * @param frame geometry of the sources
+	 * @param selectedSources sources drawn with the "SELECTED" style, the other
+	 *          ones are drawn with the "DEFAULT" style
+	 * @param styles styles map, see {@link SourceSelectorOverlay#getStyles()}
+	 * @param labels cache of laid out source names
+	 * @param displaySourcesNames whether source names should be drawn
+	 */
+	static void drawSources(Graphics2D g, SourceGeometryService.Frame frame,
+		Set<SourceAndConverter<?>> selectedSources,
+		Map<String, OverlayStyle> styles, GlyphVectorCache labels,
+		boolean displaySourcesNames)
+	{
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+			RenderingHints.VALUE_ANTIALIAS_ON);
 
-		private	Map<Integer,Set<Integer>> drawBoxOverlay(Graphics2D graphics, boolean displaySourcesNames, Map<Integer,Set<Integer>> occupied) {
-			OverlayStyle os;
+		final OverlayStyle selectedStyle = styles.get("SELECTED");
+		final OverlayStyle defaultStyle = styles.get("DEFAULT");
 
-			if (ssb.selectedSources.contains(sac)) {
-				os = styles.get("SELECTED");
-			}
-			else {
-				os = styles.get("DEFAULT");
-			}
-			final GeneralPath front = new GeneralPath();
-			final GeneralPath back = new GeneralPath();
-			final GeneralPath intersection = new GeneralPath();
-
-			final RealInterval interval = getInterval();
-			if (interval != null) {
-				final double ox = canvasWidth / 2.0;
-				final double oy = canvasHeight / 2.0;
-				AffineTransform3D viewerTransform = new AffineTransform3D();
-				viewer.state().getViewerTransform(viewerTransform);
-				AffineTransform3D transform = new AffineTransform3D();
-
-				getTransform(transform);
-				transform.preConcatenate(viewerTransform);
-
-				rbh.setOrigin(ox, oy);
-				rbh.setScale(1);
-
-				rbh.renderBox(interval, transform, front, back, intersection);
-				Rectangle screen = new Rectangle(0,0,canvasWidth, canvasHeight);
-				Rectangle rectBounds = intersection.getBounds();
-				if ((rectBounds.x + rectBounds.width > 0) &&
-					(rectBounds.x < canvasWidth))
-				{
-					if ((rectBounds.y + rectBounds.height > 0) &&
-						(rectBounds.y < canvasHeight))
-					{
-						graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-							RenderingHints.VALUE_ANTIALIAS_ON);
-
-						graphics.setPaint(os.getIntersectionFillColor());
-						graphics.fill(intersection);
-
-						graphics.setPaint(os.getIntersectionColor());
-						graphics.setStroke(os.getIntersectionStroke());
-						graphics.draw(intersection);
-
-						if (displaySourcesNames) {
-							Area a = new Area(intersection);
-							a.intersect(new Area(screen));
-							double cx = a.getBounds2D().getCenterX();
-							double cy = a.getBounds2D().getCenterY();
-							//graphics.drawString(sac.getSpimSource().getName(),(int) cx,(int)cy);
-							graphics.setColor(os.getFrontColor());
-							occupied = displayAt(graphics, cx, cy, sac.getSpimSource().getName(), occupied);
-						}
-					}
-				}
-			}
+		for (SourceGeometryService.ProjectedSource ps : frame
+			.getOnScreenSources())
+		{
+			OverlayStyle os = selectedSources.contains(ps.getSourceAndConverter())
+				? selectedStyle : defaultStyle;
 
-			return occupied;
+			g.setPaint(os.getIntersectionFillColor());
+			g.fill(ps.getIntersection());
 
+			g.setPaint(os.getIntersectionColor());
+			g.setStroke(os.getIntersectionStroke());
+			g.draw(ps.getIntersection());
 		}
 
-		@Override
-		public RealInterval getInterval() {
-			long[] dims = new long[3];
-			int currentTimePoint = viewer.state().getCurrentTimepoint();
-			if (sac.getSpimSource().isPresent(currentTimePoint)) {
-				sac.getSpimSource().getSource(currentTimePoint, 0).dimensions(dims);
-				return new FinalRealInterval(new double[] { -0.5, -0.5, -0.5 },
-					new double[] { dims[0] - 0.5, dims[1] - 0.5, dims[2] - 0.5 });
+		if (displaySourcesNames) {
+			for (SourceGeometryService.ProjectedSource ps : frame
+				.getLabelledSources())
+			{
+				OverlayStyle os = selectedSources.contains(ps
+					.getSourceAndConverter()) ? selectedStyle : defaultStyle;
+				g.setColor(os.getFrontColor());
+				labels.drawString(g, ps.getSourceAndConverter().getSpimSource()
+					.getName(), (int) ps.getLabelX(), (int) ps.getLabelY());
 			}
-			else return null;
 		}
+	}
 
-		@Override
-		public void getTransform(AffineTransform3D transform) {
-			sac.getSpimSource().getSourceTransform(viewer.state()
-				.getCurrentTimepoint(), 0, transform);
-		}
+	@Override
+	public void setCanvasSize(final int width, final int height) {
+		this.canvasWidth = width;
+		this.canvasHeight = height;
+	}
 
+	public void updateBoxes() {
+		geometry.updateBoxes();
 	}
 
 	/**
@@ -461,6 +755,79 @@ public class SourceSelectorOverlay extends BdvOverlay {
 
 	}
 
+	public static class HoverOverlayStyle implements
+		SourceSelectorOverlay.OverlayStyle
+	{
+
+		final Color backColor = new Color(0xF7BF18);
+
+		final Color frontColor = Color.WHITE;
+
+		final Color intersectionFillColor = new Color(0x40FFFFFF, true);
+
+		final Stroke normalStroke = new BasicStroke();
+
+		final Stroke intersectionStroke = new BasicStroke(2f);
+
+		final Color intersectionColor = Color.WHITE;
+
+		public Color getBackColor() {
+			return backColor;
+		}
+
+		public Color getFrontColor() {
+			return frontColor;
+		}
+
+		@Override
+		public Color getIntersectionColor() {
+			return intersectionColor;
+		}
+
+		public Color getIntersectionFillColor() {
+			return intersectionFillColor;
+		}
+
+		public Stroke getNormalStroke() {
+			return normalStroke;
+		}
+
+		@Override
+		public Stroke getIntersectionStroke() {
+			return intersectionStroke;
+		}
+
+	}
+
+	/**
+	 * Tracks the mouse cursor to highlight the source under it. Mouse moves
+	 * only store the cursor location ; the lookup is done by a timer, at most
+	 * once per {@link SourceSelectorOverlay#HOVER_THROTTLE_MS}, on the event
+	 * dispatch thread.
+	 */
+	class HoverHandler extends MouseAdapter {
+
+		final Timer timer = new Timer(HOVER_THROTTLE_MS,
+			e -> updateHoveredSource());
+
+		HoverHandler() {
+			timer.setRepeats(false);
+		}
+
+		@Override
+		public void mouseMoved(MouseEvent e) {
+			hoverX = e.getX();
+			hoverY = e.getY();
+			if (!timer.isRunning()) timer.start();
+		}
+
+		@Override
+		public void mouseExited(MouseEvent e) {
+			hoverX = -1;
+			if (!timer.isRunning()) timer.start();
+		}
+	}
+
 	/**
 	 * Drag Selection Behaviour
 	 */
@@ -468,8 +835,21 @@ public class SourceSelectorOverlay extends BdvOverlay {
 
 		final String mode;
 
+		final boolean volume;
+
 		public RectangleSelectSourcesBehaviour(String mode) {
+			this(mode, false);
+		}
+
+		/**
+		 * @param mode see SET ADD REMOVE
+		 * @param volume if true, the sources are selected in the volume defined
+		 *          by the rectangle and the depth range of the selector, instead
+		 *          of the current slice
+		 */
+		public RectangleSelectSourcesBehaviour(String mode, boolean volume) {
 			this.mode = mode;
+			this.volume = volume;
 		}
 
 		@Override
@@ -478,13 +858,14 @@ public class SourceSelectorOverlay extends BdvOverlay {
 			viewer.setCursor(new Cursor(Cursor.CROSSHAIR_CURSOR));
 			switch (mode) {
 				case SourceSelectorBehaviour.SET:
-					viewer.showMessage("Set Selection");
+					viewer.showMessage(volume ? "Set Volume Selection" : "Set Selection");
 					break;
 				case SourceSelectorBehaviour.ADD:
-					viewer.showMessage("Add Selection");
+					viewer.showMessage(volume ? "Add Volume Selection" : "Add Selection");
 					break;
 				case SourceSelectorBehaviour.REMOVE:
-					viewer.showMessage("Remove Selection");
+					viewer.showMessage(volume ? "Remove Volume Selection"
+						: "Remove Selection");
 					break;
 			}
 		}
@@ -498,9 +879,151 @@ public class SourceSelectorOverlay extends BdvOverlay {
 
 		@Override
 		public void end(int x, int y) {
-			endCurrentSelection(x, y, mode);
+			if (volume) {
+				endCurrentVolumeSelection(x, y, mode);
+			}
+			else {
+				endCurrentSelection(x, y, mode);
+			}
 			viewer.setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
 		}
 	}
 
+	/**
+	 * Freehand lasso : the lasso is closed when the mouse is released
+	 */
+	class LassoSelectSourcesBehaviour implements DragBehaviour {
+
+		final String mode;
+
+		public LassoSelectSourcesBehaviour(String mode) {
+			this.mode = mode;
+		}
+
+		@Override
+		public void init(int x, int y) {
+			startCurrentPolygon(x, y);
+			viewer.setCursor(new Cursor(Cursor.CROSSHAIR_CURSOR));
+		}
+
+		@Override
+		public void drag(int x, int y) {
+			PolygonDraft polygon = currentPolygon;
+			if (polygon == null) return;
+			// Skips the mouse moves of less than 2 pixels, they do not change
+			// the selection but would make the lasso slower to test
+			double dx = x - polygon.xs[polygon.size - 1];
+			double dy = y - polygon.ys[polygon.size - 1];
+			if (dx * dx + dy * dy < 4) return;
+			addPolygonVertex(x, y);
+			viewer.getDisplay().repaint();
+		}
+
+		@Override
+		public void end(int x, int y) {
+			endCurrentPolygon(mode);
+			viewer.setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
+		}
+	}
+
+	/**
+	 * Polygon defined by clicks : each click adds a vertex, clicking on the
+	 * first vertex closes the polygon, ESCAPE cancels it
+	 */
+	class PolygonSelectSourcesBehaviour implements ClickBehaviour {
+
+		final String mode;
+
+		public PolygonSelectSourcesBehaviour(String mode) {
+			this.mode = mode;
+		}
+
+		@Override
+		public void click(int x, int y) {
+			PolygonDraft polygon = currentPolygon;
+			if (polygon == null) {
+				startCurrentPolygon(x, y);
+				viewer.showMessage("Click on the first vertex to close the polygon");
+			}
+			else if ((polygon.size >= 3) && (Math.abs(x -
+				polygon.xs[0]) <= POLYGON_CLOSE_DISTANCE) && (Math.abs(y -
+					polygon.ys[0]) <= POLYGON_CLOSE_DISTANCE))
+			{
+				endCurrentPolygon(mode);
+			}
+			else {
+				addPolygonVertex(x, y);
+			}
+			viewer.getDisplay().repaint();
+		}
+	}
+
+	/**
+	 * Immutable state of the rectangle being dragged
+	 */
+	static final class SelectionRectangle {
+
+		final int xStart, yStart, xEnd, yEnd;
+
+		// False until the mouse moves
+		final boolean visible;
+
+		SelectionRectangle(int xStart, int yStart, int xEnd, int yEnd,
+			boolean visible)
+		{
+			this.xStart = xStart;
+			this.yStart = yStart;
+			this.xEnd = xEnd;
+			this.yEnd = yEnd;
+			this.visible = visible;
+		}
+
+		Rectangle toRectangle() {
+			int x0 = Math.min(xStart, xEnd), y0 = Math.min(yStart, yEnd);
+			int w = Math.abs(xEnd - xStart), h = Math.abs(yEnd - yStart);
+			// Hack : allows selection on double or single click
+			if (w == 0) w = 1;
+			if (h == 0) h = 1;
+			return new Rectangle(x0, y0, w, h);
+		}
+	}
+
+	/**
+	 * Vertices of the lasso or polygon being drawn. Vertices are only appended,
+	 * by the input thread : a new draft shares the arrays of the previous one
+	 * while they have room, which is safe because the vertices [0, size) of a
+	 * draft are never written again.
+	 */
+	static final class PolygonDraft {
+
+		final double[] xs, ys;
+
+		final int size;
+
+		PolygonDraft(double x, double y) {
+			xs = new double[64];
+			ys = new double[64];
+			xs[0] = x;
+			ys[0] = y;
+			size = 1;
+		}
+
+		private PolygonDraft(double[] xs, double[] ys, int size) {
+			this.xs = xs;
+			this.ys = ys;
+			this.size = size;
+		}
+
+		PolygonDraft with(double x, double y) {
+			double[] newXs = xs, newYs = ys;
+			if (size == xs.length) {
+				newXs = Arrays.copyOf(xs, 2 * size);
+				newYs = Arrays.copyOf(ys, 2 * size);
+			}
+			newXs[size] = x;
+			newYs[size] = y;
+			return new PolygonDraft(newXs, newYs, size + 1);
+		}
+	}
+
 }
@@ -0,0 +1,49 @@
+package ch.epfl.biop.bdv.select;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Variable length encoding of non negative integers (7 bits per byte, least
+ * significant group first), used by the compact binary formats of this package
+ */
+
+final class VarInts {
+
+	private VarInts() {}
+
+	static void writeVarLong(DataOutput out, long value) throws IOException {
+		if (value < 0) throw new IllegalArgumentException(
+			"Only non negative values can be encoded, got " + value);
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		int shift = 0;
+		while (true) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+			shift += 7;
+			if (shift > 63) throw new IOException("Malformed variable length value");
+		}
+	}
+
+	static void writeVarInt(DataOutput out, int value) throws IOException {
+		writeVarLong(out, value);
+	}
+
+	static int readVarInt(DataInput in) throws IOException {
+		long value = readVarLong(in);
+		if ((value < 0) || (value > Integer.MAX_VALUE)) throw new IOException(
+			"Variable length value out of int range : " + value);
+		return (int) value;
+	}
+
+}
@@ -72,7 +72,14 @@ public class BdvSelectorDemo {
 		// Programmatic API Demo : triggers a list of actions separated in time
 		// programmaticAPIDemo(bdvh, ssb);
 		// NOTE:
-		showOverlay(bdvh, new SourceNameOverlay(bdvh.getViewerPanel()), "Sources Name");
+		SourceNameOverlay nameOverlay = new SourceNameOverlay(bdvh.getViewerPanel());
+		showOverlay(bdvh, nameOverlay, "Sources Name");
+
+		// Performance HUD : live frame time, culling and cache numbers of the selector
+		// ch.epfl.biop.bdv.select.SelectorPerformanceOverlay hud =
+		//	new ch.epfl.biop.bdv.select.SelectorPerformanceOverlay(ssb);
+		// hud.addLabelCache(nameOverlay.getLabelCache());
+		// hud.show(); // hud.remove() restores the previous state of the metrics
 	}
 
 	/**
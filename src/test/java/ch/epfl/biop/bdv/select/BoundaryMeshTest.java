@@ -0,0 +1,278 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.img.WarpedSource;
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.ConstantUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Warped sources are sliced through the boundary mesh of their innermost
+ * source : a translation given as a non affine warp puts the source at its
+ * translated world position, and a bending warp gives a concave slice made of
+ * several loops, tested with the even-odd rule.
+ */
+
+public class BoundaryMeshTest {
+
+	@After
+	public void tearDown() {
+		SourceBox.sourcesMoved();
+	}
+
+	static SourceAndConverter<UnsignedByteType> warped(long sx, long sy,
+		long sz, AffineTransform3D location, InvertibleRealTransform warp)
+	{
+		UnsignedByteType type = new UnsignedByteType();
+		RandomAccessibleIntervalSource<UnsignedByteType> tile =
+			new RandomAccessibleIntervalSource<>(ConstantUtils
+				.constantRandomAccessibleInterval(type, new FinalInterval(sx, sy,
+					sz)), type, location, "Tile");
+		WarpedSource<UnsignedByteType> source = new WarpedSource<>(tile,
+			"Warped tile");
+		source.updateTransform(warp);
+		source.setIsTransformed(true);
+		return new SourceAndConverter<>(source, null);
+	}
+
+	static SourceSelectionEngine.Slice slice(SourceAndConverter<?> sac) {
+		return SourceSelectionEngine.slice(Collections.singletonList(
+			new SourceBox(sac, 0)), new AffineTransform3D());
+	}
+
+	@Test
+	public void translationWarpMovesTheSource() {
+		AffineTransform3D location = new AffineTransform3D();
+		location.scale(2);
+		location.translate(200, 300, 0);
+		// World x in [1199, 1399], y in [799, 999], z in [-1, 1]
+		SourceAndConverter<?> sac = warped(100, 100, 1, location,
+			new Translation(-1000, -500, 0));
+
+		SourceSelectionEngine.Slice slice = slice(sac);
+		assertEquals(1, slice.getSlicedSources().size());
+		assertTrue(slice.selectInRectangle(1290, 890, 1300, 900).contains(sac));
+		assertTrue(slice.selectInRectangle(1390, 990, 1410, 1010).contains(sac));
+		assertFalse(slice.selectInRectangle(1410, 890, 1420, 900).contains(sac));
+		// Where the estimated raster of the warped source would put it
+		assertFalse(slice.selectInRectangle(50, 50, 60, 60).contains(sac));
+		assertFalse(slice.selectInRectangle(1000, 500, 1150, 700).contains(sac));
+
+		SourceBoundsIndex index = new SourceBoundsIndex(Collections
+			.singletonList(new SourceBox(sac, 0)));
+		assertTrue(index.query(new FinalRealInterval(new double[] { 1290, 890,
+			-1 }, new double[] { 1300, 900, 1 })).contains(sac));
+		assertFalse(index.query(new FinalRealInterval(new double[] { 50, 50, -1 },
+			new double[] { 60, 60, 1 })).contains(sac));
+		assertFalse(index.query(new FinalRealInterval(new double[] { 1290, 890,
+			5 }, new double[] { 1300, 900, 10 })).contains(sac));
+	}
+
+	@Test
+	public void bendingWarpGivesAConcaveSlice() {
+		AffineTransform3D location = new AffineTransform3D();
+		location.translate(0, 0, -20);
+		// The slab, below the plane z = 0, is bent up to it at |x - 50| ~ 31
+		SourceAndConverter<?> sac = warped(100, 10, 2, location, new Bend(50,
+			0.02));
+
+		SourceSelectionEngine.Slice slice = slice(sac);
+		List<SourceSelectionEngine.SlicedSource> sliced = slice
+			.getSlicedSources();
+		assertEquals(1, sliced.size());
+		SlicePolygon polygon = sliced.get(0).getPolygon();
+		assertEquals(2, polygon.getNumberOfLoops());
+		assertFalse(polygon.isConvex());
+		assertTrue(slice.selectInRectangle(10, 0, 30, 10).contains(sac));
+		assertTrue(slice.selectInRectangle(70, 0, 90, 10).contains(sac));
+		// Inside the bounding box of the slice, between the two loops
+		assertFalse(slice.selectInRectangle(40, 0, 60, 10).contains(sac));
+	}
+
+	@Test
+	public void holeIsOutsideWithTheEvenOddRule() {
+		double[] xs = { 0, 10, 10, 0, 3, 3, 7, 7 };
+		double[] ys = { 0, 0, 10, 10, 3, 7, 7, 3 };
+		SlicePolygon polygon = new SlicePolygon(xs, ys, 8, new int[] { 0, 4,
+			8 });
+		assertEquals(2, polygon.getNumberOfLoops());
+		assertTrue(polygon.contains(1, 1));
+		assertTrue(polygon.contains(8, 5));
+		assertFalse(polygon.contains(5, 5));
+		assertFalse(polygon.contains(11, 5));
+		assertEquals(84, polygon.area(), 1e-9);
+		assertFalse(polygon.intersectsRectangle(4, 4, 6, 6));
+		assertTrue(polygon.intersectsRectangle(2, 4, 6, 6));
+	}
+
+	/**
+	 * Translation which is not an affine transform : the mesh is built by
+	 * sampling it
+	 */
+	static class Translation implements InvertibleRealTransform {
+
+		final double[] offset;
+
+		Translation(double... offset) {
+			this.offset = offset;
+		}
+
+		@Override
+		public int numSourceDimensions() {
+			return 3;
+		}
+
+		@Override
+		public int numTargetDimensions() {
+			return 3;
+		}
+
+		@Override
+		public void apply(double[] source, double[] target) {
+			for (int d = 0; d < 3; d++)
+				target[d] = source[d] + offset[d];
+		}
+
+		@Override
+		public void apply(float[] source, float[] target) {
+			for (int d = 0; d < 3; d++)
+				target[d] = (float) (source[d] + offset[d]);
+		}
+
+		@Override
+		public void apply(RealLocalizable source, RealPositionable target) {
+			for (int d = 0; d < 3; d++)
+				target.setPosition(source.getDoublePosition(d) + offset[d], d);
+		}
+
+		@Override
+		public void applyInverse(double[] source, double[] target) {
+			for (int d = 0; d < 3; d++)
+				source[d] = target[d] - offset[d];
+		}
+
+		@Override
+		public void applyInverse(float[] source, float[] target) {
+			for (int d = 0; d < 3; d++)
+				source[d] = (float) (target[d] - offset[d]);
+		}
+
+		@Override
+		public void applyInverse(RealPositionable source,
+			RealLocalizable target)
+		{
+			for (int d = 0; d < 3; d++)
+				source.setPosition(target.getDoublePosition(d) - offset[d], d);
+		}
+
+		@Override
+		public InvertibleRealTransform inverse() {
+			return new Translation(-offset[0], -offset[1], -offset[2]);
+		}
+
+		@Override
+		public InvertibleRealTransform copy() {
+			return new Translation(offset.clone());
+		}
+	}
+
+	/**
+	 * Maps warped coordinates to the wrapped source by z -= c (x - x0)^2 : the
+	 * wrapped source is bent up on both sides of x0
+	 */
+	static class Bend implements InvertibleRealTransform {
+
+		final double x0, c;
+
+		Bend(double x0, double c) {
+			this.x0 = x0;
+			this.c = c;
+		}
+
+		double offset(double x) {
+			return c * (x - x0) * (x - x0);
+		}
+
+		@Override
+		public int numSourceDimensions() {
+			return 3;
+		}
+
+		@Override
+		public int numTargetDimensions() {
+			return 3;
+		}
+
+		@Override
+		public void apply(double[] source, double[] target) {
+			target[0] = source[0];
+			target[1] = source[1];
+			target[2] = source[2] - offset(source[0]);
+		}
+
+		@Override
+		public void apply(float[] source, float[] target) {
+			target[0] = source[0];
+			target[1] = source[1];
+			target[2] = (float) (source[2] - offset(source[0]));
+		}
+
+		@Override
+		public void apply(RealLocalizable source, RealPositionable target) {
+			double x = source.getDoublePosition(0);
+			target.setPosition(x, 0);
+			target.setPosition(source.getDoublePosition(1), 1);
+			target.setPosition(source.getDoublePosition(2) - offset(x), 2);
+		}
+
+		@Override
+		public void applyInverse(double[] source, double[] target) {
+			source[0] = target[0];
+			source[1] = target[1];
+			source[2] = target[2] + offset(target[0]);
+		}
+
+		@Override
+		public void applyInverse(float[] source, float[] target) {
+			source[0] = target[0];
+			source[1] = target[1];
+			source[2] = (float) (target[2] + offset(target[0]));
+		}
+
+		@Override
+		public void applyInverse(RealPositionable source,
+			RealLocalizable target)
+		{
+			double x = target.getDoublePosition(0);
+			source.setPosition(x, 0);
+			source.setPosition(target.getDoublePosition(1), 1);
+			source.setPosition(target.getDoublePosition(2) + offset(x), 2);
+		}
+
+		@Override
+		public InvertibleRealTransform inverse() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public InvertibleRealTransform copy() {
+			return new Bend(x0, c);
+		}
+	}
+
+}
@@ -0,0 +1,178 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntUnaryOperator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes selections in one session and reads them in another one, where the
+ * sources are new objects with the same names and setup ids
+ */
+
+public class SelectionCodecTest {
+
+	/**
+	 * @param setupIds setup id of each tile, -1 if it has none
+	 * @return a codec of the tiles of a new mosaic
+	 */
+	static SelectionCodec session(List<SourceAndConverter<?>> tiles,
+		IntUnaryOperator setupIds)
+	{
+		Map<SourceAndConverter<?>, Integer> ids = new HashMap<>();
+		for (int i = 0; i < tiles.size(); i++) {
+			ids.put(tiles.get(i), setupIds.applyAsInt(i));
+		}
+		return new SelectionCodec(tiles, ids::get);
+	}
+
+	static Set<SourceAndConverter<?>> tiles(List<SourceAndConverter<?>> tiles,
+		int... indexes)
+	{
+		Set<SourceAndConverter<?>> set = new HashSet<>();
+		for (int i : indexes) {
+			set.add(tiles.get(i));
+		}
+		return set;
+	}
+
+	static byte[] write(SelectionCodec codec,
+		Set<SourceAndConverter<?>> selection) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		codec.writeSources(out, selection);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	static Set<SourceAndConverter<?>> read(SelectionCodec codec, byte[] bytes)
+		throws IOException
+	{
+		return codec.readSources(new DataInputStream(new ByteArrayInputStream(
+			bytes)));
+	}
+
+	/**
+	 * Writes the tiles in a first session, and reads them in a second one
+	 */
+	static void assertRoundTrip(int nTiles, IntUnaryOperator setupIds,
+		int... indexes) throws IOException
+	{
+		List<SourceAndConverter<?>> written = SelectionTraceReplay
+			.createSyntheticMosaic(nTiles, 10);
+		List<SourceAndConverter<?>> restored = SelectionTraceReplay
+			.createSyntheticMosaic(nTiles, 10);
+		byte[] bytes = write(session(written, setupIds), tiles(written, indexes));
+		SelectionCodec codec = session(restored, setupIds);
+		assertEquals(tiles(restored, indexes), read(codec, bytes));
+		assertEquals(0, codec.getUnresolved());
+	}
+
+	@Test
+	public void setupIdsAreRestored() throws IOException {
+		assertRoundTrip(100, i -> i, 0, 1, 2, 3, 10, 50, 51, 99);
+		// Sparse ids, mapped without array
+		assertRoundTrip(100, i -> 1000000 * i, 0, 1, 2, 3, 10, 50, 51, 99);
+	}
+
+	@Test
+	public void sourcesWithoutSetupIdAreRestoredByName() throws IOException {
+		// Half of the tiles have no setup id
+		assertRoundTrip(10, i -> i < 5 ? i : -1, 2, 3, 6, 8);
+	}
+
+	@Test
+	public void sourcesSharingASetupIdAreRestoredByName() throws IOException {
+		// Two datasets in the same viewer : tiles i and i + 5 share their setup
+		// id, tiles 10 and 11 have their own
+		IntUnaryOperator setupIds = i -> i < 10 ? i % 5 : i;
+		assertRoundTrip(12, setupIds, 0, 6, 7, 10, 11);
+		assertRoundTrip(12, setupIds, 5);
+	}
+
+	@Test
+	public void missingSourcesAreUnresolved() throws IOException {
+		List<SourceAndConverter<?>> written = SelectionTraceReplay
+			.createSyntheticMosaic(10, 10);
+		List<SourceAndConverter<?>> restored = SelectionTraceReplay
+			.createSyntheticMosaic(6, 10);
+		// Tiles 0 to 4 by setup id, 5 to 9 by name
+		byte[] bytes = write(session(written, i -> i < 5 ? i : -1), tiles(written,
+			0, 1, 2, 3, 4, 5, 6, 7, 8, 9));
+		// Tiles 6 to 9 are missing, and tiles 3 and 4 have no setup id anymore.
+		// Tile 5 has a setup id now, but it was written by name and is found by
+		// name
+		SelectionCodec codec = session(restored, i -> i < 3 ? i : i == 5 ? 5
+			: -1);
+		assertEquals(tiles(restored, 0, 1, 2, 5), read(codec, bytes));
+		assertEquals(6, codec.getUnresolved());
+	}
+
+	/**
+	 * @param values varints of the runs : number of runs, then gap and length
+	 *          of each run, followed by no names
+	 */
+	static byte[] runs(long... values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (long value : values) {
+			VarInts.writeVarLong(out, value);
+		}
+		VarInts.writeVarInt(out, 0);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	static void assertCorrupt(SelectionCodec codec, byte[] bytes) {
+		try {
+			read(codec, bytes);
+			fail("Corrupt runs have been read");
+		}
+		catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void corruptRunsAreRejected() throws IOException {
+		List<SourceAndConverter<?>> tiles = SelectionTraceReplay
+			.createSyntheticMosaic(10, 10);
+		SelectionCodec codec = session(tiles, i -> i);
+		// Run past the largest int
+		assertCorrupt(codec, runs(2, Integer.MAX_VALUE - 1, 1, 0, 5));
+		assertCorrupt(codec, runs(1, 5, Integer.MAX_VALUE));
+		// Gap or length out of int range
+		assertCorrupt(codec, runs(1, Long.MAX_VALUE, 1));
+		assertCorrupt(codec, runs(1, 0, 1L << 32));
+		// Truncated
+		byte[] bytes = write(codec, tiles(tiles, 1, 2, 5));
+		assertCorrupt(codec, Arrays.copyOf(bytes, bytes.length - 2));
+	}
+
+	@Test
+	public void longRunsAreNotIterated() throws IOException {
+		List<SourceAndConverter<?>> tiles = SelectionTraceReplay
+			.createSyntheticMosaic(10, 10);
+		SelectionCodec codec = session(tiles, i -> i);
+		// Ids 8 to Integer.MAX_VALUE - 1, only 8 and 9 are sources of the viewer
+		assertEquals(tiles(tiles, 8, 9), read(codec, runs(1, 8,
+			Integer.MAX_VALUE - 8)));
+		assertEquals(Integer.MAX_VALUE - 10, codec.getUnresolved());
+	}
+
+}
@@ -0,0 +1,224 @@
+package ch.epfl.biop.bdv.select;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checkpoints and trimming of the undo log, on bit sets of source ids, without
+ * any source nor viewer
+ */
+
+public class SelectionHistoryTest {
+
+	static final int N_IDS = 200;
+
+	/**
+	 * Selection and its undo log, modified as {@link SourceSelectorBehaviour}
+	 * does
+	 */
+	static class Session {
+
+		final SelectionHistory history;
+
+		final BitSet selection = new BitSet();
+
+		Session(long maxBytes, int checkpointInterval) {
+			history = new SelectionHistory(maxBytes, checkpointInterval);
+		}
+
+		/**
+		 * Flips random ids, and records the actual changes
+		 */
+		void edit(Random random) {
+			BitSet added = new BitSet();
+			BitSet removed = new BitSet();
+			for (int i = 1 + random.nextInt(10); i > 0; i--) {
+				int id = random.nextInt(N_IDS);
+				if (selection.get(id)) removed.set(id);
+				else added.set(id);
+			}
+			selection.or(added);
+			selection.andNot(removed);
+			history.record(added.stream().toArray(), removed.stream().toArray(),
+				() -> (BitSet) selection.clone());
+		}
+
+		/**
+		 * Change which is not recorded, as a change shared by another viewer
+		 */
+		void unloggedEdit(Random random) {
+			selection.flip(random.nextInt(N_IDS));
+			history.invalidateCheckpoints();
+		}
+
+		void undo() {
+			SelectionHistory.Step step = history.undo();
+			apply(step.removed, step.added);
+		}
+
+		void redo() {
+			SelectionHistory.Step step = history.redo();
+			apply(step.added, step.removed);
+		}
+
+		/**
+		 * Applies a step, and drops the checkpoints if it could not be fully
+		 * applied, as {@link SourceSelectorBehaviour#undo()} does
+		 */
+		void apply(int[] added, int[] removed) {
+			int nChanged = 0;
+			for (int id : removed) {
+				if (selection.get(id)) nChanged++;
+				selection.clear(id);
+			}
+			for (int id : added) {
+				if (!selection.get(id)) nChanged++;
+				selection.set(id);
+			}
+			if (nChanged != added.length + removed.length) history
+				.invalidateCheckpoints();
+		}
+
+		/**
+		 * @return the selection after n single undo steps, negative to redo
+		 */
+		BitSet stepBy(int n) {
+			for (int i = 0; i < n; i++)
+				undo();
+			for (int i = 0; i > n; i--)
+				redo();
+			return (BitSet) selection.clone();
+		}
+
+		/**
+		 * @return the selection after moving n steps at once
+		 */
+		BitSet moveBy(int n) {
+			BitSet moved = history.moveTo(history.getPosition() - n,
+				(BitSet) selection.clone());
+			selection.clear();
+			selection.or(moved);
+			return moved;
+		}
+	}
+
+	/**
+	 * Builds the same random session twice
+	 */
+	static Session[] sessions(long seed, boolean unlogged) {
+		Session[] sessions = new Session[2];
+		for (int s = 0; s < 2; s++) {
+			Random random = new Random(seed);
+			Session session = new Session(1 << 20, 4);
+			for (int i = 0; i < 60; i++) {
+				int action = random.nextInt(10);
+				if (action < 6) session.edit(random);
+				else if ((action < 8) && session.history.canUndo()) session.undo();
+				else if ((action < 9) && session.history.canRedo()) session.redo();
+				else if (unlogged) session.unloggedEdit(random);
+			}
+			sessions[s] = session;
+		}
+		return sessions;
+	}
+
+	static void assertMovesEqualSteps(long seed, boolean unlogged) {
+		Random random = new Random(seed + 1);
+		Session[] sessions = sessions(seed, unlogged);
+		Session moved = sessions[0], stepped = sessions[1];
+		for (int i = 0; i < 20; i++) {
+			int position = moved.history.getPosition();
+			int n = random.nextInt(moved.history.size() + 1) - (moved.history
+				.size() - position);
+			n = Math.max(-(moved.history.size() - position), Math.min(position, n));
+			assertEquals("Seed " + seed + ", move by " + n + " from " + position,
+				stepped.stepBy(n), moved.moveBy(n));
+			assertEquals(stepped.history.getPosition(), moved.history.getPosition());
+		}
+	}
+
+	@Test
+	public void movesFromCheckpointsEqualSingleSteps() {
+		for (long seed = 0; seed < 50; seed++) {
+			assertMovesEqualSteps(seed, false);
+		}
+	}
+
+	@Test
+	public void movesAfterUnloggedChangesEqualSingleSteps() {
+		for (long seed = 0; seed < 50; seed++) {
+			assertMovesEqualSteps(seed, true);
+		}
+	}
+
+	@Test
+	public void unloggedChangeDropsCheckpoints() {
+		Session session = new Session(1 << 20, 4);
+		Random random = new Random(0);
+		for (int i = 0; i < 20; i++) {
+			session.edit(random);
+		}
+		assertEquals(5, session.history.getNumberOfCheckpoints());
+		long bytes = session.history.getBytes();
+		session.unloggedEdit(random);
+		assertEquals(0, session.history.getNumberOfCheckpoints());
+		assertTrue(session.history.getBytes() < bytes);
+		// The next checkpoint comes a full interval later
+		for (int i = 0; i < 3; i++) {
+			session.edit(random);
+		}
+		assertEquals(0, session.history.getNumberOfCheckpoints());
+		session.edit(random);
+		assertEquals(1, session.history.getNumberOfCheckpoints());
+	}
+
+	@Test
+	public void trimDropsTheOldestStepsAndKeepsTheCurrentOne() {
+		Session session = new Session(1000, 4);
+		Random random = new Random(0);
+		for (int i = 0; i < 100; i++) {
+			session.edit(random);
+			assertTrue(session.history.getBytes() <= 1000);
+		}
+		int size = session.history.size();
+		assertTrue(size < 100);
+		assertEquals(size, session.history.getPosition());
+		// Undo down to the oldest step kept
+		for (int i = 0; i < size; i++) {
+			session.undo();
+		}
+		assertFalse(session.history.canUndo());
+		assertNull(session.history.undo());
+
+		// Even a step larger than the cap is kept, as the current one
+		session.history.setMaxBytes(1);
+		assertEquals(size, session.history.size());
+		session.edit(random);
+		assertEquals(1, session.history.size());
+		assertEquals(1, session.history.getPosition());
+		assertTrue(session.history.canUndo());
+	}
+
+	@Test
+	public void recordDropsTheStepsToRedo() {
+		Session session = new Session(1 << 20, 4);
+		Random random = new Random(0);
+		for (int i = 0; i < 10; i++) {
+			session.edit(random);
+		}
+		session.moveBy(4);
+		assertTrue(session.history.canRedo());
+		session.edit(random);
+		assertFalse(session.history.canRedo());
+		assertEquals(7, session.history.size());
+		assertEquals(7, session.history.getPosition());
+	}
+
+}
@@ -0,0 +1,180 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Follows the selection published by a {@link SelectionPublisher} with a
+ * loopback client, as an external process would. Selection events are
+ * simulated by calling the listener of the publisher directly, so that no
+ * viewer is needed.
+ */
+
+public class SelectionPublisherTest {
+
+	List<SourceAndConverter<?>> sources;
+
+	SelectionCodec codec;
+
+	// Selection of the simulated selector
+	final Set<SourceAndConverter<?>> selection = new HashSet<>();
+
+	SelectionPublisher publisher;
+
+	@Before
+	public void setUp() throws IOException {
+		sources = SelectionTraceReplay.createSyntheticMosaic(100000, 10);
+		Map<SourceAndConverter<?>, Integer> setupIds = new HashMap<>();
+		for (int i = 0; i < sources.size(); i++) {
+			setupIds.put(sources.get(i), i);
+		}
+		codec = new SelectionCodec(sources, setupIds::get);
+		publisher = new SelectionPublisher(null, 0, () -> {
+			synchronized (selection) {
+				return new HashSet<>(selection);
+			}
+		}, () -> codec);
+	}
+
+	@After
+	public void tearDown() {
+		publisher.close();
+	}
+
+	/**
+	 * Modifies the selection and notifies the publisher, as
+	 * {@link SourceSelectorBehaviour} does
+	 */
+	void event(String mode, Set<SourceAndConverter<?>> sources) {
+		synchronized (selection) {
+			switch (mode) {
+				case SourceSelectorBehaviour.SET:
+					selection.clear();
+					// fall through
+				case SourceSelectorBehaviour.ADD:
+					selection.addAll(sources);
+					break;
+				default:
+					selection.removeAll(sources);
+			}
+			publisher.lastSelectionEvent(sources, mode, "Test");
+		}
+	}
+
+	Set<SourceAndConverter<?>> range(int from, int to, int step) {
+		Set<SourceAndConverter<?>> set = new HashSet<>();
+		for (int i = from; i < to; i += step) {
+			set.add(sources.get(i));
+		}
+		return set;
+	}
+
+	Socket connect(int receiveBufferSize) throws IOException {
+		Socket socket = new Socket();
+		if (receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+		socket.setSoTimeout(30000);
+		socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+			publisher.getPort()));
+		return socket;
+	}
+
+	/**
+	 * Applies the messages received until the selection of the client is the
+	 * expected one
+	 */
+	static void follow(DataInputStream in, SelectionCodec codec,
+		Set<SourceAndConverter<?>> followed, Set<SourceAndConverter<?>> expected)
+		throws IOException
+	{
+		while (!followed.equals(expected)) {
+			byte mode = in.readByte();
+			Set<SourceAndConverter<?>> sources = codec.readSources(in);
+			switch (mode) {
+				case SelectionPublisher.SET:
+					followed.clear();
+					followed.addAll(sources);
+					break;
+				case SelectionPublisher.ADD:
+					followed.addAll(sources);
+					break;
+				case SelectionPublisher.REMOVE:
+					followed.removeAll(sources);
+					break;
+				default:
+					throw new IOException("Unknown message " + mode);
+			}
+		}
+	}
+
+	static DataInputStream openStream(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket
+			.getInputStream()));
+		assertEquals(SelectionPublisher.MAGIC, in.readInt());
+		assertEquals(SelectionPublisher.VERSION, in.readByte());
+		return in;
+	}
+
+	@Test
+	public void clientFollowsTheSelection() throws IOException {
+		event(SourceSelectorBehaviour.ADD, range(0, 50, 1));
+		try (Socket socket = connect(0)) {
+			DataInputStream in = openStream(socket);
+			Set<SourceAndConverter<?>> followed = new HashSet<>();
+			// Whole selection on connection
+			follow(in, codec, followed, range(0, 50, 1));
+
+			event(SourceSelectorBehaviour.ADD, range(0, 500, 1));
+			event(SourceSelectorBehaviour.REMOVE, range(100, 200, 1));
+			follow(in, codec, followed, new HashSet<>(selection));
+
+			event(SourceSelectorBehaviour.SET, range(900, 1000, 3));
+			event(SourceSelectorBehaviour.ADD, range(0, 10, 1));
+			event(SourceSelectorBehaviour.REMOVE, range(900, 1000, 6));
+			follow(in, codec, followed, new HashSet<>(selection));
+		}
+	}
+
+	@Test
+	public void slowClientDoesNotBlockSelectionEvents() throws IOException,
+		InterruptedException
+	{
+		publisher.setMaxPendingSources(10000);
+		try (Socket socket = connect(4096)) {
+			DataInputStream in = openStream(socket);
+			// The client does not read : the publisher can't send more than a few
+			// kB, while each event changes thousands of scattered sources. Events
+			// waiting for the client would never end : they are sent from another
+			// thread, with a timeout which is not a performance budget.
+			Thread events = new Thread(() -> {
+				for (int i = 0; i < 200; i++) {
+					event(i % 3 == 0 ? SourceSelectorBehaviour.REMOVE
+						: SourceSelectorBehaviour.ADD, range(i % 2, 100000, 20 + i % 7));
+				}
+			});
+			events.start();
+			events.join(30000);
+			assertFalse("Selection events are blocked by a slow client", events
+				.isAlive());
+			// The client catches up with the latest selection
+			follow(in, codec, new HashSet<>(), new HashSet<>(selection));
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.BasicViewerState;
+import bdv.viewer.DisplayMode;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.SynchronizedViewerState;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records the interactions with a selector without viewer, and replays them
+ * with {@link SelectionTraceReplay}
+ */
+
+public class SelectionTraceReplayTest {
+
+	List<SourceAndConverter<?>> sources;
+
+	SourceSelectorBehaviour ssb;
+
+	byte[] trace;
+
+	/**
+	 * @return a viewer state, without viewer, where all the sources are visible
+	 */
+	static SynchronizedViewerState fusedState(
+		List<SourceAndConverter<?>> sources)
+	{
+		SynchronizedViewerState state = new SynchronizedViewerState(
+			new BasicViewerState());
+		state.setDisplayMode(DisplayMode.FUSED);
+		state.addSources(sources);
+		state.setSourcesActive(sources, true);
+		return state;
+	}
+
+	@Before
+	public void record() throws IOException {
+		sources = SelectionTraceReplay.createSyntheticMosaic(100, 100);
+		ssb = new SourceSelectorBehaviour(fusedState(sources));
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		SelectionTraceRecorder recorder = new SelectionTraceRecorder(os);
+		ssb.setTraceRecorder(recorder);
+		ssb.selectedSourceAdd(sources.subList(0, 20));
+		ssb.selectedSourceRemove(sources.get(3));
+		// Interactions with the mouse, recorded by the overlay in a viewer
+		AffineTransform3D view = new AffineTransform3D();
+		recorder.rectangle(0, 0, 150, 150, SourceSelectorBehaviour.ADD, view, 800,
+			600, 0);
+		recorder.pick(50, 50, SourceSelectorBehaviour.ADD, view, 800, 600, 0);
+		recorder.polygon(new double[] { 0, 150, 0 }, new double[] { 0, 0, 150 }, 3,
+			SourceSelectorBehaviour.ADD, view, 800, 600, 0);
+		recorder.volume(0, 0, 150, 150, -1, 1, SourceSelectorBehaviour.ADD, view,
+			800, 600, 0);
+		ssb.selectedSourceAdd(sources.subList(40, 45));
+		ssb.undo();
+		recorder.close();
+		trace = os.toByteArray();
+	}
+
+	@Test
+	public void replayGivesTheRecordedSelection() throws IOException {
+		SelectionTraceReplay.Report report = new SelectionTraceReplay(sources)
+			.replay(new ByteArrayInputStream(trace));
+		assertEquals(ssb.getSelectedSources(), report.getSelection());
+		assertEquals(0, report.getUnresolved());
+		assertEquals(4, report.getSelectionEvent().count());
+		assertEquals(4, report.getHitTest().count());
+		// Tiles every 90 pixels : rectangle and volume 2 x 2 tiles, lasso 3 tiles,
+		// pick 1 tile
+		assertEquals(4, report.hits.percentile(1));
+		assertEquals(3, report.hits.percentile(0.5));
+		assertEquals(1, report.hits.percentile(0));
+		// The view does not change : one frame for all the interactions
+		assertEquals(1, report.getFrame().count());
+	}
+
+	@Test
+	public void unknownSourcesAreUnresolved() throws IOException {
+		// Tile_0 to Tile_9 only
+		List<SourceAndConverter<?>> fewer = SelectionTraceReplay
+			.createSyntheticMosaic(10, 100);
+		SelectionTraceReplay.Report report = new SelectionTraceReplay(fewer)
+			.replay(new ByteArrayInputStream(trace));
+		Set<String> expected = new HashSet<>();
+		for (SourceAndConverter<?> sac : ssb.getSelectedSources()) {
+			int index = sources.indexOf(sac);
+			if (index < 10) expected.add("Tile_" + index);
+		}
+		Set<String> replayed = new HashSet<>();
+		for (SourceAndConverter<?> sac : report.getSelection()) {
+			replayed.add(sac.getSpimSource().getName());
+		}
+		assertEquals(expected, replayed);
+		// Tile_10 to Tile_19, Tile_40 to Tile_44
+		assertEquals(15, report.getUnresolved());
+		assertTrue(report.getSelectionEvent().count() == 4);
+	}
+
+}
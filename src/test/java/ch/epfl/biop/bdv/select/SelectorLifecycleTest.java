@@ -0,0 +1,180 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.util.BdvHandle;
+import bdv.util.BdvHandlePanel;
+import bdv.util.BdvOptions;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.SynchronizedViewerState;
+import bdv.viewer.ViewerPanel;
+import net.imglib2.FinalRealInterval;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.awt.GraphicsEnvironment;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the selector does not keep closed viewers and removed sources
+ * alive : objects which should be released are held by weak references, and
+ * the garbage collector is run until they are cleared. Selectors are
+ * created without viewer, except to check that a closed viewer is released.
+ */
+
+public class SelectorLifecycleTest {
+
+	/**
+	 * @return true if the referenced object has been garbage collected after a
+	 *         few collections
+	 */
+	static boolean isCollected(WeakReference<?> ref) {
+		for (int i = 0; (i < 50) && (ref.get() != null); i++) {
+			System.gc();
+			// Some allocation pressure helps the collector to clear weak references
+			byte[][] garbage = new byte[16][];
+			for (int k = 0; k < garbage.length; k++) {
+				garbage[k] = new byte[1 << 16];
+			}
+			try {
+				Thread.sleep(10);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return ref.get() == null;
+	}
+
+	static SelectedSourcesListener emptyListener() {
+		return new SelectedSourcesListener() {
+
+			@Override
+			public void selectedSourcesUpdated(
+				Collection<SourceAndConverter<?>> selectedSources,
+				String triggerMode)
+			{}
+
+			@Override
+			public void lastSelectionEvent(
+				Collection<SourceAndConverter<?>> lastSelectedSources,
+				String mode, String triggerMode)
+			{}
+		};
+	}
+
+	@Test
+	public void sourcesRemovedFromTheViewerAreCollectable() throws IOException {
+		List<SourceAndConverter<?>> sources = SelectionTraceReplay
+			.createSyntheticMosaic(100, 10);
+		SynchronizedViewerState state = SelectionTraceReplayTest.fusedState(
+			sources);
+		SourceSelectorBehaviour ssb = new SourceSelectorBehaviour(state);
+		ssb.setUndoCheckpointInterval(2);
+		// Trace recorder which is not closed
+		ssb.setTraceRecorder(new SelectionTraceRecorder(
+			new ByteArrayOutputStream()));
+		// Selection, stored selection, undo log with checkpoints and query index
+		ssb.selectedSourceAdd(sources);
+		ssb.storeSelection("all");
+		ssb.selectedSourceRemove(sources.subList(0, 50));
+		ssb.selectedSourceRemove(sources.subList(50, 60));
+		ssb.undo();
+		ssb.getVisibleSourcesInVolume(new FinalRealInterval(new double[] { 0, 0,
+			-1 }, new double[] { 50, 50, 1 }));
+		List<WeakReference<SourceAndConverter<?>>> refs = new ArrayList<>();
+		for (SourceAndConverter<?> sac : sources) {
+			refs.add(new WeakReference<>(sac));
+		}
+
+		state.removeSources(sources);
+		sources = null;
+
+		for (WeakReference<SourceAndConverter<?>> ref : refs) {
+			assertTrue("A removed source is still referenced", isCollected(ref));
+		}
+		// The selector is still alive, and has forgotten the sources
+		assertTrue(ssb.getSelectedSources().isEmpty());
+		ssb.restoreSelection("all");
+		assertTrue(ssb.getSelectedSources().isEmpty());
+	}
+
+	@Test
+	public void removedSelectorIsCollectable() {
+		List<SourceAndConverter<?>> sources = SelectionTraceReplay
+			.createSyntheticMosaic(100, 10);
+		SynchronizedViewerState state = SelectionTraceReplayTest.fusedState(
+			sources);
+		SourceSelectorBehaviour other = new SourceSelectorBehaviour(state);
+		SharedSelectionModel model = new SharedSelectionModel();
+		SourceSelectorBehaviour ssb = new SourceSelectorBehaviour(state);
+		model.attach(other);
+		model.attach(ssb);
+		ssb.addSelectedSourcesListener(emptyListener());
+		ssb.selectedSourceAdd(sources);
+		ssb.storeSelection("all");
+		ssb.selectedSourceRemove(sources.subList(0, 10));
+		WeakReference<SourceSelectorBehaviour> ssbRef = new WeakReference<>(ssb);
+
+		// The viewer state, its sources and the other selector stay alive
+		ssb.remove();
+		ssb = null;
+
+		assertTrue("The removed selector is still referenced", isCollected(
+			ssbRef));
+		assertEquals(Collections.singletonList(other), model.getBehaviours());
+		assertEquals(90, other.getSelectedSources().size());
+		state.setSourcesActive(sources, false);
+		assertTrue(other.getSelectedSources().isEmpty());
+	}
+
+	@Test
+	public void removedSelectorAndClosedViewerAreCollectable() {
+		// The viewer and its overlays can't be created headless
+		Assume.assumeFalse(GraphicsEnvironment.isHeadless());
+		List<SourceAndConverter<?>> sources = SelectionTraceReplay
+			.createSyntheticMosaic(100, 10);
+		BdvHandle bdvh = new BdvHandlePanel(null, BdvOptions.options());
+		bdvh.getViewerPanel().state().addSources(sources);
+		bdvh.getViewerPanel().state().setSourcesActive(sources, true);
+		SourceSelectorBehaviour ssb = new SourceSelectorBehaviour(bdvh, "E");
+		SourceNameOverlay nameOverlay = new SourceNameOverlay(bdvh
+			.getViewerPanel());
+		ssb.addSelectedSourcesListener(emptyListener());
+		ssb.enable();
+		ssb.selectedSourceAdd(sources);
+		ssb.storeSelection("all");
+		ssb.selectedSourceRemove(sources.subList(0, 10));
+		ssb.disable();
+
+		WeakReference<SourceSelectorBehaviour> ssbRef = new WeakReference<>(ssb);
+		WeakReference<ViewerPanel> viewerRef = new WeakReference<>(bdvh
+			.getViewerPanel());
+		WeakReference<SourceAndConverter<?>> sourceRef = new WeakReference<>(
+			sources.get(0));
+
+		ssb.remove();
+		nameOverlay.remove();
+		bdvh.close();
+		ssb = null;
+		nameOverlay = null;
+		bdvh = null;
+		sources = null;
+
+		assertTrue("The removed selector is still referenced", isCollected(
+			ssbRef));
+		assertTrue("The closed viewer is still referenced", isCollected(
+			viewerRef));
+		assertTrue("A source of the closed viewer is still referenced",
+			isCollected(sourceRef));
+	}
+
+}
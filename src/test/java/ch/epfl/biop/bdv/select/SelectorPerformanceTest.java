@@ -0,0 +1,326 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Latency and allocation budgets of the selector hot paths, on synthetic
+ * mosaics of 1k, 10k and 100k tiles. The time taken for 100k sources is
+ * compared to the one for 10k sources : a quadratic algorithm fails this check
+ * whatever the speed of the machine. Absolute time budgets, per source, depend
+ * on the machine : they are only checked when the scale of the budgets is
+ * given, for instance {@code -Dbdv.selector.perf.scale=1}, or 2 on a slow
+ * machine (all budgets multiplied by 2).
+ */
+
+public class SelectorPerformanceTest {
+
+	static final String SCALE_PROPERTY = "bdv.selector.perf.scale";
+
+	// Wall-clock budgets depend on the machine : only checked when asked for
+	static final boolean ABSOLUTE_BUDGETS = System.getProperty(
+		SCALE_PROPERTY) != null;
+
+	static final double SCALE = Double.parseDouble(System.getProperty(
+		SCALE_PROPERTY, "1"));
+
+	static final int TILE_SIZE = 100;
+
+	static final int CANVAS_WIDTH = 800, CANVAS_HEIGHT = 600;
+
+	static final int[] SIZES = { 1000, 10000, 100000 };
+
+	static final Map<Integer, List<SourceAndConverter<?>>> mosaics =
+		new HashMap<>();
+
+	@BeforeClass
+	public static void createMosaics() {
+		for (int n : SIZES) {
+			mosaics.put(n, SelectionTraceReplay.createSyntheticMosaic(n,
+				TILE_SIZE));
+		}
+	}
+
+	static List<SourceBox> boxes(int n) {
+		List<SourceBox> boxes = new ArrayList<>(n);
+		for (SourceAndConverter<?> sac : mosaics.get(n)) {
+			boxes.add(new SourceBox(sac, 0));
+		}
+		return boxes;
+	}
+
+	/**
+	 * @return a viewer transform which fits the whole mosaic in the canvas
+	 */
+	static AffineTransform3D fitAll(int n) {
+		double side = Math.ceil(Math.sqrt(n)) * TILE_SIZE;
+		AffineTransform3D t = new AffineTransform3D();
+		t.scale(Math.min(CANVAS_WIDTH, CANVAS_HEIGHT) / side);
+		return t;
+	}
+
+	/**
+	 * @return a viewer transform zoomed on a few tiles in the middle of the
+	 *         mosaic
+	 */
+	static AffineTransform3D zoomIn(int n) {
+		double side = Math.ceil(Math.sqrt(n)) * TILE_SIZE * 0.9;
+		AffineTransform3D t = new AffineTransform3D();
+		t.translate(-side / 2, -side / 2, 0);
+		return t;
+	}
+
+	static SourceGeometryService.Frame frame(List<SourceBox> boxes,
+		AffineTransform3D transform)
+	{
+		return new SourceGeometryService.Frame(boxes, transform, CANVAS_WIDTH,
+			CANVAS_HEIGHT, 0, 0);
+	}
+
+	/**
+	 * @return best time in nanoseconds of a few runs, after a warm up run
+	 */
+	static long bestOf(int runs, Runnable r) {
+		r.run();
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < runs; i++) {
+			long t0 = System.nanoTime();
+			r.run();
+			best = Math.min(best, System.nanoTime() - t0);
+		}
+		return best;
+	}
+
+	/**
+	 * @return bytes allocated by the current thread while running r, or -1 if
+	 *         the JVM can't measure it
+	 */
+	static long allocatedBytes(Runnable r) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+			.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+		com.sun.management.ThreadMXBean sunBean =
+			(com.sun.management.ThreadMXBean) bean;
+		if (!sunBean.isThreadAllocatedMemorySupported()) return -1;
+		r.run(); // warm up
+		long id = Thread.currentThread().getId();
+		long before = sunBean.getThreadAllocatedBytes(id);
+		r.run();
+		return sunBean.getThreadAllocatedBytes(id) - before;
+	}
+
+	static void assertBudget(String what, int n, long nanos,
+		double microsPerSource, double fixedMillis)
+	{
+		if (!ABSOLUTE_BUDGETS) return;
+		double budget = SCALE * (microsPerSource * 1e3 * n + fixedMillis * 1e6);
+		assertTrue(String.format("%s for %d sources took %.2f ms, budget %.2f ms",
+			what, n, nanos / 1e6, budget / 1e6), nanos <= budget);
+	}
+
+	static void assertAllocationBudget(String what, int n, long bytes,
+		double bytesPerSource, double fixedKBytes)
+	{
+		if (bytes < 0) return; // not measurable on this JVM
+		double budget = SCALE * (bytesPerSource * n + fixedKBytes * 1024);
+		assertTrue(String.format(
+			"%s for %d sources allocated %d bytes, budget %.0f bytes", what, n,
+			bytes, budget), bytes <= budget);
+	}
+
+	static void assertLinear(String what, long t10k, long t100k) {
+		// Linear : ratio 10 - quadratic : ratio 100
+		assertTrue(String.format(
+			"%s does not scale linearly : 10k sources %.2f ms, 100k sources %.2f ms",
+			what, t10k / 1e6, t100k / 1e6), t100k <= 30 * Math.max(t10k, 100000));
+	}
+
+	@Test
+	public void frameBuildWithinBudget() {
+		Map<Integer, Long> times = new HashMap<>();
+		for (int n : SIZES) {
+			List<SourceBox> boxes = boxes(n);
+			AffineTransform3D transform = zoomIn(n);
+			long t = bestOf(3, () -> frame(boxes, transform));
+			times.put(n, t);
+			assertBudget("Frame build", n, t, 10, 5);
+			assertAllocationBudget("Frame build", n, allocatedBytes(() -> frame(
+				boxes, transform)), 2048, 64);
+		}
+		assertLinear("Frame build", times.get(10000), times.get(100000));
+	}
+
+	@Test
+	public void hitTestWithinBudget() {
+		Map<Integer, Long> times = new HashMap<>();
+		Rectangle selection = new Rectangle(CANVAS_WIDTH / 4, CANVAS_HEIGHT / 4,
+			CANVAS_WIDTH / 2, CANVAS_HEIGHT / 2);
+		for (int n : SIZES) {
+			SourceGeometryService.Frame frame = frame(boxes(n), zoomIn(n));
+			long t = bestOf(5, () -> frame.getSourcesIntersecting(selection));
+			times.put(n, t);
+			assertBudget("Hit-test", n, t, 2, 5);
+			assertAllocationBudget("Hit-test", n, allocatedBytes(() -> frame
+				.getSourcesIntersecting(selection)), 64, 64);
+		}
+		assertLinear("Hit-test", times.get(10000), times.get(100000));
+	}
+
+	@Test
+	public void lassoWithinBudget() {
+		Map<Integer, Long> times = new HashMap<>();
+		// Concave freehand lasso of 500 points over the middle of the canvas
+		int m = 500;
+		double[] xs = new double[m], ys = new double[m];
+		for (int i = 0; i < m; i++) {
+			double angle = 2 * Math.PI * i / m;
+			double radius = 200 + 80 * Math.sin(7 * angle);
+			xs[i] = CANVAS_WIDTH / 2.0 + radius * Math.cos(angle);
+			ys[i] = CANVAS_HEIGHT / 2.0 + radius * Math.sin(angle);
+		}
+		ScreenPolygon lasso = new ScreenPolygon(xs, ys, m);
+		for (int n : SIZES) {
+			SourceGeometryService.Frame frame = frame(boxes(n), fitAll(n));
+			long t = bestOf(5, () -> frame.getSourcesIntersecting(lasso));
+			times.put(n, t);
+			assertBudget("Lasso", n, t, 1, 5);
+		}
+		assertLinear("Lasso", times.get(10000), times.get(100000));
+	}
+
+	@Test
+	public void volumeQueryIsLogarithmic() {
+		Map<Integer, Long> times = new HashMap<>();
+		for (int n : SIZES) {
+			SourceBoundsIndex index = new SourceBoundsIndex(boxes(n));
+			// A few tiles around the center of the mosaic, whatever its size
+			double center = Math.ceil(Math.sqrt(n)) * TILE_SIZE * 0.45;
+			FinalRealInterval volume = new FinalRealInterval(new double[] { center -
+				TILE_SIZE, center - TILE_SIZE, -1 }, new double[] { center +
+					TILE_SIZE, center + TILE_SIZE, 1 });
+			long t = bestOf(20, () -> index.query(volume));
+			times.put(n, t);
+			assertTrue(index.query(volume).size() >= 4);
+		}
+		// 100 times more sources, only a few more tree levels to go through
+		assertTrue(String.format(
+			"Volume query does not scale logarithmically : 1k sources %.3f ms, 100k sources %.3f ms",
+			times.get(1000) / 1e6, times.get(100000) / 1e6), times.get(
+				100000) <= SCALE * 10 * Math.max(times.get(1000), 20000));
+	}
+
+	@Test
+	public void drawWithinBudget() {
+		Map<String, SourceSelectorOverlay.OverlayStyle> styles = new HashMap<>();
+		styles.put("DEFAULT", new SourceSelectorOverlay.DefaultOverlayStyle());
+		styles.put("SELECTED", new SourceSelectorOverlay.SelectedOverlayStyle());
+		GlyphVectorCache labels = new GlyphVectorCache();
+		BufferedImage image = new BufferedImage(CANVAS_WIDTH, CANVAS_HEIGHT,
+			BufferedImage.TYPE_INT_ARGB);
+		for (int n : SIZES) {
+			List<SourceBox> boxes = boxes(n);
+			// Half of the sources are selected
+			HashSet<SourceAndConverter<?>> selected = new HashSet<>(mosaics.get(n)
+				.subList(0, n / 2));
+			// Everything on screen for the smaller mosaics, zoomed in for the largest
+			AffineTransform3D transform = n <= 10000 ? fitAll(n) : zoomIn(n);
+			long t = bestOf(3, () -> {
+				Graphics2D g = image.createGraphics();
+				SourceSelectorOverlay.drawSources(g, frame(boxes, transform),
+					selected, styles, labels, true);
+				g.dispose();
+			});
+			assertBudget("Draw", n, t, 50, 50);
+		}
+	}
+
+	@Test
+	public void selectionSaveAndLoadWithinBudget() {
+		Map<Integer, Long> times = new HashMap<>();
+		for (int n : SIZES) {
+			List<SourceAndConverter<?>> sources = mosaics.get(n);
+			Map<SourceAndConverter<?>, Integer> setupIds = new HashMap<>();
+			for (int i = 0; i < n; i++) {
+				setupIds.put(sources.get(i), i);
+			}
+			// Two thirds of the tiles, in many runs
+			HashSet<SourceAndConverter<?>> selection = new HashSet<>();
+			for (int i = 0; i < n; i++) {
+				if (i % 3 != 0) selection.add(sources.get(i));
+			}
+			List<Set<SourceAndConverter<?>>> reads = new ArrayList<>();
+			long t = bestOf(3, () -> {
+				try {
+					SelectionCodec codec = new SelectionCodec(sources, setupIds::get);
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					DataOutputStream out = new DataOutputStream(bytes);
+					codec.writeHeader(out, 1);
+					codec.writeSelection(out, null, selection);
+					out.flush();
+					DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+						bytes.toByteArray()));
+					codec.readHeader(in);
+					codec.readSelection(in, (name, read) -> reads.add(read));
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			// Checked out of the timed code
+			assertEquals(4, reads.size());
+			for (Set<SourceAndConverter<?>> read : reads) {
+				assertEquals(selection, read);
+			}
+			times.put(n, t);
+			assertBudget("Selection save and load", n, t, 3, 10);
+		}
+		assertLinear("Selection save and load", times.get(10000), times.get(
+			100000));
+	}
+
+	@Test
+	public void bulkSelectionWithinBudget() {
+		Map<Integer, Long> times = new HashMap<>();
+		for (int n : SIZES) {
+			List<SourceAndConverter<?>> sources = mosaics.get(n);
+			SourceSelectorBehaviour ssb = new SourceSelectorBehaviour(
+				SelectionTraceReplayTest.fusedState(sources));
+			List<SourceAndConverter<?>> half = sources.subList(0, n / 2);
+			long t = bestOf(3, () -> {
+				ssb.selectedSourceAdd(sources);
+				ssb.selectedSourceRemove(half);
+				ssb.processSelectionModificationEvent(new HashSet<>(half),
+					SourceSelectorBehaviour.SET, "Test");
+				ssb.selectedSourcesClear();
+			});
+			times.put(n, t);
+			assertBudget("Bulk ADD / REMOVE / SET", n, t, 20, 20);
+			ssb.remove();
+		}
+		assertLinear("Bulk ADD / REMOVE / SET", times.get(10000), times.get(
+			100000));
+	}
+
+}
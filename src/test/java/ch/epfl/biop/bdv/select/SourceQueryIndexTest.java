@@ -0,0 +1,214 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.FinalInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.ConstantUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Name patterns go through the sorted names, forward for a literal prefix and
+ * reversed for a literal suffix : both paths are checked against the names
+ * matched one by one with {@link SourceQueryIndex#globMatches(String, String)}.
+ */
+
+public class SourceQueryIndexTest {
+
+	static final String[] NAMES = { "Well_A1_ch1", "Well_A1_ch2", "Well_B1_ch1",
+		"Well_B1_ch2", "Well_B2_ch2", "Tile_1", "Tile_12", "Tole_1", "abc",
+		"aXbYc", "acb", "Well_B1_ch2" };
+
+	Map<String, List<SourceAndConverter<?>>> byName;
+
+	List<SourceAndConverter<?>> sources;
+
+	SourceQueryIndex index;
+
+	static SourceAndConverter<?> named(String name) {
+		UnsignedByteType type = new UnsignedByteType();
+		return new SourceAndConverter<>(new RandomAccessibleIntervalSource<>(
+			ConstantUtils.constantRandomAccessibleInterval(type, new FinalInterval(1,
+				1, 1)), type, new AffineTransform3D(), name), null);
+	}
+
+	@Before
+	public void setUp() {
+		byName = new LinkedHashMap<>();
+		sources = new ArrayList<>();
+		index = new SourceQueryIndex();
+		for (String name : NAMES) {
+			SourceAndConverter<?> sac = named(name);
+			byName.computeIfAbsent(name, k -> new ArrayList<>()).add(sac);
+			sources.add(sac);
+			index.add(sac);
+		}
+	}
+
+	Set<SourceAndConverter<?>> expected(String... names) {
+		Set<SourceAndConverter<?>> result = new HashSet<>();
+		for (String name : names) {
+			result.addAll(byName.get(name));
+		}
+		return result;
+	}
+
+	Set<SourceAndConverter<?>> matchedOneByOne(String pattern) {
+		Set<SourceAndConverter<?>> result = new HashSet<>();
+		for (SourceAndConverter<?> sac : sources) {
+			if (SourceQueryIndex.globMatches(pattern, sac.getSpimSource().getName()))
+				result.add(sac);
+		}
+		return result;
+	}
+
+	void assertFinds(String pattern, String... names) {
+		assertEquals(pattern, expected(names), index.findByName(pattern));
+		assertEquals(pattern, matchedOneByOne(pattern), index.findByName(
+			pattern));
+	}
+
+	@Test
+	public void literalPrefix() {
+		assertFinds("Well_B*", "Well_B1_ch1", "Well_B1_ch2", "Well_B2_ch2");
+		assertEquals(3, index.findByName("Well_B1*").size());
+	}
+
+	@Test
+	public void literalSuffix() {
+		// The suffix is longer than the prefix : reversed names are used
+		assertFinds("*_ch2", "Well_A1_ch2", "Well_B1_ch2", "Well_B2_ch2");
+		assertFinds("W*B1_ch2", "Well_B1_ch2");
+	}
+
+	@Test
+	public void severalStars() {
+		assertFinds("a*b*c", "abc", "aXbYc");
+		assertFinds("*", NAMES);
+	}
+
+	@Test
+	public void singleCharacter() {
+		assertFinds("T?le_1", "Tile_1", "Tole_1");
+		assertFinds("Tile_1?", "Tile_12");
+		assertFinds("Well_?1_ch?", "Well_A1_ch1", "Well_A1_ch2", "Well_B1_ch1",
+			"Well_B1_ch2");
+	}
+
+	@Test
+	public void exactName() {
+		assertFinds("Tile_1", "Tile_1");
+		assertEquals(2, index.findByName("Well_B1_ch2").size());
+		assertTrue(index.findByName("Tile").isEmpty());
+		assertTrue(index.findByName("Tile_1_").isEmpty());
+	}
+
+	@Test
+	public void globMatching() {
+		assertTrue(SourceQueryIndex.globMatches("*", ""));
+		assertTrue(SourceQueryIndex.globMatches("a*a*a", "aaaaa"));
+		assertFalse(SourceQueryIndex.globMatches("a*a*a", "aa"));
+		assertFalse(SourceQueryIndex.globMatches("?", ""));
+		assertTrue(SourceQueryIndex.globMatches("*b?", "abbbc"));
+		assertFalse(SourceQueryIndex.globMatches("*b?", "abbbcc"));
+	}
+
+	@Test
+	public void removedSourcesAreNotFound() {
+		for (SourceAndConverter<?> sac : byName.get("Tile_1")) {
+			index.remove(sac);
+		}
+		assertEquals(NAMES.length - 1, index.size());
+		assertTrue(index.findByName("Tile_1").isEmpty());
+		assertEquals(expected("Tile_12"), index.findByName("Tile_1*"));
+		assertEquals(expected("Tole_1"), index.findByName("T?le_1"));
+		assertEquals(expected("Tole_1"), index.findByName("*le_1"));
+
+		// One of the two sources with the same name is still found
+		SourceAndConverter<?> duplicate = byName.get("Well_B1_ch2").get(0);
+		index.remove(duplicate);
+		Set<SourceAndConverter<?>> remaining = index.findByName("Well_B1_ch2");
+		assertEquals(1, remaining.size());
+		assertFalse(remaining.contains(duplicate));
+
+		// Removing twice, or a source which was not indexed, does nothing
+		index.remove(duplicate);
+		index.remove(named("Tile_12"));
+		assertEquals(NAMES.length - 2, index.size());
+	}
+
+	@Test
+	public void syncAddsAndRemovesTheDifferences() {
+		SourceAndConverter<?> added = named("Well_C1_ch1");
+		List<SourceAndConverter<?>> target = new ArrayList<>(sources.subList(0,
+			4));
+		target.add(added);
+		index.sync(target);
+		assertEquals(5, index.size());
+		assertEquals(new HashSet<>(target), index.findByName("*"));
+		assertEquals(new HashSet<>(Arrays.asList(sources.get(1), sources.get(3))),
+			index.findByName("*_ch2"));
+		assertTrue(index.findByName("Tile*").isEmpty());
+		assertEquals(new HashSet<>(Arrays.asList(added)), index.findByName(
+			"Well_C*"));
+
+		index.sync(new ArrayList<>());
+		assertEquals(0, index.size());
+		assertTrue(index.findByName("*").isEmpty());
+		assertTrue(index.findByName("*_ch1").isEmpty());
+	}
+
+	@Test
+	public void metadataAreIndexedWithTheProvider() {
+		assertTrue(index.getMetadataKeys().isEmpty());
+		index.setMetadataProvider(sac -> {
+			String name = sac.getSpimSource().getName();
+			Map<String, String> metadata = new HashMap<>();
+			if (name.startsWith("Well_")) {
+				metadata.put("well", name.substring(5, 7));
+				metadata.put("channel", name.substring(name.length() - 1));
+			}
+			return metadata;
+		});
+		assertEquals(new HashSet<>(Arrays.asList("well", "channel")), index
+			.getMetadataKeys());
+		assertEquals(expected("Well_A1_ch2", "Well_B1_ch2", "Well_B2_ch2"), index
+			.findByMetadata("channel", "2"));
+		assertEquals(expected("Well_B1_ch1", "Well_B1_ch2"), index.findByMetadata(
+			"well", "B1"));
+		assertTrue(index.findByMetadata("channel", "3").isEmpty());
+		assertTrue(index.findByMetadata("tile", "1").isEmpty());
+
+		// Sources added later are indexed with the provider
+		SourceAndConverter<?> added = named("Well_C1_ch2");
+		index.add(added);
+		assertTrue(index.findByMetadata("channel", "2").contains(added));
+
+		// Removing the last source of a value removes the value, then the key
+		index.remove(added);
+		assertTrue(index.findByMetadata("well", "C1").isEmpty());
+		index.sync(expected("Tile_1", "Tile_12"));
+		assertTrue(index.getMetadataKeys().isEmpty());
+
+		index.setMetadataProvider(null);
+		index.sync(sources);
+		assertTrue(index.getMetadataKeys().isEmpty());
+		assertTrue(index.findByMetadata("channel", "2").isEmpty());
+	}
+
+}
@@ -0,0 +1,134 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.tools.transformation.TransformedSource;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cached slices and bounding volume indexes follow the source transforms :
+ * moving a source (here a {@link TransformedSource}, as the manual transform
+ * editor of BigDataViewer does) and calling {@link SourceBox#sourcesMoved()}
+ * invalidates them, although the viewer transform and the visible sources
+ * have not changed. A concave lasso selects the tiles it covers, and not the
+ * other tiles of its bounding box.
+ */
+
+public class SourceSelectionEngineTest {
+
+	static final int TILE_SIZE = 100;
+
+	List<SourceAndConverter<?>> sources;
+
+	TransformedSource<?> moved;
+
+	@Before
+	public void setUp() {
+		sources = new ArrayList<>();
+		for (SourceAndConverter<?> sac : SelectionTraceReplay
+			.createSyntheticMosaic(4, TILE_SIZE))
+		{
+			sources.add(transformed(sac));
+		}
+		moved = (TransformedSource<?>) sources.get(0).getSpimSource();
+	}
+
+	static <T> SourceAndConverter<T> transformed(SourceAndConverter<T> sac) {
+		return new SourceAndConverter<>(new TransformedSource<>(sac
+			.getSpimSource()), sac.getConverter());
+	}
+
+	void moveFirstTile() {
+		AffineTransform3D shift = new AffineTransform3D();
+		shift.translate(10 * TILE_SIZE, 0, 0);
+		moved.setFixedTransform(shift);
+		SourceBox.sourcesMoved(Collections.singleton(sources.get(0)));
+	}
+
+	@Test
+	public void movedSourceInvalidatesTheSlice() {
+		List<SourceBox> boxes = new ArrayList<>();
+		for (SourceAndConverter<?> sac : sources) {
+			boxes.add(new SourceBox(sac, 0));
+		}
+		AffineTransform3D viewerTransform = new AffineTransform3D();
+		SourceSelectionEngine.Slice slice = SourceSelectionEngine.slice(boxes,
+			viewerTransform);
+		assertTrue(slice.isUpToDate());
+		assertTrue(slice.selectInRectangle(5, 5, 10, 10).contains(sources.get(0)));
+
+		moveFirstTile();
+		assertFalse(slice.isUpToDate());
+		slice = SourceSelectionEngine.slice(boxes, viewerTransform);
+		assertTrue(slice.isUpToDate());
+		assertFalse(slice.selectInRectangle(5, 5, 10, 10).contains(sources.get(
+			0)));
+		assertTrue(slice.selectInRectangle(10 * TILE_SIZE + 5, 5, 10 *
+			TILE_SIZE + 10, 10).contains(sources.get(0)));
+	}
+
+	@Test
+	public void movedSourceInvalidatesTheBoundsIndex() {
+		SourceSelectionEngine engine = new SourceSelectionEngine(sources);
+		SourceBoundsIndex index = engine.getBoundsIndex(0);
+		assertTrue(index.isUpToDate());
+		FinalRealInterval oldLocation = new FinalRealInterval(new double[] { 5, 5,
+			-1 }, new double[] { 10, 10, 1 });
+		assertTrue(engine.selectInVolume(oldLocation, 0).contains(sources.get(0)));
+
+		moveFirstTile();
+		assertFalse(index.isUpToDate());
+		assertNotSame(index, engine.getBoundsIndex(0));
+		assertFalse(engine.selectInVolume(oldLocation, 0).contains(sources.get(
+			0)));
+		assertTrue(engine.selectInVolume(new FinalRealInterval(new double[] { 10 *
+			TILE_SIZE + 5, 5, -1 }, new double[] { 10 * TILE_SIZE + 10, 10, 1 }), 0)
+			.contains(sources.get(0)));
+	}
+
+	@Test
+	public void concaveLassoSelectsTheTilesItCovers() {
+		// 3 x 3 tiles, columns (and rows) from 0, 90 and 180 to 100, 190 and 280
+		List<SourceAndConverter<?>> tiles = SelectionTraceReplay
+			.createSyntheticMosaic(9, TILE_SIZE);
+		List<SourceBox> boxes = new ArrayList<>();
+		for (SourceAndConverter<?> sac : tiles) {
+			boxes.add(new SourceBox(sac, 0));
+		}
+		// U shaped lasso over the left and right columns and the bottom row :
+		// its notch contains the top and center tiles of the middle column,
+		// which are in its bounding box
+		double[] xs = { 10, 60, 60, 220, 220, 270, 270, 10 };
+		double[] ys = { 10, 10, 200, 200, 10, 10, 270, 270 };
+		ScreenPolygon lasso = new ScreenPolygon(xs, ys, xs.length);
+		assertFalse(lasso.isConvex());
+		Set<SourceAndConverter<?>> expected = new HashSet<>();
+		for (int i : new int[] { 0, 2, 3, 5, 6, 7, 8 }) {
+			expected.add(tiles.get(i));
+		}
+
+		AffineTransform3D viewerTransform = new AffineTransform3D();
+		SourceSelectionEngine.Slice slice = SourceSelectionEngine.slice(boxes,
+			viewerTransform);
+		assertEquals(expected, slice.selectInPolygon(lasso));
+		SourceGeometryService.Frame frame = new SourceGeometryService.Frame(boxes,
+			viewerTransform, 300, 300, 0, 0);
+		assertEquals(expected, frame.getSourcesIntersecting(lasso));
+		assertEquals(expected, new SourceSelectionEngine(tiles).selectInPolygon(
+			viewerTransform, 0, lasso));
+	}
+
+}
@@ -0,0 +1,213 @@
+package ch.epfl.biop.bdv.select;
+
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.SynchronizedViewerState;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Selection of a selector without viewer, when the visible sources change
+ */
+
+public class SourceSelectorBehaviourTest {
+
+	List<SourceAndConverter<?>> sources;
+
+	SynchronizedViewerState state;
+
+	SourceSelectorBehaviour ssb;
+
+	@Before
+	public void setUp() {
+		sources = SelectionTraceReplay.createSyntheticMosaic(4, 100);
+		state = SelectionTraceReplayTest.fusedState(sources);
+		ssb = new SourceSelectorBehaviour(state);
+	}
+
+	@Test
+	public void hiddenSourcesAreDeselectedWithoutUndoStep() {
+		ssb.selectedSourceAdd(sources.get(0));
+		ssb.selectedSourceAdd(sources.get(1));
+		state.setSourceActive(sources.get(1), false);
+		assertEquals(Collections.singleton(sources.get(0)), ssb
+			.getSelectedSources());
+		// Undo reverts the last user action, the selection of the hidden source,
+		// not the cleanup
+		assertTrue(ssb.undo());
+		assertEquals(Collections.singleton(sources.get(0)), ssb
+			.getSelectedSources());
+		assertTrue(ssb.undo());
+		assertTrue(ssb.getSelectedSources().isEmpty());
+		assertFalse(ssb.canUndo());
+		// The hidden source can't be selected back
+		assertTrue(ssb.redo());
+		assertTrue(ssb.redo());
+		assertEquals(Collections.singleton(sources.get(0)), ssb
+			.getSelectedSources());
+	}
+
+	/**
+	 * Selects the sources one by one with a checkpoint every two steps, then
+	 * hides one of them
+	 */
+	static SourceSelectorBehaviour selectThenHide(
+		List<SourceAndConverter<?>> sources)
+	{
+		SynchronizedViewerState state = SelectionTraceReplayTest.fusedState(
+			sources);
+		SourceSelectorBehaviour ssb = new SourceSelectorBehaviour(state);
+		ssb.setUndoCheckpointInterval(2);
+		for (SourceAndConverter<?> sac : sources) {
+			ssb.selectedSourceAdd(sac);
+		}
+		state.setSourceActive(sources.get(1), false);
+		state.setSourceActive(sources.get(1), true);
+		return ssb;
+	}
+
+	@Test
+	public void movesAfterCleanupEqualSingleSteps() {
+		SourceSelectorBehaviour moved = selectThenHide(sources);
+		SourceSelectorBehaviour stepped = selectThenHide(sources);
+		moved.undo(3);
+		for (int i = 0; i < 3; i++) {
+			stepped.undo();
+		}
+		assertEquals(Collections.singleton(sources.get(0)), stepped
+			.getSelectedSources());
+		assertEquals(stepped.getSelectedSources(), moved.getSelectedSources());
+		moved.undo(-2);
+		stepped.redo();
+		stepped.redo();
+		assertEquals(stepped.getSelectedSources(), moved.getSelectedSources());
+	}
+
+	@Test
+	public void hidingASourceInOneViewerKeepsItSelectedInTheOthers() {
+		SynchronizedViewerState otherState = SelectionTraceReplayTest.fusedState(
+			sources);
+		SourceSelectorBehaviour other = new SourceSelectorBehaviour(otherState);
+		SharedSelectionModel model = new SharedSelectionModel();
+		model.attach(ssb);
+		model.attach(other);
+		ssb.selectedSourceAdd(sources.subList(0, 2));
+		assertEquals(new HashSet<>(sources.subList(0, 2)), other
+			.getSelectedSources());
+
+		state.setSourceActive(sources.get(1), false);
+		assertEquals(Collections.singleton(sources.get(0)), ssb
+			.getSelectedSources());
+		assertEquals(new HashSet<>(sources.subList(0, 2)), other
+			.getSelectedSources());
+	}
+
+	@Test
+	public void transactionIsAppliedAsOneDelta() {
+		ssb.selectedSourceAdd(sources.subList(0, 2));
+		List<String> events = new ArrayList<>();
+		ssb.addSelectedSourcesListener(new SelectedSourcesListener() {
+
+			@Override
+			public void selectedSourcesUpdated(
+				Collection<SourceAndConverter<?>> selectedSources,
+				String triggerMode)
+			{}
+
+			@Override
+			public void lastSelectionEvent(
+				Collection<SourceAndConverter<?>> lastSelectedSources, String mode,
+				String triggerMode)
+			{
+				events.add(mode + " " + lastSelectedSources.size());
+			}
+		});
+
+		ssb.modify(editor -> editor.remove(sources.get(1)).add(sources.get(2)));
+		assertEquals(new HashSet<>(Arrays.asList(sources.get(0), sources.get(2))),
+			ssb.getSelectedSources());
+		assertEquals(Arrays.asList(SourceSelectorBehaviour.REMOVE + " 1",
+			SourceSelectorBehaviour.ADD + " 1"), events);
+
+		// One undo step
+		assertTrue(ssb.undo());
+		assertEquals(new HashSet<>(sources.subList(0, 2)), ssb
+			.getSelectedSources());
+
+		events.clear();
+		ssb.modify(editor -> editor.clear().add(sources.get(3)));
+		assertEquals(Collections.singleton(sources.get(3)), ssb
+			.getSelectedSources());
+		assertEquals(Arrays.asList(SourceSelectorBehaviour.REMOVE + " 2",
+			SourceSelectorBehaviour.ADD + " 1"), events);
+	}
+
+	@Test
+	public void storedSelectionIsAppliedAsOneDelta() {
+		ssb.selectedSourceAdd(sources.subList(0, 3));
+		ssb.storeSelection("first");
+		ssb.selectedSourcesClear();
+		ssb.selectedSourceAdd(sources.subList(2, 4));
+		List<String> events = new ArrayList<>();
+		ssb.addSelectedSourcesListener(new SelectedSourcesListener() {
+
+			@Override
+			public void selectedSourcesUpdated(
+				Collection<SourceAndConverter<?>> selectedSources,
+				String triggerMode)
+			{}
+
+			@Override
+			public void lastSelectionEvent(
+				Collection<SourceAndConverter<?>> lastSelectedSources, String mode,
+				String triggerMode)
+			{
+				events.add(mode + " " + lastSelectedSources.size());
+			}
+		});
+
+		// Only the differences with the current selection are applied
+		ssb.restoreSelection("first");
+		assertEquals(new HashSet<>(sources.subList(0, 3)), ssb
+			.getSelectedSources());
+		assertEquals(Arrays.asList(SourceSelectorBehaviour.REMOVE + " 1",
+			SourceSelectorBehaviour.ADD + " 2"), events);
+		assertTrue(ssb.undo());
+		assertEquals(new HashSet<>(sources.subList(2, 4)), ssb
+			.getSelectedSources());
+
+		events.clear();
+		ssb.restoreSelection("first", SourceSelectorBehaviour.ADD);
+		assertEquals(new HashSet<>(sources), ssb.getSelectedSources());
+		assertEquals(Collections.singletonList(SourceSelectorBehaviour.ADD +
+			" 2"), events);
+
+		events.clear();
+		ssb.intersectSelection("first");
+		assertEquals(new HashSet<>(sources.subList(0, 3)), ssb
+			.getSelectedSources());
+		assertEquals(Collections.singletonList(SourceSelectorBehaviour.REMOVE +
+			" 1"), events);
+
+		ssb.selectedSourceRemove(sources.get(0));
+		ssb.restoreSelection("first", SourceSelectorBehaviour.REMOVE);
+		assertTrue(ssb.getSelectedSources().isEmpty());
+
+		// Stored sources which are hidden are not selected
+		state.setSourceActive(sources.get(1), false);
+		ssb.restoreSelection("first");
+		assertEquals(new HashSet<>(Arrays.asList(sources.get(0), sources.get(2))),
+			ssb.getSelectedSources());
+	}
+
+}